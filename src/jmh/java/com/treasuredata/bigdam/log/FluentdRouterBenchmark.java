@@ -0,0 +1,75 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.komamitsu.fluency.Fluency;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Resolution of routes of tags, with the per-tag cache (cached) and by compiled matchers only (uncached)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FluentdRouterBenchmark
+{
+    private static final List<FluentdRouter.Route> ROUTES = ImmutableList.of(
+            new FluentdRouter.Route("bigdam.metric.jvm.**", "metrics"),
+            new FluentdRouter.Route("bigdam.metric.**", "metrics"),
+            new FluentdRouter.Route("bigdam.log.error", "logs", "metrics"),
+            FluentdRouter.Route.drop("bigdam.log.trace"),
+            new FluentdRouter.Route("bigdam.log.*", "logs"),
+            new FluentdRouter.Route("**", "logs"));
+
+    private static class Discard
+            implements FluentdEmitter
+    {
+        @Override
+        public void emit(final String tag, final long time, final Map<String, Object> event)
+        {
+        }
+
+        @Override
+        public List<Fluency> getFluencies()
+        {
+            return ImmutableList.of();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    @Param({"cached", "uncached"})
+    public String cache;
+
+    @Param({"bigdam.log.error", "bigdam.log.info", "bigdam.metric.import.records"})
+    public String tag;
+
+    private FluentdRouter router;
+
+    @Setup
+    public void setup()
+    {
+        router = new FluentdRouter(
+                ImmutableMap.of("logs", new Discard(), "metrics", new Discard()),
+                ROUTES, cache.equals("cached") ? FluentdRouter.DEFAULT_MAX_CACHED_TAGS : 0);
+    }
+
+    @Benchmark
+    public Object resolve()
+    {
+        return router.resolve(tag);
+    }
+}
@@ -0,0 +1,92 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.komamitsu.fluency.Fluency;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+// Throughput of emits from many threads, by the number of shards (1 is the same as a single Fluency),
+// to a local server discarding forwarded data
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+public class FluentdShardsBenchmark
+{
+    @Param({"1", "4", "16"})
+    public int shards;
+
+    @Param({"THREAD", "TAG"})
+    public FluentdShards.Key key;
+
+    private ServerSocket server;
+    private ExecutorService readers;
+    private FluentdShards emitter;
+    private final Map<String, Object> event = ImmutableMap.of("message", "benchmark", "host", "localhost", "count", 1);
+
+    @Setup
+    public void setup()
+            throws IOException
+    {
+        server = new ServerSocket(0);
+        readers = Executors.newCachedThreadPool();
+        readers.submit(() -> {
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                readers.submit(() -> {
+                    try (InputStream in = socket.getInputStream()) {
+                        byte[] buf = new byte[65536];
+                        while (in.read(buf) >= 0) {
+                            // discard
+                        }
+                    }
+                    return null;
+                });
+            }
+            return null;
+        });
+        emitter = new FluentdShards("127.0.0.1", server.getLocalPort(), shards, key, (host, port) -> {
+            try {
+                return Fluency.defaultFluency(host, port, new Fluency.Config().setWaitUntilBufferFlushed(10).setWaitUntilFlusherTerminated(10));
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @TearDown
+    public void teardown()
+            throws IOException
+    {
+        emitter.close();
+        server.close();
+        readers.shutdownNow();
+    }
+
+    @Benchmark
+    public void emit()
+            throws IOException
+    {
+        // tags per thread, to be spread over shards also by TAG
+        emitter.emit("bench." + (Thread.currentThread().getId() & 15), 1L, event);
+    }
+}
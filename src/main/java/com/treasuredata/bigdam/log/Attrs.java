@@ -1,20 +1,61 @@
 package com.treasuredata.bigdam.log;
 
-import java.util.HashMap;
 import java.util.Map;
 
+// Attribute maps of log calls. Maps are compact, insertion-ordered and array-backed (AttrsMap), and mutable.
+// Use builder() for more than 7 pairs.
 public class Attrs
 {
+    public static Builder builder()
+    {
+        return new Builder(8);
+    }
+
+    public static Builder builder(final int expectedSize)
+    {
+        return new Builder(expectedSize);
+    }
+
+    public static class Builder
+    {
+        private final AttrsMap<String, Object> map;
+
+        private Builder(final int expectedSize)
+        {
+            this.map = new AttrsMap<>(expectedSize);
+        }
+
+        public Builder put(final String key, final Object value)
+        {
+            map.put(key, value);
+            return this;
+        }
+
+        public Builder putAll(final Map<String, ? extends Object> attrs)
+        {
+            for (Map.Entry<String, ? extends Object> pair : attrs.entrySet()) {
+                map.put(pair.getKey(), pair.getValue());
+            }
+            return this;
+        }
+
+        // the builder must not be used after build()
+        public Map<String, Object> build()
+        {
+            return map;
+        }
+    }
+
     public static <K, V> Map<K, V> of(K k1, V v1)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(1);
         map.put(k1, v1);
         return map;
     }
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(2);
         map.put(k1, v1);
         map.put(k2, v2);
         return map;
@@ -22,7 +63,7 @@ public class Attrs
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2, K k3, V v3)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(3);
         map.put(k1, v1);
         map.put(k2, v2);
         map.put(k3, v3);
@@ -31,7 +72,7 @@ public class Attrs
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(4);
         map.put(k1, v1);
         map.put(k2, v2);
         map.put(k3, v3);
@@ -41,7 +82,7 @@ public class Attrs
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4, K k5, V v5)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(5);
         map.put(k1, v1);
         map.put(k2, v2);
         map.put(k3, v3);
@@ -52,7 +93,7 @@ public class Attrs
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4, K k5, V v5, K k6, V v6)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(6);
         map.put(k1, v1);
         map.put(k2, v2);
         map.put(k3, v3);
@@ -64,7 +105,7 @@ public class Attrs
 
     public static <K, V> Map<K, V> of(K k1, V v1, K k2, V v2, K k3, V v3, K k4, V v4, K k5, V v5, K k6, V v6, K k7, V v7)
     {
-        Map<K, V> map = new HashMap<>();
+        Map<K, V> map = new AttrsMap<>(7);
         map.put(k1, v1);
         map.put(k2, v2);
         map.put(k3, v3);
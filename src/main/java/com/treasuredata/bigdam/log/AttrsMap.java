@@ -0,0 +1,260 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+// Insertion-ordered Map backed by arrays of keys and values, for small attribute maps created by Attrs.
+// Lookups are linear scans without hashing, which are faster than HashMap for a few entries, and it allocates
+// only two arrays (no entry nodes). Log iterates it by index (keyAt/valueAt) without iterators.
+// This map is mutable as maps created by Attrs had been, but not thread-safe.
+final class AttrsMap<K, V>
+        extends AbstractMap<K, V>
+{
+    private Object[] keys;
+    private Object[] values;
+    private int size;
+    private int modCount;
+
+    AttrsMap(final int capacity)
+    {
+        this.keys = new Object[Math.max(capacity, 1)];
+        this.values = new Object[keys.length];
+        this.size = 0;
+        this.modCount = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    K keyAt(final int index)
+    {
+        return (K) keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(final int index)
+    {
+        return (V) values[index];
+    }
+
+    // appends an entry without checking duplicated keys: only for keys known to be unique
+    void append(final K key, final V value)
+    {
+        if (size == keys.length) {
+            grow();
+        }
+        keys[size] = key;
+        values[size] = value;
+        size += 1;
+        modCount += 1;
+    }
+
+    private int indexOf(final Object key)
+    {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(keys[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void grow()
+    {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    private void removeAt(final int index)
+    {
+        int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+        }
+        size -= 1;
+        keys[size] = null;
+        values[size] = null;
+        modCount += 1;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public V get(final Object key)
+    {
+        int i = indexOf(key);
+        return i < 0 ? null : valueAt(i);
+    }
+
+    @Override
+    public V put(final K key, final V value)
+    {
+        int i = indexOf(key);
+        if (i >= 0) {
+            V old = valueAt(i);
+            values[i] = value;
+            return old;
+        }
+        append(key, value);
+        return null;
+    }
+
+    @Override
+    public V remove(final Object key)
+    {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = valueAt(i);
+        removeAt(i);
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        modCount += 1;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K, V>>()
+        {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size()
+            {
+                return size;
+            }
+        };
+    }
+
+    private class EntryIterator
+            implements Iterator<Map.Entry<K, V>>
+    {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<K, V> next()
+        {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 1;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove()
+        {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private class Entry
+            implements Map.Entry<K, V>
+    {
+        private final int index;
+
+        Entry(final int index)
+        {
+            this.index = index;
+        }
+
+        @Override
+        public K getKey()
+        {
+            return keyAt(index);
+        }
+
+        @Override
+        public V getValue()
+        {
+            return valueAt(index);
+        }
+
+        @Override
+        public V setValue(final V value)
+        {
+            V old = valueAt(index);
+            values[index] = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+            return Objects.equals(getKey(), other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
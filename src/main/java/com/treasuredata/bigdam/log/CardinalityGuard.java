@@ -0,0 +1,118 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Bounded sets of label sets per metric name, to limit the number of series emitted by MetricMonitor.
+// Label sets over the limit are folded into the overflow series of the name, whose value is the sum of folded values.
+// Label sets not seen for expireTicks ticks are forgotten, so that these don't occupy the limit forever.
+// Not thread-safe: this class is expected to be used only from the monitor thread.
+class CardinalityGuard
+{
+    static final String OVERFLOW_LABEL_NAME = "__overflow__";
+    static final Map<String, Object> OVERFLOW_LABELS = ImmutableMap.of(OVERFLOW_LABEL_NAME, "true");
+    static final long OVERFLOW_LABELS_HASH = SeriesTable.hashLabels(OVERFLOW_LABELS);
+
+    static class NameState
+    {
+        final String tagPrefix;
+        final String name;
+        final SeriesTable labelSets;
+
+        boolean warned;
+
+        // values folded in the current tick
+        int folded;
+        boolean isDouble;
+        long longSum;
+        double doubleSum;
+
+        NameState(final String tagPrefix, final String name)
+        {
+            this.tagPrefix = tagPrefix;
+            this.name = name;
+            this.labelSets = new SeriesTable();
+            this.warned = false;
+            reset();
+        }
+
+        void fold(final boolean doubleValue, final long longValue, final double dblValue)
+        {
+            folded += 1;
+            if (doubleValue || isDouble) {
+                if (!isDouble) {
+                    isDouble = true;
+                    doubleSum = longSum;
+                }
+                doubleSum += doubleValue ? dblValue : longValue;
+            }
+            else {
+                longSum += longValue;
+            }
+        }
+
+        void reset()
+        {
+            folded = 0;
+            isDouble = false;
+            longSum = 0L;
+            doubleSum = 0.0;
+        }
+    }
+
+    private final int limit;
+    private final int expireTicks;
+
+    // (prefix, name) -> index of states
+    private final SeriesTable names;
+    private final List<NameState> states;
+
+    CardinalityGuard(final int limit, final int expireTicks)
+    {
+        this.limit = limit;
+        this.expireTicks = expireTicks;
+        this.names = new SeriesTable();
+        this.states = new ArrayList<>();
+    }
+
+    // returns null if the series is admitted, or the state of the name to fold the value into
+    NameState admit(final String tagPrefix, final String name, final long labelsHash, final int tick)
+    {
+        int slot = names.insert(SeriesTable.hashSeries(tagPrefix, name, 0L));
+        NameState state;
+        if (slot < 0) {
+            state = new NameState(tagPrefix, name);
+            names.value(-slot - 1, states.size());
+            states.add(state);
+        }
+        else {
+            state = states.get((int) names.value(slot));
+        }
+
+        SeriesTable labelSets = state.labelSets;
+        int labelSlot = labelSets.find(labelsHash);
+        if (labelSlot < 0) {
+            if (labelSets.size() >= limit) {
+                return state;
+            }
+            labelSlot = -labelSets.insert(labelsHash) - 1;
+        }
+        labelSets.tick(labelSlot, tick);
+        return null;
+    }
+
+    List<NameState> states()
+    {
+        return states;
+    }
+
+    void expire(final int tick)
+    {
+        for (NameState state : states) {
+            state.labelSets.expire(tick - expireTicks);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Checkpoint file of counter baselines and last emitted fingerprints of MetricMonitor, to continue delta computation
+// (and change-only mode) across process restarts. The file is replaced atomically: written into a temporary file
+// in the same directory, and renamed. Times are stored as epoch nanoseconds, because Clock (System.nanoTime) values
+// are not comparable between processes.
+// Not thread-safe: this class is expected to be used only from the monitor thread.
+class CounterCheckpoint
+{
+    private static final int MAGIC = 0x42444343; // "BDCC"
+    private static final int VERSION = 1;
+
+    private final Path path;
+    private final Path temporaryPath;
+
+    CounterCheckpoint(final Path path)
+    {
+        this.path = path;
+        this.temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    Path getPath()
+    {
+        return path;
+    }
+
+    void save(final SeriesTable counters, final SeriesTable lastEmitted, final long nowNanos, final long nowEpochNanos)
+            throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryPath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(counters.size());
+            for (int slot = 0; slot < counters.capacity(); slot++) {
+                if (counters.isUsed(slot)) {
+                    out.writeLong(counters.key(slot));
+                    out.writeByte(counters.kind(slot));
+                    out.writeLong(counters.value(slot));
+                    out.writeLong(counters.time(slot) - nowNanos + nowEpochNanos);
+                }
+            }
+            out.writeInt(lastEmitted.size());
+            for (int slot = 0; slot < lastEmitted.capacity(); slot++) {
+                if (lastEmitted.isUsed(slot)) {
+                    out.writeLong(lastEmitted.key(slot));
+                    out.writeLong(lastEmitted.value(slot));
+                }
+            }
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // returns false if no checkpoint exists. Loaded entries get the specified tick, to be expired as usual.
+    boolean load(final SeriesTable counters, final SeriesTable lastEmitted, final long nowNanos, final long nowEpochNanos, final int tick)
+            throws IOException
+    {
+        if (!Files.exists(path)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid counter checkpoint file:" + path);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int slot = insert(counters, in.readLong());
+                counters.kind(slot, in.readByte());
+                counters.value(slot, in.readLong());
+                counters.time(slot, in.readLong() - nowEpochNanos + nowNanos);
+                counters.tick(slot, tick);
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int slot = insert(lastEmitted, in.readLong());
+                lastEmitted.value(slot, in.readLong());
+                lastEmitted.tick(slot, tick);
+            }
+        }
+        return true;
+    }
+
+    private static int insert(final SeriesTable table, final long key)
+    {
+        int slot = table.insert(key);
+        return slot < 0 ? -slot - 1 : slot;
+    }
+}
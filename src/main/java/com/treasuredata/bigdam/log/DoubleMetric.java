@@ -0,0 +1,56 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+public final class DoubleMetric
+        extends PrimitiveMetric
+{
+    private static final AtomicLongFieldUpdater<DoubleMetric> UPDATER = AtomicLongFieldUpdater.newUpdater(DoubleMetric.class, "bits");
+
+    // value is stored as bits to update it atomically
+    private volatile long bits;
+
+    public DoubleMetric(final String name)
+    {
+        this(name, Labels.EMPTY);
+    }
+
+    public DoubleMetric(final String name, final Labels labels)
+    {
+        super(name, labels);
+        this.bits = Double.doubleToLongBits(0.0);
+    }
+
+    public double get()
+    {
+        return Double.longBitsToDouble(bits);
+    }
+
+    public void set(final double v)
+    {
+        bits = Double.doubleToLongBits(v);
+    }
+
+    public double add(final double delta)
+    {
+        while (true) {
+            long current = bits;
+            double next = Double.longBitsToDouble(current) + delta;
+            if (UPDATER.compareAndSet(this, current, Double.doubleToLongBits(next))) {
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public boolean isDouble()
+    {
+        return true;
+    }
+
+    @Override
+    long bits()
+    {
+        return bits;
+    }
+}
@@ -0,0 +1,171 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+
+import io.sentry.event.Breadcrumb;
+import io.sentry.event.BreadcrumbBuilder;
+
+// Fixed-capacity ring of the last log calls of all levels (including ones below Fluentd/Sentry thresholds),
+// attached to Sentry reports as breadcrumbs, and dumpable into a file.
+// Entries are stored in preallocated columns (time, level, logger, message, error class) without allocations.
+// Writers are lock-free: a slot is claimed by a sequence number, and published by writing the sequence after fields.
+// Readers skip slots being written (or overwritten while reading), so a snapshot may miss the latest entries.
+// Messages are stored as-is, and scrubbed (see SecretScrubber) only when these leave the process as breadcrumbs or dumps.
+class FlightRecorder
+{
+    private static final long WRITING = -1L;
+    private static final String[] LEVEL_NAMES = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+    private static final Breadcrumb.Level[] BREADCRUMB_LEVELS = {
+            Breadcrumb.Level.DEBUG, Breadcrumb.Level.DEBUG, Breadcrumb.Level.INFO, Breadcrumb.Level.WARNING, Breadcrumb.Level.ERROR,
+    };
+
+    static class Entry
+    {
+        final long timeMillis;
+        final int level;
+        final String logger;
+        final String message;
+        final String errorClass;
+
+        Entry(final long timeMillis, final int level, final String logger, final String message, final String errorClass)
+        {
+            this.timeMillis = timeMillis;
+            this.level = level;
+            this.logger = logger;
+            this.message = message;
+            this.errorClass = errorClass;
+        }
+    }
+
+    private final int mask;
+    private final AtomicLong nextSequence;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray times;
+    private final AtomicIntegerArray levels;
+    private final AtomicReferenceArray<String> loggers;
+    private final AtomicReferenceArray<String> messages;
+    private final AtomicReferenceArray<String> errorClasses;
+    private final UnaryOperator<String> scrubber;
+
+    FlightRecorder(final int capacity)
+    {
+        this(capacity, UnaryOperator.identity());
+    }
+
+    FlightRecorder(final int capacity, final UnaryOperator<String> scrubber)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of flight recorder must be a positive integer:" + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.nextSequence = new AtomicLong(0L);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, WRITING); // empty slots are skipped as slots being written
+        }
+        this.times = new AtomicLongArray(size);
+        this.levels = new AtomicIntegerArray(size);
+        this.loggers = new AtomicReferenceArray<>(size);
+        this.messages = new AtomicReferenceArray<>(size);
+        this.errorClasses = new AtomicReferenceArray<>(size);
+        this.scrubber = scrubber;
+    }
+
+    int capacity()
+    {
+        return mask + 1;
+    }
+
+    // level is one of Log.LOG_SERVICE_LEVEL_THRESHOLD_* (0: trace, ..., 4: error)
+    void record(final int level, final String logger, final String message, final Throwable e)
+    {
+        long sequence = nextSequence.getAndIncrement();
+        int slot = (int) sequence & mask;
+        sequences.set(slot, WRITING);
+        times.lazySet(slot, System.currentTimeMillis());
+        levels.lazySet(slot, level);
+        loggers.lazySet(slot, logger);
+        messages.lazySet(slot, message);
+        errorClasses.lazySet(slot, e == null ? null : e.getClass().getName());
+        sequences.lazySet(slot, sequence);
+    }
+
+    // entries from the oldest to the latest
+    List<Entry> snapshot()
+    {
+        long end = nextSequence.get();
+        long start = Math.max(0L, end - capacity());
+        List<Entry> entries = new ArrayList<>((int) (end - start));
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            if (sequences.get(slot) != sequence) {
+                continue;
+            }
+            Entry entry = new Entry(times.get(slot), levels.get(slot), loggers.get(slot), messages.get(slot), errorClasses.get(slot));
+            if (sequences.get(slot) == sequence) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    List<Breadcrumb> breadcrumbs()
+    {
+        List<Entry> entries = snapshot();
+        List<Breadcrumb> breadcrumbs = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            BreadcrumbBuilder builder = new BreadcrumbBuilder()
+                    .setTimestamp(new Date(entry.timeMillis))
+                    .setLevel(BREADCRUMB_LEVELS[entry.level])
+                    .setCategory(entry.logger)
+                    .setMessage(scrubber.apply(entry.message));
+            if (entry.errorClass != null) {
+                builder.setData(ImmutableMap.of("errorClass", entry.errorClass));
+            }
+            breadcrumbs.add(builder.build());
+        }
+        return breadcrumbs;
+    }
+
+    // a line per entry: "<ISO-8601 time> <LEVEL> <logger> <message>[ (<error class>)]"
+    void dump(final Path path)
+            throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (Entry entry : snapshot()) {
+                writer.write(Instant.ofEpochMilli(entry.timeMillis).toString());
+                writer.write(' ');
+                writer.write(LEVEL_NAMES[entry.level]);
+                writer.write(' ');
+                writer.write(entry.logger);
+                writer.write(' ');
+                writer.write(String.valueOf(scrubber.apply(entry.message)));
+                if (entry.errorClass != null) {
+                    writer.write(" (");
+                    writer.write(entry.errorClass);
+                    writer.write(')');
+                }
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import org.komamitsu.fluency.Fluency;
+import org.komamitsu.fluency.buffer.Buffer;
+import org.komamitsu.fluency.sender.SenderErrorHandler;
+
+// Balancing of events over Fluentd forward endpoints, each of which has its own Fluency client (buffer and flusher),
+// so that a slow aggregator backs up only its own buffer.
+// - WEIGHTED_ROUND_ROBIN: smooth weighted round-robin (as nginx) over a schedule of healthy endpoints, lock-free
+//   (the schedule is recomputed when health of endpoints changes)
+// - LEAST_OUTSTANDING: the endpoint with the least buffered (not yet flushed) bytes, which grow on slow endpoints
+// Endpoints are checked actively by TCP connects (and buffer usage) in the interval, and marked as unhealthy
+// passively when Fluency fails to send buffered events (emits only buffer, and don't fail on closed endpoints)
+// or emits fail. Events are sent to healthy endpoints, and failed over to others if emits fail.
+// If no endpoints are healthy, events are still buffered by the selected endpoint, to be retried by Fluency.
+public final class FluentdBalancer
+        implements FluentdEmitter
+{
+    public enum Strategy
+    {
+        WEIGHTED_ROUND_ROBIN, LEAST_OUTSTANDING
+    }
+
+    public static final class Endpoint
+    {
+        private final String host;
+        private final int port;
+        private final int weight;
+
+        public Endpoint(final String host, final int port)
+        {
+            this(host, port, 1);
+        }
+
+        public Endpoint(final String host, final int port, final int weight)
+        {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight of Fluentd endpoint must be a positive integer:" + weight);
+            }
+            this.host = host;
+            this.port = port;
+            this.weight = weight;
+        }
+
+        public String getHost()
+        {
+            return host;
+        }
+
+        public int getPort()
+        {
+            return port;
+        }
+
+        public int getWeight()
+        {
+            return weight;
+        }
+
+        @Override
+        public String toString()
+        {
+            return host + ":" + port;
+        }
+    }
+
+    // creates a Fluency client of an endpoint, which reports errors of sending to the handler
+    @FunctionalInterface
+    public interface FluencyGetter
+    {
+        Fluency get(String host, int port, SenderErrorHandler senderErrorHandler);
+    }
+
+    static final long DEFAULT_HEALTH_CHECK_INTERVAL_MSEC = 5000L;
+    // endpoints with buffers used more than this are unhealthy, as these are too slow to catch up
+    private static final float MAX_BUFFER_USAGE = 0.9f;
+
+    static class Node
+    {
+        final Endpoint endpoint;
+        final Fluency fluency;
+        volatile boolean healthy;
+
+        Node(final Endpoint endpoint, final Fluency fluency)
+        {
+            this.endpoint = endpoint;
+            this.fluency = fluency;
+            this.healthy = true;
+        }
+    }
+
+    private final Node[] nodes;
+    private final Strategy strategy;
+    // indexes of nodes in the order of smooth weighted round-robin, of all nodes and of healthy ones
+    private final int[] schedule;
+    private volatile int[] healthySchedule;
+    private final AtomicLong sequence;
+    private final LongAdder failovers;
+
+    private final int connectTimeoutMillis;
+    private final ScheduledExecutorService healthChecker;
+
+    public FluentdBalancer(final List<Endpoint> endpoints, final Strategy strategy, final long healthCheckIntervalMillis, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        this(endpoints, strategy, healthCheckIntervalMillis, (host, port, senderErrorHandler) -> fluencyGetter.apply(host, port));
+    }
+
+    public FluentdBalancer(final List<Endpoint> endpoints, final Strategy strategy, final long healthCheckIntervalMillis, final FluencyGetter fluencyGetter)
+    {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No Fluentd endpoints are specified");
+        }
+        if (healthCheckIntervalMillis < 1) {
+            throw new IllegalArgumentException("Health check interval of Fluentd endpoints must be a positive integer:" + healthCheckIntervalMillis);
+        }
+        this.nodes = new Node[endpoints.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            Endpoint endpoint = endpoints.get(i);
+            int index = i;
+            nodes[i] = new Node(endpoint, fluencyGetter.get(endpoint.getHost(), endpoint.getPort(), e -> senderFailed(index)));
+        }
+        this.strategy = strategy;
+        this.schedule = schedule(endpoints);
+        this.healthySchedule = schedule;
+        this.sequence = new AtomicLong(0L);
+        this.failovers = new LongAdder();
+        this.connectTimeoutMillis = (int) Math.min(healthCheckIntervalMillis, 1000L);
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "bigdam-log-fluentd-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static int[] schedule(final List<Endpoint> endpoints)
+    {
+        boolean[] included = new boolean[endpoints.size()];
+        Arrays.fill(included, true);
+        return schedule(endpoints, included);
+    }
+
+    static int[] schedule(final List<Endpoint> endpoints, final boolean[] included)
+    {
+        int total = 0;
+        for (int i = 0; i < included.length; i++) {
+            if (included[i]) {
+                total += endpoints.get(i).getWeight();
+            }
+        }
+        int[] schedule = new int[total];
+        int[] current = new int[endpoints.size()];
+        for (int s = 0; s < total; s++) {
+            int best = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (!included[i]) {
+                    continue;
+                }
+                current[i] += endpoints.get(i).getWeight();
+                if (best < 0 || current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[s] = best;
+        }
+        return schedule;
+    }
+
+    private void setHealthy(final Node node, final boolean healthy)
+    {
+        if (node.healthy == healthy) {
+            return;
+        }
+        synchronized (this) {
+            node.healthy = healthy;
+            List<Endpoint> endpoints = new ArrayList<>(nodes.length);
+            boolean[] included = new boolean[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                endpoints.add(nodes[i].endpoint);
+                included[i] = nodes[i].healthy;
+            }
+            healthySchedule = schedule(endpoints, included);
+        }
+    }
+
+    // called by flusher threads of Fluency, when sending buffered events fails (after retries)
+    private void senderFailed(final int index)
+    {
+        Node node = nodes[index];
+        if (node != null) {
+            setHealthy(node, false);
+        }
+    }
+
+    @Override
+    public void emit(final String tag, final long time, final Map<String, Object> event)
+            throws IOException
+    {
+        Node selected = select();
+        try {
+            selected.fluency.emit(tag, time, event);
+            return;
+        }
+        catch (IOException e) {
+            setHealthy(selected, false);
+            failovers.increment();
+            // try other healthy endpoints, and then unhealthy ones (these may be recovered)
+            boolean[] tried = new boolean[nodes.length];
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < nodes.length; i++) {
+                    Node node = nodes[i];
+                    if (node == selected || tried[i] || node.healthy != (pass == 0)) {
+                        continue;
+                    }
+                    tried[i] = true;
+                    try {
+                        node.fluency.emit(tag, time, event);
+                        return;
+                    }
+                    catch (IOException ex) {
+                        setHealthy(node, false);
+                        e.addSuppressed(ex);
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    Node select()
+    {
+        long seq = sequence.getAndIncrement();
+        if (strategy == Strategy.LEAST_OUTSTANDING) {
+            Node best = null;
+            long bestBuffered = Long.MAX_VALUE;
+            // starting at a rotating offset, to spread events over idle endpoints
+            for (int i = 0; i < nodes.length; i++) {
+                Node node = nodes[(int) ((seq + i) % nodes.length)];
+                if (!node.healthy) {
+                    continue;
+                }
+                long buffered = node.fluency.getBufferedDataSize();
+                if (buffered < bestBuffered) {
+                    best = node;
+                    bestBuffered = buffered;
+                }
+            }
+            return best != null ? best : nodes[(int) (seq % nodes.length)];
+        }
+        int[] healthy = healthySchedule;
+        if (healthy.length > 0) {
+            return nodes[healthy[(int) (seq % healthy.length)]];
+        }
+        return nodes[schedule[(int) (seq % schedule.length)]];
+    }
+
+    void checkHealth()
+    {
+        for (Node node : nodes) {
+            setHealthy(node, isReachable(node.endpoint) && !isBufferFull(node.fluency));
+        }
+    }
+
+    private boolean isReachable(final Endpoint endpoint)
+    {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(endpoint.getHost(), endpoint.getPort()), connectTimeoutMillis);
+            return true;
+        }
+        catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBufferFull(final Fluency fluency)
+    {
+        Buffer buffer = fluency.getBuffer();
+        return buffer != null && buffer.getBufferUsage() > MAX_BUFFER_USAGE;
+    }
+
+    @Override
+    public List<Fluency> getFluencies()
+    {
+        List<Fluency> fluencies = new ArrayList<>(nodes.length);
+        for (Node node : nodes) {
+            fluencies.add(node.fluency);
+        }
+        return fluencies;
+    }
+
+    Node[] getNodes()
+    {
+        return nodes;
+    }
+
+    public int getHealthyEndpoints()
+    {
+        int healthy = 0;
+        for (Node node : nodes) {
+            if (node.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public long getFailovers()
+    {
+        return failovers.sum();
+    }
+
+    @Override
+    public void addMetrics(final Map<String, Object> metrics)
+    {
+        metrics.put("fluentd.endpoints.healthy", (long) getHealthyEndpoints());
+        metrics.put("fluentd.failovers", getFailovers());
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        healthChecker.shutdownNow();
+        IOException error = null;
+        for (Node node : nodes) {
+            try {
+                node.fluency.close();
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.komamitsu.fluency.Fluency;
+
+// Emitters of Fluentd events over multiple Fluency clients (FluentdBalancer, FluentdShards)
+interface FluentdEmitter
+        extends Closeable
+{
+    void emit(String tag, long time, Map<String, Object> event)
+            throws IOException;
+
+    List<Fluency> getFluencies();
+
+    // metrics specific to the emitter, in addition to ones of Fluency clients
+    default void addMetrics(final Map<String, Object> metrics)
+    {
+    }
+}
@@ -0,0 +1,383 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import org.komamitsu.fluency.Fluency;
+
+// Routing of events to named sinks (Fluentd endpoints) by tags, e.g., metric tags to an aggregator for metrics.
+// Routes are checked in order, and the first route matching the tag is used. Patterns are of Fluentd <match>:
+// - "a.b":  the exact tag
+// - "a.*":  "*" matches a part of tags (without '.'), also in parts like "a.metric_*"
+// - "a.**": "**" matches zero or more parts, so prefixes are written as "a.**" (matching "a" and "a.b.c")
+// A route has zero (drop), one or more (duplicate) sinks. Events of tags matching no routes are dropped.
+// Exact patterns are compiled into a hash table, and globs into segments matched without allocation.
+// Resolved routes are cached per tag (up to maxCachedTags), so routing of known tags is a single lookup.
+public final class FluentdRouter
+        implements FluentdEmitter
+{
+    public static final class Route
+    {
+        private final String pattern;
+        private final List<String> sinks;
+
+        public Route(final String pattern, final String... sinks)
+        {
+            this(pattern, Arrays.asList(sinks));
+        }
+
+        public Route(final String pattern, final List<String> sinks)
+        {
+            if (pattern == null || pattern.isEmpty()) {
+                throw new IllegalArgumentException("Pattern of Fluentd route is not specified");
+            }
+            this.pattern = pattern;
+            this.sinks = ImmutableList.copyOf(sinks);
+        }
+
+        public static Route drop(final String pattern)
+        {
+            return new Route(pattern, ImmutableList.of());
+        }
+
+        public String getPattern()
+        {
+            return pattern;
+        }
+
+        public List<String> getSinks()
+        {
+            return sinks;
+        }
+
+        @Override
+        public String toString()
+        {
+            return pattern + " -> " + sinks;
+        }
+    }
+
+    static final int DEFAULT_MAX_CACHED_TAGS = 4096;
+
+    private static final FluentdEmitter[] NO_SINKS = new FluentdEmitter[0];
+    private static final String ANY_PARTS = "**";
+
+    static class Glob
+    {
+        final int route;
+        // literal head of the pattern, which all matching tags start with
+        final String prefix;
+        final String[] segments;
+
+        Glob(final int route, final String pattern)
+        {
+            this.route = route;
+            this.segments = pattern.split("\\.", -1);
+            for (String segment : segments) {
+                if (segment.contains(ANY_PARTS) && !segment.equals(ANY_PARTS)) {
+                    throw new IllegalArgumentException("'**' must be a whole part of Fluentd route patterns:" + pattern);
+                }
+            }
+            int star = pattern.indexOf('*');
+            String head = pattern.substring(0, star);
+            // "a.**" matches "a" too
+            if (pattern.startsWith(ANY_PARTS, star) && head.endsWith(".")) {
+                head = head.substring(0, head.length() - 1);
+            }
+            this.prefix = head;
+        }
+
+        boolean matches(final String tag)
+        {
+            return tag.startsWith(prefix) && matches(0, tag, 0);
+        }
+
+        // matches segments from the index with parts of the tag from the position (tag.length() + 1 after the last part)
+        private boolean matches(final int index, final String tag, final int start)
+        {
+            int length = tag.length();
+            if (index == segments.length) {
+                return start > length;
+            }
+            String segment = segments[index];
+            if (segment.equals(ANY_PARTS)) {
+                int next = start;
+                while (true) {
+                    if (matches(index + 1, tag, next)) {
+                        return true;
+                    }
+                    if (next > length) {
+                        return false;
+                    }
+                    next = partEnd(tag, next) + 1;
+                }
+            }
+            if (start > length) {
+                return false;
+            }
+            int end = partEnd(tag, start);
+            return matchesPart(segment, 0, tag, start, end) && matches(index + 1, tag, end + 1);
+        }
+
+        private static int partEnd(final String tag, final int start)
+        {
+            int end = tag.indexOf('.', start);
+            return end < 0 ? tag.length() : end;
+        }
+
+        private static boolean matchesPart(final String segment, int s, final String tag, int t, final int end)
+        {
+            while (s < segment.length()) {
+                char c = segment.charAt(s);
+                if (c == '*') {
+                    for (int i = t; i <= end; i++) {
+                        if (matchesPart(segment, s + 1, tag, i, end)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+                if (t == end || tag.charAt(t) != c) {
+                    return false;
+                }
+                s++;
+                t++;
+            }
+            return t == end;
+        }
+    }
+
+    // a sink of a single Fluency client
+    private static class FluencySink
+            implements FluentdEmitter
+    {
+        private final Fluency fluency;
+
+        FluencySink(final Fluency fluency)
+        {
+            this.fluency = fluency;
+        }
+
+        @Override
+        public void emit(final String tag, final long time, final Map<String, Object> event)
+                throws IOException
+        {
+            fluency.emit(tag, time, event);
+        }
+
+        @Override
+        public List<Fluency> getFluencies()
+        {
+            return ImmutableList.of(fluency);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            fluency.close();
+        }
+    }
+
+    private final Map<String, FluentdEmitter> sinks;
+    private final List<Route> routes;
+    // sinks of routes, in the order of routes
+    private final FluentdEmitter[][] targets;
+    // the first route of each exact pattern, and glob routes in order
+    private final Map<String, Integer> exactRoutes;
+    private final Glob[] globs;
+
+    private final ConcurrentMap<String, FluentdEmitter[]> cache;
+    private final int maxCachedTags;
+    private final LongAdder dropped;
+
+    public FluentdRouter(final Map<String, FluentdBalancer.Endpoint> endpoints, final List<Route> routes, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        this(endpoints, routes, DEFAULT_MAX_CACHED_TAGS, fluencyGetter);
+    }
+
+    public FluentdRouter(final Map<String, FluentdBalancer.Endpoint> endpoints, final List<Route> routes, final int maxCachedTags, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        this(openSinks(endpoints, routes, fluencyGetter), routes, maxCachedTags);
+    }
+
+    FluentdRouter(final Map<String, FluentdEmitter> sinks, final List<Route> routes, final int maxCachedTags)
+    {
+        checkSinks(sinks.keySet(), routes);
+        if (maxCachedTags < 0) {
+            throw new IllegalArgumentException("Number of cached tags of Fluentd routes must not be negative:" + maxCachedTags);
+        }
+        this.sinks = ImmutableMap.copyOf(sinks);
+        this.routes = ImmutableList.copyOf(routes);
+        this.targets = new FluentdEmitter[routes.size()][];
+        Map<String, Integer> exact = new HashMap<>();
+        List<Glob> globList = new ArrayList<>();
+        for (int i = 0; i < routes.size(); i++) {
+            Route route = routes.get(i);
+            targets[i] = route.getSinks().stream().distinct().map(sinks::get).toArray(FluentdEmitter[]::new);
+            if (route.getPattern().indexOf('*') < 0) {
+                exact.putIfAbsent(route.getPattern(), i);
+            }
+            else {
+                globList.add(new Glob(i, route.getPattern()));
+            }
+        }
+        this.exactRoutes = exact;
+        this.globs = globList.toArray(new Glob[0]);
+        this.cache = new ConcurrentHashMap<>();
+        this.maxCachedTags = maxCachedTags;
+        this.dropped = new LongAdder();
+    }
+
+    private static void checkSinks(final Set<String> names, final List<Route> routes)
+    {
+        for (Route route : routes) {
+            for (String sink : route.getSinks()) {
+                if (!names.contains(sink)) {
+                    throw new IllegalArgumentException("Unknown sink of Fluentd route " + route + ":" + sink);
+                }
+            }
+        }
+    }
+
+    private static Map<String, FluentdEmitter> openSinks(final Map<String, FluentdBalancer.Endpoint> endpoints, final List<Route> routes, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        // checked before connecting to endpoints, not to leak clients
+        checkSinks(endpoints.keySet(), routes);
+        ImmutableMap.Builder<String, FluentdEmitter> builder = ImmutableMap.builder();
+        for (Map.Entry<String, FluentdBalancer.Endpoint> pair : endpoints.entrySet()) {
+            FluentdBalancer.Endpoint endpoint = pair.getValue();
+            builder.put(pair.getKey(), new FluencySink(fluencyGetter.apply(endpoint.getHost(), endpoint.getPort())));
+        }
+        return builder.build();
+    }
+
+    // sinks of the tag (an empty array to drop events), without allocation for cached tags
+    FluentdEmitter[] resolve(final String tag)
+    {
+        FluentdEmitter[] resolved = cache.get(tag);
+        if (resolved == null) {
+            resolved = match(tag);
+            // tags over the limit (e.g., generated ones) are matched every time, not to grow the cache unboundedly
+            if (cache.size() < maxCachedTags) {
+                cache.putIfAbsent(tag, resolved);
+            }
+        }
+        return resolved;
+    }
+
+    private FluentdEmitter[] match(final String tag)
+    {
+        Integer exact = exactRoutes.get(tag);
+        int limit = exact == null ? targets.length : exact;
+        for (Glob glob : globs) {
+            if (glob.route >= limit) {
+                break;
+            }
+            if (glob.matches(tag)) {
+                return targets[glob.route];
+            }
+        }
+        return exact == null ? NO_SINKS : targets[exact];
+    }
+
+    @Override
+    public void emit(final String tag, final long time, final Map<String, Object> event)
+            throws IOException
+    {
+        FluentdEmitter[] resolved = resolve(tag);
+        if (resolved.length == 0) {
+            dropped.increment();
+            return;
+        }
+        if (resolved.length == 1) {
+            resolved[0].emit(tag, time, event);
+            return;
+        }
+        // duplicated to all sinks, even if some of these fail
+        IOException error = null;
+        for (FluentdEmitter sink : resolved) {
+            try {
+                sink.emit(tag, time, event);
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    public List<Route> getRoutes()
+    {
+        return routes;
+    }
+
+    public long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    int cachedTags()
+    {
+        return cache.size();
+    }
+
+    @Override
+    public List<Fluency> getFluencies()
+    {
+        List<Fluency> fluencies = new ArrayList<>();
+        for (FluentdEmitter sink : sinks.values()) {
+            fluencies.addAll(sink.getFluencies());
+        }
+        return fluencies;
+    }
+
+    @Override
+    public void addMetrics(final Map<String, Object> metrics)
+    {
+        metrics.put("fluentd.routes.dropped", getDropped());
+        metrics.put("fluentd.routes.cached_tags", (long) cachedTags());
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        IOException error = null;
+        for (FluentdEmitter sink : sinks.values()) {
+            try {
+                sink.close();
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
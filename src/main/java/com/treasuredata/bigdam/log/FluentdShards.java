@@ -0,0 +1,104 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.komamitsu.fluency.Fluency;
+
+// Sharding of events over multiple Fluency clients (each has its own buffer, flusher and connection) to an endpoint,
+// not to serialize emits of many threads through a single buffer on many-core hosts.
+// - THREAD: shards are assigned to threads in round-robin, so events are ordered per thread
+// - TAG: shards are chosen by hashes of tags, so events are ordered per tag
+// With THREAD, events of orderedTags are still sharded by tags, to keep the order of these.
+public final class FluentdShards
+        implements FluentdEmitter
+{
+    public enum Key
+    {
+        THREAD, TAG
+    }
+
+    private final Fluency[] shards;
+    private final Key key;
+    private final Set<String> orderedTags;
+    private final AtomicInteger nextThreadShard;
+    private final ThreadLocal<Integer> threadShard;
+
+    public FluentdShards(final String host, final int port, final int shards, final Key key, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        this(host, port, shards, key, ImmutableSet.of(), fluencyGetter);
+    }
+
+    public FluentdShards(final String host, final int port, final int shards, final Key key, final Collection<String> orderedTags, final BiFunction<String, Integer, Fluency> fluencyGetter)
+    {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of Fluentd shards must be a positive integer:" + shards);
+        }
+        this.shards = new Fluency[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = fluencyGetter.apply(host, port);
+        }
+        this.key = key;
+        this.orderedTags = ImmutableSet.copyOf(orderedTags);
+        this.nextThreadShard = new AtomicInteger(0);
+        this.threadShard = ThreadLocal.withInitial(() -> Math.floorMod(nextThreadShard.getAndIncrement(), shards));
+    }
+
+    int shardOf(final String tag)
+    {
+        if (key == Key.TAG || (!orderedTags.isEmpty() && orderedTags.contains(tag))) {
+            return (int) ((SeriesTable.mix(tag.hashCode()) >>> 1) % shards.length);
+        }
+        return threadShard.get();
+    }
+
+    @Override
+    public void emit(final String tag, final long time, final Map<String, Object> event)
+            throws IOException
+    {
+        shards[shardOf(tag)].emit(tag, time, event);
+    }
+
+    @Override
+    public List<Fluency> getFluencies()
+    {
+        return ImmutableList.copyOf(shards);
+    }
+
+    @Override
+    public void addMetrics(final Map<String, Object> metrics)
+    {
+        metrics.put("fluentd.shards", (long) shards.length);
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        IOException error = null;
+        for (Fluency shard : shards) {
+            try {
+                shard.close();
+            }
+            catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+                else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
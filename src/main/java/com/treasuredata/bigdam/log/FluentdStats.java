@@ -0,0 +1,83 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.komamitsu.fluency.Fluency;
+import org.komamitsu.fluency.buffer.Buffer;
+
+// Health statistics of the Fluentd client (Fluency): buffer sizes, emit results/latency and sender errors
+class FluentdStats
+{
+    private final LongAdder emitSuccess;
+    private final LongAdder emitFailure;
+    private final LongAdder senderErrors;
+
+    // cumulative latency of emits (success and failure)
+    private final LongAdder emitLatencySum;
+
+    FluentdStats()
+    {
+        this.emitSuccess = new LongAdder();
+        this.emitFailure = new LongAdder();
+        this.senderErrors = new LongAdder();
+        this.emitLatencySum = new LongAdder();
+    }
+
+    void emitted(final boolean success, final long latencyNanos)
+    {
+        if (success) {
+            emitSuccess.increment();
+        }
+        else {
+            emitFailure.increment();
+        }
+        emitLatencySum.add(latencyNanos);
+    }
+
+    void senderError()
+    {
+        senderErrors.increment();
+    }
+
+    // Counts and the latency sum are cumulative, so producing has no side effects and any number of consumers
+    // (MetricMonitor, Prometheus scrapes) can read these. The average latency of an interval is
+    // the delta of latency_sum_us divided by the deltas of emit success and failure.
+    Map<String, Object> produce(final Fluency fluency)
+    {
+        return produceAll(fluency == null ? ImmutableList.of() : ImmutableList.of(fluency));
+    }
+
+    // buffer sizes are sums over clients (of balanced endpoints), and the usage is the maximum of these
+    Map<String, Object> produceAll(final List<Fluency> fluencies)
+    {
+        Map<String, Object> metrics = new HashMap<>();
+        if (!fluencies.isEmpty()) {
+            long buffered = 0L;
+            long allocated = 0L;
+            Float usage = null;
+            for (Fluency fluency : fluencies) {
+                buffered += fluency.getBufferedDataSize();
+                allocated += fluency.getAllocatedBufferSize();
+                Buffer buffer = fluency.getBuffer();
+                if (buffer != null && (usage == null || buffer.getBufferUsage() > usage)) {
+                    usage = buffer.getBufferUsage();
+                }
+            }
+            metrics.put("fluentd.buffer.buffered_bytes", buffered);
+            metrics.put("fluentd.buffer.allocated_bytes", allocated);
+            if (usage != null) {
+                metrics.put("fluentd.buffer.usage", (double) usage);
+            }
+        }
+        metrics.put("fluentd.emit.success", emitSuccess.sum());
+        metrics.put("fluentd.emit.failure", emitFailure.sum());
+        metrics.put("fluentd.sender.errors", senderErrors.sum());
+        metrics.put("fluentd.emit.latency_sum_us", emitLatencySum.sum() / 1000L);
+        return metrics;
+    }
+}
@@ -0,0 +1,167 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of non-negative long values (e.g., latency in microseconds) with power-of-2 buckets.
+// Bucket 0 is for values <= 0, and bucket b (1..63) is for values in [2^(b-1), 2^b - 1].
+// MetricMonitor drains recorded values in every tick, and emits count/sum/max/percentiles of these.
+// Buckets and sum are cumulative (drained as differences from the last drain), so these can also be
+// exported as they are (e.g., to Prometheus) without disturbing ticks.
+public final class HistogramMetric
+{
+    static final int BUCKETS = 64;
+
+    private final String name;
+    private final Labels labels;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    // cumulative values at the last drain, only accessed by the draining thread
+    private final long[] drainedBuckets;
+    private long drainedSum;
+
+    public HistogramMetric(final String name)
+    {
+        this(name, Labels.EMPTY);
+    }
+
+    public HistogramMetric(final String name, final Labels labels)
+    {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Metric name must not be empty");
+        }
+        this.name = name;
+        this.labels = labels == null ? Labels.EMPTY : labels;
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.sum = new LongAdder();
+        this.max = new AtomicLong(0L);
+        this.drainedBuckets = new long[BUCKETS];
+        this.drainedSum = 0L;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Labels getLabels()
+    {
+        return labels;
+    }
+
+    public void record(final long value)
+    {
+        buckets.incrementAndGet(bucketOf(value));
+        if (value > 0) {
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+    }
+
+    static int bucketOf(final long value)
+    {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    // inclusive upper bound of values in the bucket
+    public static long upperBoundOf(final int bucket)
+    {
+        if (bucket == 0) {
+            return 0L;
+        }
+        if (bucket >= 63) {
+            return Long.MAX_VALUE;
+        }
+        return (1L << bucket) - 1;
+    }
+
+    // moves values recorded since the last call into the snapshot (values recorded concurrently may go to the next one)
+    void drainTo(final Snapshot snapshot)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long total = buckets.get(i);
+            long c = total - drainedBuckets[i];
+            drainedBuckets[i] = total;
+            snapshot.buckets[i] += c;
+            snapshot.count += c;
+        }
+        long total = sum.sum();
+        snapshot.sum += total - drainedSum;
+        drainedSum = total;
+        snapshot.max = Math.max(snapshot.max, max.getAndSet(0L));
+    }
+
+    // cumulative counts of all buckets since creation
+    long[] totalBuckets()
+    {
+        long[] totals = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] = buckets.get(i);
+        }
+        return totals;
+    }
+
+    // cumulative sum of values since creation
+    long totalSum()
+    {
+        return sum.sum();
+    }
+
+    // mutable snapshot reused across ticks
+    static class Snapshot
+    {
+        final long[] buckets;
+        long count;
+        long sum;
+        long max;
+
+        Snapshot()
+        {
+            this.buckets = new long[BUCKETS];
+            clear();
+        }
+
+        void clear()
+        {
+            Arrays.fill(buckets, 0L);
+            count = 0L;
+            sum = 0L;
+            max = 0L;
+        }
+
+        void merge(final Snapshot other)
+        {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += other.buckets[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        // upper bound of the bucket which contains the q-quantile, capped by the max value
+        long percentile(final double q)
+        {
+            if (count == 0) {
+                return 0L;
+            }
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
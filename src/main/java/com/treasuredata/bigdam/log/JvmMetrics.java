@@ -0,0 +1,237 @@
+package com.treasuredata.bigdam.log;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// Metric producers of JVM runtime, built on platform MXBeans.
+// Cumulative values (GC count/time, compilation time, allocated bytes, ...) are expected to be registered
+// as counter producers, to be emitted as deltas and rates. JvmMetrics.register(monitor) does it.
+public class JvmMetrics
+{
+    private JvmMetrics()
+    {
+    }
+
+    public static void register(final MetricMonitor monitor)
+    {
+        monitor.addCounterProducer(gc());
+        monitor.addMetricProducer(memory());
+        monitor.addMetricProducer(memoryPools());
+        monitor.addMetricProducer(bufferPools());
+        monitor.addMetricProducer(threads());
+        monitor.addMetricProducer(classLoading());
+        monitor.addCounterProducer(classLoadingTotal());
+        monitor.addCounterProducer(compilation());
+        monitor.addCounterProducer(threadAllocation());
+    }
+
+    // cumulative: jvm.gc.count, jvm.gc.time_ms (label: gc)
+    public static MetricMonitor.ComplexMetricProducer gc()
+    {
+        List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(beans.size() * 2);
+            for (GarbageCollectorMXBean bean : beans) {
+                long count = bean.getCollectionCount();
+                long time = bean.getCollectionTime();
+                if (count >= 0) {
+                    metrics.add(new ComplexMetric("jvm.gc.count", count, "gc", bean.getName()));
+                }
+                if (time >= 0) {
+                    metrics.add(new ComplexMetric("jvm.gc.time_ms", time, "gc", bean.getName()));
+                }
+            }
+            return metrics;
+        };
+    }
+
+    // jvm.memory.used, jvm.memory.committed, jvm.memory.max (label: area = heap/nonheap)
+    public static MetricMonitor.ComplexMetricProducer memory()
+    {
+        MemoryMXBean bean = ManagementFactory.getMemoryMXBean();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(6);
+            addMemoryUsage(metrics, "jvm.memory.", "area", "heap", bean.getHeapMemoryUsage());
+            addMemoryUsage(metrics, "jvm.memory.", "area", "nonheap", bean.getNonHeapMemoryUsage());
+            return metrics;
+        };
+    }
+
+    // jvm.memory.pool.used, jvm.memory.pool.committed, jvm.memory.pool.max (label: pool)
+    public static MetricMonitor.ComplexMetricProducer memoryPools()
+    {
+        List<MemoryPoolMXBean> beans = ManagementFactory.getMemoryPoolMXBeans();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(beans.size() * 3);
+            for (MemoryPoolMXBean bean : beans) {
+                if (bean.isValid()) {
+                    addMemoryUsage(metrics, "jvm.memory.pool.", "pool", bean.getName(), bean.getUsage());
+                }
+            }
+            return metrics;
+        };
+    }
+
+    private static void addMemoryUsage(List<ComplexMetric> metrics, String prefix, String labelName, String labelValue, MemoryUsage usage)
+    {
+        if (usage == null) {
+            return;
+        }
+        metrics.add(new ComplexMetric(prefix + "used", usage.getUsed(), labelName, labelValue));
+        metrics.add(new ComplexMetric(prefix + "committed", usage.getCommitted(), labelName, labelValue));
+        if (usage.getMax() >= 0) { // -1 if undefined
+            metrics.add(new ComplexMetric(prefix + "max", usage.getMax(), labelName, labelValue));
+        }
+    }
+
+    // jvm.buffer.count, jvm.buffer.used, jvm.buffer.capacity (label: pool = direct/mapped)
+    public static MetricMonitor.ComplexMetricProducer bufferPools()
+    {
+        List<BufferPoolMXBean> beans = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(beans.size() * 3);
+            for (BufferPoolMXBean bean : beans) {
+                metrics.add(new ComplexMetric("jvm.buffer.count", bean.getCount(), "pool", bean.getName()));
+                metrics.add(new ComplexMetric("jvm.buffer.used", bean.getMemoryUsed(), "pool", bean.getName()));
+                metrics.add(new ComplexMetric("jvm.buffer.capacity", bean.getTotalCapacity(), "pool", bean.getName()));
+            }
+            return metrics;
+        };
+    }
+
+    // jvm.threads.count, jvm.threads.daemon, jvm.threads.peak, jvm.threads.state (label: state)
+    public static MetricMonitor.ComplexMetricProducer threads()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Thread.State[] states = Thread.State.values();
+        return () -> {
+            long[] counts = new long[states.length];
+            // maxDepth = 0: stack traces are not collected
+            for (ThreadInfo info : bean.getThreadInfo(bean.getAllThreadIds(), 0)) {
+                if (info != null) { // null for already terminated threads
+                    counts[info.getThreadState().ordinal()] += 1;
+                }
+            }
+            List<ComplexMetric> metrics = new ArrayList<>(3 + states.length);
+            metrics.add(new ComplexMetric("jvm.threads.count", (long) bean.getThreadCount(), Labels.EMPTY.asMap()));
+            metrics.add(new ComplexMetric("jvm.threads.daemon", (long) bean.getDaemonThreadCount(), Labels.EMPTY.asMap()));
+            metrics.add(new ComplexMetric("jvm.threads.peak", (long) bean.getPeakThreadCount(), Labels.EMPTY.asMap()));
+            for (Thread.State state : states) {
+                metrics.add(new ComplexMetric("jvm.threads.state", counts[state.ordinal()], "state", state.name().toLowerCase()));
+            }
+            return metrics;
+        };
+    }
+
+    // jvm.classes.loaded
+    public static MetricMonitor.ComplexMetricProducer classLoading()
+    {
+        ClassLoadingMXBean bean = ManagementFactory.getClassLoadingMXBean();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(1);
+            metrics.add(new ComplexMetric("jvm.classes.loaded", (long) bean.getLoadedClassCount(), Labels.EMPTY.asMap()));
+            return metrics;
+        };
+    }
+
+    // cumulative: jvm.classes.total_loaded, jvm.classes.unloaded
+    public static MetricMonitor.ComplexMetricProducer classLoadingTotal()
+    {
+        ClassLoadingMXBean bean = ManagementFactory.getClassLoadingMXBean();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(2);
+            metrics.add(new ComplexMetric("jvm.classes.total_loaded", bean.getTotalLoadedClassCount(), Labels.EMPTY.asMap()));
+            metrics.add(new ComplexMetric("jvm.classes.unloaded", bean.getUnloadedClassCount(), Labels.EMPTY.asMap()));
+            return metrics;
+        };
+    }
+
+    // cumulative: jvm.compilation.time_ms (nothing if JIT compiler is not available, or time monitoring is not supported)
+    public static MetricMonitor.ComplexMetricProducer compilation()
+    {
+        CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(1);
+            if (bean != null && bean.isCompilationTimeMonitoringSupported()) {
+                metrics.add(new ComplexMetric("jvm.compilation.time_ms", bean.getTotalCompilationTime(), "compiler", bean.getName()));
+            }
+            return metrics;
+        };
+    }
+
+    // cumulative: jvm.threads.allocated_bytes, total bytes allocated by threads (HotSpot only), and its rate is the allocation rate.
+    // Allocated bytes are tracked per thread, and only increments are summed up, so that terminated threads don't decrease the total.
+    public static MetricMonitor.ComplexMetricProducer threadAllocation()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return ArrayList::new;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+        if (!hotspot.isThreadAllocatedMemorySupported()) {
+            return ArrayList::new;
+        }
+        return new ThreadAllocationProducer(hotspot);
+    }
+
+    private static class ThreadAllocationProducer
+            implements MetricMonitor.ComplexMetricProducer
+    {
+        private final com.sun.management.ThreadMXBean bean;
+        // thread id -> last allocated bytes
+        private final SeriesTable lastAllocated;
+        private long total;
+        private int tick;
+
+        ThreadAllocationProducer(final com.sun.management.ThreadMXBean bean)
+        {
+            this.bean = bean;
+            this.lastAllocated = new SeriesTable();
+            this.total = 0L;
+            this.tick = 0;
+        }
+
+        @Override
+        public synchronized List<ComplexMetric> produce()
+        {
+            List<ComplexMetric> metrics = new ArrayList<>(1);
+            if (!bean.isThreadAllocatedMemoryEnabled()) {
+                return metrics;
+            }
+            tick += 1;
+            long[] ids = bean.getAllThreadIds();
+            long[] allocated = bean.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] < 0) { // -1 for terminated threads
+                    continue;
+                }
+                int slot = lastAllocated.insert(ids[i]);
+                long last = 0L;
+                if (slot < 0) {
+                    slot = -slot - 1;
+                }
+                else {
+                    last = lastAllocated.value(slot);
+                }
+                if (allocated[i] > last) {
+                    total += allocated[i] - last;
+                }
+                lastAllocated.value(slot, allocated[i]);
+                lastAllocated.tick(slot, tick);
+            }
+            lastAllocated.expire(tick);
+            metrics.add(new ComplexMetric("jvm.threads.allocated_bytes", total, Labels.EMPTY.asMap()));
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+
+// Immutable, validated and interned label set of metrics.
+// Labels are created once (typically with the metric) and reused in every tick, with the pre-computed hash.
+// Interned weakly, so that label sets of dynamic values are released with the metrics which have these.
+public final class Labels
+{
+    private static final Interner<Labels> INTERNER = Interners.newWeakInterner();
+
+    public static final Labels EMPTY = of(ImmutableMap.of());
+
+    private final ImmutableMap<String, Object> map;
+    private final long hash;
+
+    private Labels(final ImmutableMap<String, Object> map)
+    {
+        this.map = map;
+        this.hash = SeriesTable.hashLabels(map);
+    }
+
+    public static Labels of(final String k1, final Object v1)
+    {
+        return of(ImmutableMap.of(k1, v1));
+    }
+
+    public static Labels of(final String k1, final Object v1, final String k2, final Object v2)
+    {
+        return of(ImmutableMap.of(k1, v1, k2, v2));
+    }
+
+    public static Labels of(final String k1, final Object v1, final String k2, final Object v2, final String k3, final Object v3)
+    {
+        return of(ImmutableMap.of(k1, v1, k2, v2, k3, v3));
+    }
+
+    public static Labels of(final Map<String, ? extends Object> labels)
+    {
+        for (Map.Entry<String, ? extends Object> pair : labels.entrySet()) {
+            validate(pair.getKey(), pair.getValue());
+        }
+        return INTERNER.intern(new Labels(ImmutableMap.copyOf(labels)));
+    }
+
+    private static void validate(final String key, final Object value)
+    {
+        if (key == null || key.isEmpty()) {
+            throw new IllegalArgumentException("Label name must not be empty");
+        }
+        if (!(value instanceof String
+                || value instanceof Integer
+                || value instanceof Long
+                || value instanceof BigInteger
+                || value instanceof BigDecimal
+                || value instanceof Float
+                || value instanceof Double
+                || value instanceof Boolean)) {
+            throw new IllegalArgumentException("Invalid label value for " + key + ": " + value);
+        }
+    }
+
+    public Map<String, Object> asMap()
+    {
+        return map;
+    }
+
+    public boolean isEmpty()
+    {
+        return map.isEmpty();
+    }
+
+    long hash()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return other instanceof Labels && map.equals(((Labels) other).map);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return map.hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return map.toString();
+    }
+}
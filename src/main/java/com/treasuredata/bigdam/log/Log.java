@@ -2,26 +2,37 @@ package com.treasuredata.bigdam.log;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
 
 import java.io.IOException;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.komamitsu.fluency.EventTime;
 import org.komamitsu.fluency.Fluency;
+import org.komamitsu.fluency.sender.SenderErrorHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 // ch.qos.logback.classic.Logger
 import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.turbo.TurboFilter;
 
 import io.sentry.Sentry;
 import io.sentry.SentryClient;
@@ -46,6 +57,24 @@ public class Log
 
     private static final String SUBSECOND_TIME_FIELD = "stime";
 
+    private static final String[] LEVEL_NAMES = {"trace", "debug", "info", "warn", "error"};
+
+    // Effective levels of a Log instance are bits of (destination offset + LOG_SERVICE_LEVEL_THRESHOLD_*)
+    private static final int LEVEL_BITS_LOCAL = 0;
+    private static final int LEVEL_BITS_FLUENTD = 5;
+    private static final int LEVEL_BITS_SENTRY = 10;
+    private static final int LEVEL_BITS_RECORDER = 15;
+    private static final int LEVEL_BITS_CAPTURE = 20;
+    private static final int LEVEL_BITS_UNCAPTURED = 1 | 1 << LEVEL_BITS_FLUENTD | 1 << LEVEL_BITS_SENTRY | 1 << LEVEL_BITS_RECORDER;
+    private static final Level[] LOGBACK_LEVELS = {Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR};
+
+    // all Log instances (weakly), to refresh effective levels when configurations are changed
+    private static final Set<Log> instances = Collections.newSetFromMap(new MapMaker().weakKeys().<Log, Boolean>makeMap());
+    private static final Object levelsLock = new Object();
+
+    // counts of log calls per (class, level), indexed by LOG_SERVICE_LEVEL_THRESHOLD_*
+    private static final ConcurrentMap<Class<?>, LongAdder[]> logCounts = new ConcurrentHashMap<>();
+
     private static Function<Class<?>, Logger> loggerGetter = Log::defaultLoggerGetter;
 
     private static Map<String, ? extends Object> defaultAttributes = ImmutableMap.of();
@@ -57,7 +86,15 @@ public class Log
     private static int sentryLevel = LOG_SERVICE_LEVEL_THRESHOLD_NEVER;
 
     private static Fluency fluency = null;
+    private static FluentdEmitter fluentdEmitter = null;
     private static int fluentdLevel = LOG_SERVICE_LEVEL_THRESHOLD_NEVER;
+    private static FluentdStats fluentdStats = new FluentdStats();
+
+    private static FlightRecorder flightRecorder = null;
+    private static SentryDeduplicator sentryDeduplicator = null;
+    private static SentrySampler sentrySampler = null;
+    private static StackTraceEncoder stackTraceEncoder = null;
+    private static SecretScrubber secretScrubber = null;
 
     private static String errorTag = DEFAULT_ERROR_TAG;
     private static String warnTag = DEFAULT_WARN_TAG;
@@ -67,6 +104,9 @@ public class Log
 
     private final Class<?> clazz;
     private Logger logger;
+    private final LongAdder[] counts;
+    private final List<TurboFilter> turboFilters;
+    private volatile int levels;
 
     private Instant lastTimestamp;
 
@@ -132,8 +172,17 @@ public class Log
 
     public static Fluency defaultFluencyGetter(final String host, final int port)
     {
+        return defaultFluencyGetter(host, port, e -> { });
+    }
+
+    public static Fluency defaultFluencyGetter(final String host, final int port, final SenderErrorHandler senderErrorHandler)
+    {
+        SenderErrorHandler handler = e -> {
+            fluentdStats.senderError();
+            senderErrorHandler.handle(e);
+        };
         try {
-            return Fluency.defaultFluency(host, port);
+            return Fluency.defaultFluency(host, port, new Fluency.Config().setSenderErrorHandler(handler));
         }
         catch (IOException e) {
             throw new RuntimeException("Failed to initialize Fluentd client", e);
@@ -143,8 +192,20 @@ public class Log
     // only for testing
     public static void reset()
     {
+        if (sentryDeduplicator != null) {
+            sentryDeduplicator.close();
+            sentryDeduplicator = null;
+        }
+        sentrySampler = null;
+        stackTraceEncoder = null;
+        secretScrubber = null;
         sentry = null;
+        sentryLevel = LOG_SERVICE_LEVEL_THRESHOLD_NEVER;
         fluency = null;
+        fluentdLevel = LOG_SERVICE_LEVEL_THRESHOLD_NEVER;
+        closeFluentdEmitter();
+        fluentdStats = new FluentdStats();
+        flightRecorder = null;
         errorTag = DEFAULT_ERROR_TAG;
         warnTag = DEFAULT_WARN_TAG;
         infoTag = DEFAULT_INFO_TAG;
@@ -154,6 +215,7 @@ public class Log
         attributeKeysHidden = ImmutableList.of();
         attributeKeysMasked = ImmutableList.of();
         maskedValueLength = 8;
+        refreshLevels();
     }
 
     public static void setup(
@@ -233,6 +295,7 @@ public class Log
         }
         sentryLevel = getRemoteLevel(sentryLevelThreshold);
         sentry = sentryGetterArg.apply(dsn);
+        refreshLevels();
     }
 
     public static void setupFluentd(final String host, final int port)
@@ -254,6 +317,117 @@ public class Log
     {
         fluentdLevel = getRemoteLevel(fluentdLevelThreshold);
         fluency = fluencyGetterArg.apply(host, port);
+        closeFluentdEmitter();
+        refreshLevels();
+    }
+
+    // Sends events to multiple Fluentd forward endpoints, balanced by the strategy with health checks and failover.
+    // See FluentdBalancer.
+    public static void setupFluentd(final String level, final List<FluentdBalancer.Endpoint> endpoints, final FluentdBalancer.Strategy strategy)
+    {
+        // endpoints are marked as unhealthy by errors of sending, not to wait for the next health check
+        FluentdBalancer.FluencyGetter fluencyGetter = (host, port, senderErrorHandler) -> defaultFluencyGetter(host, port, senderErrorHandler);
+        setupFluentd(fluencyGetter, level, endpoints, strategy, FluentdBalancer.DEFAULT_HEALTH_CHECK_INTERVAL_MSEC);
+    }
+
+    public static void setupFluentd(
+            final BiFunction<String, Integer, Fluency> fluencyGetterArg,
+            final String fluentdLevelThreshold,
+            final List<FluentdBalancer.Endpoint> endpoints,
+            final FluentdBalancer.Strategy strategy,
+            final long healthCheckIntervalMillis
+    )
+    {
+        fluentdLevel = getRemoteLevel(fluentdLevelThreshold);
+        setupFluentdEmitter(new FluentdBalancer(endpoints, strategy, healthCheckIntervalMillis, fluencyGetterArg));
+    }
+
+    public static void setupFluentd(
+            final FluentdBalancer.FluencyGetter fluencyGetterArg,
+            final String fluentdLevelThreshold,
+            final List<FluentdBalancer.Endpoint> endpoints,
+            final FluentdBalancer.Strategy strategy,
+            final long healthCheckIntervalMillis
+    )
+    {
+        fluentdLevel = getRemoteLevel(fluentdLevelThreshold);
+        setupFluentdEmitter(new FluentdBalancer(endpoints, strategy, healthCheckIntervalMillis, fluencyGetterArg));
+    }
+
+    // Shards events over multiple Fluency clients (connections) to the endpoint, not to serialize emits
+    // of many threads through a buffer. See FluentdShards.
+    public static void setupFluentd(final String level, final String host, final int port, final int shards, final FluentdShards.Key key)
+    {
+        setupFluentd(Log::defaultFluencyGetter, level, host, port, shards, key, ImmutableList.of());
+    }
+
+    public static void setupFluentd(
+            final BiFunction<String, Integer, Fluency> fluencyGetterArg,
+            final String fluentdLevelThreshold,
+            final String host,
+            final int port,
+            final int shards,
+            final FluentdShards.Key key,
+            final List<String> orderedTags
+    )
+    {
+        fluentdLevel = getRemoteLevel(fluentdLevelThreshold);
+        setupFluentdEmitter(new FluentdShards(host, port, shards, key, orderedTags, fluencyGetterArg));
+    }
+
+    // Routes events (including metrics of MetricMonitor) to named Fluentd endpoints by tag patterns,
+    // e.g., "bigdam.metric.**" to an aggregator for metrics, and "**" to others. See FluentdRouter.
+    public static void setupFluentd(final String level, final Map<String, FluentdBalancer.Endpoint> sinks, final List<FluentdRouter.Route> routes)
+    {
+        setupFluentd(Log::defaultFluencyGetter, level, sinks, routes, FluentdRouter.DEFAULT_MAX_CACHED_TAGS);
+    }
+
+    public static void setupFluentd(
+            final BiFunction<String, Integer, Fluency> fluencyGetterArg,
+            final String fluentdLevelThreshold,
+            final Map<String, FluentdBalancer.Endpoint> sinks,
+            final List<FluentdRouter.Route> routes,
+            final int maxCachedTags
+    )
+    {
+        fluentdLevel = getRemoteLevel(fluentdLevelThreshold);
+        setupFluentdEmitter(new FluentdRouter(sinks, routes, maxCachedTags, fluencyGetterArg));
+    }
+
+    private static void setupFluentdEmitter(final FluentdEmitter emitter)
+    {
+        closeFluentdEmitter();
+        fluentdEmitter = emitter;
+        // a single client set up before is replaced by the emitter
+        Fluency previous = fluency;
+        fluency = null;
+        if (previous != null) {
+            try {
+                previous.close();
+            }
+            catch (IOException e) {
+                // ignore it - events in its buffers are lost
+            }
+        }
+        refreshLevels();
+    }
+
+    private static void closeFluentdEmitter()
+    {
+        if (fluentdEmitter != null) {
+            try {
+                fluentdEmitter.close();
+            }
+            catch (IOException e) {
+                // ignore it - events in its buffers are lost
+            }
+            fluentdEmitter = null;
+        }
+    }
+
+    private static boolean hasFluentd()
+    {
+        return fluency != null || fluentdEmitter != null;
     }
 
     public static void setLogLevel(final String newLevel)
@@ -280,6 +454,71 @@ public class Log
         }
     }
 
+    // Records the last log calls of all levels (message and error class only) into an in-memory ring,
+    // which is attached to Sentry reports as breadcrumbs, and can be dumped by dumpFlightRecorder.
+    public static void enableFlightRecorder(final int capacity)
+    {
+        flightRecorder = new FlightRecorder(capacity, Log::scrub);
+        refreshLevels();
+    }
+
+    // Sends only the first exception of the same fingerprint (class name and top stack frames) in the window,
+    // and an aggregate event with the count of suppressed ones when the window ends.
+    // Sentry events are sent by a background thread, through a bounded queue of the size.
+    public static void enableSentryDeduplication(final long windowMillis, final int queueSize)
+    {
+        if (sentry == null) {
+            throw new IllegalStateException("Sentry is not set up");
+        }
+        if (sentryDeduplicator != null) {
+            sentryDeduplicator.close();
+        }
+        sentryDeduplicator = new SentryDeduplicator(sentry, windowMillis, queueSize, Log::scrub);
+    }
+
+    // Samples Sentry reports per fingerprint: ones seen up to targetPerInterval times in the last interval are all sent,
+    // and more frequent ones are sampled down to about targetPerInterval. Sent events have the rate in "sample_rate" extra.
+    // This is applied on top of the sample.rate of the DSN. With deduplication, only reports admitted by it are sampled,
+    // so that its aggregates count all occurrences.
+    public static void enableAdaptiveSentrySampling(final long intervalMillis, final long targetPerInterval, final int maxFingerprints)
+    {
+        sentrySampler = new SentrySampler(intervalMillis, targetPerInterval, maxFingerprints);
+    }
+
+    // Adds "stack" (compact stack trace, up to maxDepth frames per throwable) and "stackHash" fields
+    // into Fluentd events with exceptions. Frames of classes with the prefixes are collapsed.
+    public static void enableStackTraces(final int maxDepth)
+    {
+        enableStackTraces(maxDepth, StackTraceEncoder.DEFAULT_COLLAPSED_PREFIXES, 1024);
+    }
+
+    public static void enableStackTraces(final int maxDepth, final List<String> collapsedPrefixes, final int cacheSize)
+    {
+        stackTraceEncoder = new StackTraceEncoder(maxDepth, collapsedPrefixes, cacheSize);
+    }
+
+    // Scrubs secrets (like "password=...", "Bearer ...", AWS access key IDs and passwords in URLs) in messages,
+    // exception messages and string attribute values, both in Fluentd events and Sentry reports.
+    public static void enableSecretScrubbing()
+    {
+        secretScrubber = new SecretScrubber();
+    }
+
+    public static void enableSecretScrubbing(final List<String> keywords)
+    {
+        secretScrubber = new SecretScrubber(keywords);
+    }
+
+    public static void dumpFlightRecorder(final Path path)
+            throws IOException
+    {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder == null) {
+            throw new IllegalStateException("Flight recorder is not enabled");
+        }
+        recorder.dump(path);
+    }
+
     public static void setDefaultAttributes(final Map<String, ? extends Object> defaultAttributesArg)
     {
         // all default attributes must be serializable as msgpack
@@ -311,6 +550,40 @@ public class Log
         maskedValueLength = length;
     }
 
+    // Metrics of Fluentd client health (buffer sizes, emit counts/latency, sender errors), to be registered by
+    // MetricMonitor#addRawMetricProducer. Counts and latency sums are cumulative (this producer has no side effects),
+    // so consumers compute deltas or rates of these.
+    public static MetricMonitor.MetricProducer fluentdMetricProducer()
+    {
+        return () -> {
+            FluentdEmitter emitter = fluentdEmitter;
+            if (emitter == null) {
+                return fluentdStats.produce(fluency);
+            }
+            Map<String, Object> metrics = fluentdStats.produceAll(emitter.getFluencies());
+            emitter.addMetrics(metrics);
+            return metrics;
+        };
+    }
+
+    // Cumulative counts of log calls per class and level, including calls not sent to Fluentd/Sentry
+    // (but not calls disabled everywhere, which return without touching shared counters).
+    // Register it by MetricMonitor#addCounterProducer to emit these as deltas (and rates) per interval.
+    public static MetricMonitor.ComplexMetricProducer logCountMetricProducer()
+    {
+        return () -> {
+            List<ComplexMetric> metrics = new ArrayList<>(logCounts.size() * LEVEL_NAMES.length);
+            for (Map.Entry<Class<?>, LongAdder[]> pair : logCounts.entrySet()) {
+                String className = pair.getKey().getName();
+                LongAdder[] adders = pair.getValue();
+                for (int i = 0; i < adders.length; i++) {
+                    metrics.add(new ComplexMetric("log.count", adders[i].sum(), ImmutableMap.of("class", className, "level", LEVEL_NAMES[i])));
+                }
+            }
+            return metrics;
+        };
+    }
+
     public static void close()
     {
         if (fluency != null) {
@@ -321,6 +594,17 @@ public class Log
                 // ignore it - this process is going down.
             }
         }
+        if (fluentdEmitter != null) {
+            try {
+                fluentdEmitter.close();
+            }
+            catch (IOException e) {
+                // ignore it - this process is going down.
+            }
+        }
+        if (sentryDeduplicator != null) {
+            sentryDeduplicator.close();
+        }
         if (sentry != null) {
             sentry.closeConnection();
         }
@@ -330,6 +614,122 @@ public class Log
     {
         this.clazz = clazz;
         this.logger = loggerGetter.apply(clazz);
+        this.counts = logCounts.computeIfAbsent(clazz, c -> newCounts());
+        if (logger instanceof ch.qos.logback.classic.Logger) {
+            LoggerContext context = ((ch.qos.logback.classic.Logger) logger).getLoggerContext();
+            LogLevelListener.register(context);
+            // the same list is kept (cleared) on resets of the context
+            this.turboFilters = context.getTurboFilterList();
+        }
+        else {
+            this.turboFilters = null;
+        }
+        instances.add(this);
+        refreshLevel();
+    }
+
+    // Recomputes effective levels of all Log instances from logback levels and configurations of Fluentd, Sentry,
+    // flight recorder and capture. Called by setup methods, and by logback (LogLevelListener) on level changes.
+    static void refreshLevels()
+    {
+        for (Log log : instances) {
+            log.refreshLevel();
+        }
+    }
+
+    // under the lock, not to overwrite levels by ones computed from older configurations
+    private void refreshLevel()
+    {
+        synchronized (levelsLock) {
+            int bits = 0;
+            for (int level = LOG_SERVICE_LEVEL_THRESHOLD_TRACE; level <= LOG_SERVICE_LEVEL_THRESHOLD_ERROR; level++) {
+                if (isLocalEnabled(logger, LOGBACK_LEVELS[level])) {
+                    bits |= 1 << (LEVEL_BITS_LOCAL + level);
+                }
+                if (isEnabled(fluentdLevel, level)) {
+                    bits |= 1 << (LEVEL_BITS_FLUENTD + level);
+                }
+                if (isEnabled(sentryLevel, level)) {
+                    bits |= 1 << (LEVEL_BITS_SENTRY + level);
+                }
+                if (flightRecorder != null) {
+                    bits |= 1 << (LEVEL_BITS_RECORDER + level);
+                }
+                // debug/trace events are captured, and errors fail captures, while any capture is open
+                if (LogCapture.isAnyOpen() && hasFluentd() && (level <= LOG_SERVICE_LEVEL_THRESHOLD_DEBUG || level == LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
+                    bits |= 1 << (LEVEL_BITS_CAPTURE + level);
+                }
+            }
+            levels = bits;
+        }
+    }
+
+    // Levels of non-logback loggers are checked by these, so these are always called
+    private static boolean isLocalEnabled(final Logger logger, final Level level)
+    {
+        if (!(logger instanceof ch.qos.logback.classic.Logger)) {
+            return true;
+        }
+        return level.isGreaterOrEqual(((ch.qos.logback.classic.Logger) logger).getEffectiveLevel());
+    }
+
+    // Logback turbo filters (which may depend on MDC or markers) can enable calls under effective levels, and can be
+    // added anytime without notifications. So while there are any, calls under the levels are passed to logback,
+    // which checks these by itself. It's a volatile read of the (copy-on-write) list only on disabled calls.
+    private boolean isTurboFiltered()
+    {
+        return turboFilters != null && !turboFilters.isEmpty();
+    }
+
+    private static boolean isEnabled(final int levels, final int destination, final int level)
+    {
+        return (levels & 1 << (destination + level)) != 0;
+    }
+
+    // Capture bits are set while captures are open on any thread, so calls enabled only by these are
+    // enabled only on threads with open captures
+    private static boolean isAnyEnabled(final int levels, final int level)
+    {
+        if ((levels & LEVEL_BITS_UNCAPTURED << level) != 0) {
+            return true;
+        }
+        return isEnabled(levels, LEVEL_BITS_CAPTURE, level) && LogCapture.current() != null;
+    }
+
+    // true if calls of the level are logged anywhere (local logger, Fluentd, Sentry, flight recorder or capture),
+    // to skip building expensive messages or attributes
+    public boolean isErrorEnabled()
+    {
+        return isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) || (isTurboFiltered() && logger.isErrorEnabled());
+    }
+
+    public boolean isWarnEnabled()
+    {
+        return isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_WARN) || (isTurboFiltered() && logger.isWarnEnabled());
+    }
+
+    public boolean isInfoEnabled()
+    {
+        return isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_INFO) || (isTurboFiltered() && logger.isInfoEnabled());
+    }
+
+    public boolean isDebugEnabled()
+    {
+        return isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) || (isTurboFiltered() && logger.isDebugEnabled());
+    }
+
+    public boolean isTraceEnabled()
+    {
+        return isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) || (isTurboFiltered() && logger.isTraceEnabled());
+    }
+
+    private static LongAdder[] newCounts()
+    {
+        LongAdder[] adders = new LongAdder[LEVEL_NAMES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
     }
 
     // only for testing
@@ -343,32 +743,75 @@ public class Log
         if (sentry == null) {
             return;
         }
+        SentrySampler sampler = sentrySampler;
+        SentryDeduplicator deduplicator = sentryDeduplicator;
+        long fingerprint = 0L;
+        if (sampler != null || deduplicator != null) {
+            fingerprint = ThrowableFingerprint.of(e);
+        }
+        // occurrences are counted by the deduplicator before sampling, so that its aggregates count all of these
+        if (deduplicator != null && !deduplicator.admit(fingerprint, clazz.getName(), e)) {
+            return;
+        }
+        double sampleRate = 1.0;
+        if (sampler != null) {
+            sampleRate = sampler.sample(fingerprint);
+            if (sampleRate == 0.0) {
+                return;
+            }
+        }
         if (attrs == null) {
             attrs = ImmutableMap.of();
         }
 
         EventBuilder builder = new EventBuilder()
-                .withMessage(e.getMessage())
+                .withMessage(scrub(e.getMessage()))
                 .withLevel(Event.Level.ERROR)
                 .withLogger(clazz.getName());
         for (Map.Entry<String, ? extends Object> pair : defaultAttributes.entrySet()) {
             builder.withTag(pair.getKey(), pair.getValue().toString());
         }
+        withContextExtras(builder, LogContext.current());
         for (Map.Entry<String, ? extends Object> pair : attrs.entrySet()) {
-            String key = pair.getKey();
-            Object value = pair.getValue();
-            if (attributeKeysHidden.contains(key)) {
-                // ignore
-            }
-            else if (attributeKeysMasked.contains(key)) {
-                builder.withExtra(key, value == null ? null : value.toString().substring(0, maskedValueLength));
-            }
-            else {
-                builder.withExtra(key, value == null ? null : value.toString());
-            }
+            withExtra(builder, pair.getKey(), pair.getValue());
+        }
+        FlightRecorder recorder = flightRecorder;
+        if (recorder != null) {
+            builder.withBreadcrumbs(recorder.breadcrumbs());
+        }
+        if (sampler != null) {
+            builder.withExtra(SentrySampler.SAMPLE_RATE_EXTRA, sampleRate);
         }
         builder.withSentryInterface(new ExceptionInterface(e));
-        sentry.sendEvent(builder);
+        if (deduplicator != null) {
+            deduplicator.send(fingerprint, builder);
+        }
+        else {
+            sentry.sendEvent(builder);
+        }
+    }
+
+    // from the root of the context, so that nearer attributes override farther ones
+    private static void withContextExtras(final EventBuilder builder, final LogContext context)
+    {
+        if (context.isEmpty()) {
+            return;
+        }
+        withContextExtras(builder, context.parent);
+        withExtra(builder, context.key, context.value);
+    }
+
+    private static void withExtra(final EventBuilder builder, final String key, final Object value)
+    {
+        if (attributeKeysHidden.contains(key)) {
+            // ignore
+        }
+        else if (attributeKeysMasked.contains(key)) {
+            builder.withExtra(key, value == null ? null : mask(value.toString()));
+        }
+        else {
+            builder.withExtra(key, value == null ? null : scrub(value.toString()));
+        }
     }
 
     private EventTime eventTime(final Instant now)
@@ -382,40 +825,105 @@ public class Log
             return ImmutableMap.of();
         }
 
-        Map<String, Object> event = new HashMap<>();
-        for (Map.Entry<String, ? extends Object> pair : attrs.entrySet()) {
-            String key = pair.getKey();
-            Object value = pair.getValue();
-            if (attributeKeysHidden.contains(key)) {
-                // ignore
-            }
-            else if (attributeKeysMasked.contains(key)) {
-                if (value instanceof String) {
-                    event.put(key, ((String) value).substring(0, maskedValueLength));
-                }
-                else {
-                    event.put(key, value.toString().substring(0, maskedValueLength));
-                }
+        AttrsMap<String, Object> event = new AttrsMap<>(attrs.size());
+        filterAttrsInto(event, attrs, true);
+        return event;
+    }
+
+    // keys of a Map are unique, so filtered attributes can be appended without lookups into an empty map
+    private static void filterAttrsInto(final AttrsMap<String, Object> event, final Map<String, ? extends Object> attrs, final boolean append)
+    {
+        if (attrs instanceof AttrsMap) {
+            AttrsMap<String, ? extends Object> map = (AttrsMap<String, ? extends Object>) attrs;
+            for (int i = 0; i < map.size(); i++) {
+                filterAttrInto(event, map.keyAt(i), map.valueAt(i), append);
             }
-            else {
-                if (value == null
-                        || value instanceof String
-                        || value instanceof Integer
-                        || value instanceof Long
-                        || value instanceof BigInteger
-                        || value instanceof BigDecimal
-                        || value instanceof Float
-                        || value instanceof Double
-                        || value instanceof Boolean
-                        ) {
-                    event.put(key, value);
-                }
-                else {
-                    event.put(key, value.toString());
-                }
+        }
+        else {
+            for (Map.Entry<String, ? extends Object> pair : attrs.entrySet()) {
+                filterAttrInto(event, pair.getKey(), pair.getValue(), append);
             }
         }
-        return event;
+    }
+
+    private static void filterContextInto(final AttrsMap<String, Object> event, final LogContext context)
+    {
+        if (context.isEmpty()) {
+            return;
+        }
+        filterContextInto(event, context.parent);
+        filterAttrInto(event, context.key, context.value, false);
+    }
+
+    // the first maskedValueLength characters (or whole of shorter values)
+    private static String mask(final String value)
+    {
+        if (value.length() <= maskedValueLength) {
+            return value;
+        }
+        return value.substring(0, maskedValueLength);
+    }
+
+    private static String scrub(final String str)
+    {
+        SecretScrubber scrubber = secretScrubber;
+        return scrubber == null ? str : scrubber.scrub(str);
+    }
+
+    private static void filterAttrInto(final AttrsMap<String, Object> event, final String key, final Object value, final boolean append)
+    {
+        if (attributeKeysHidden.contains(key)) {
+            return;
+        }
+        Object filtered;
+        if (attributeKeysMasked.contains(key)) {
+            filtered = value == null ? null : mask(value.toString());
+        }
+        else {
+            filtered = filterValue(value);
+        }
+        if (append) {
+            event.append(key, filtered);
+        }
+        else {
+            event.put(key, filtered);
+        }
+    }
+
+    private static Object filterValue(final Object value)
+    {
+        if (value instanceof String) {
+            return scrub((String) value);
+        }
+        else if (value == null
+                || value instanceof Integer
+                || value instanceof Long
+                || value instanceof BigInteger
+                || value instanceof BigDecimal
+                || value instanceof Float
+                || value instanceof Double
+                || value instanceof Boolean
+                ) {
+            return value;
+        }
+        else {
+            return value.toString();
+        }
+    }
+
+    // columns keep lists as-is: maps in a column are filtered as attributes, and other elements as attribute values
+    @SuppressWarnings("unchecked")
+    private Object filterColumn(final Object column)
+    {
+        if (!(column instanceof List)) {
+            return filterValue(column);
+        }
+        List<?> elements = (List<?>) column;
+        List<Object> filtered = new ArrayList<>(elements.size());
+        for (Object element : elements) {
+            filtered.add(element instanceof Map ? filterAttrs((Map<String, ? extends Object>) element) : filterValue(element));
+        }
+        return filtered;
     }
 
     // use this method only in testing
@@ -428,23 +936,39 @@ public class Log
     }
 
     private Map<String, Object> buildEvent(final Instant now, final String messageKey, final String message, final Throwable e, final Map<String, ? extends Object> attrs)
+    {
+        return buildEvent(now, messageKey, message, e, attrs, LogContext.current());
+    }
+
+    private Map<String, Object> buildEvent(final Instant now, final String messageKey, final String message, final Throwable e, final Map<String, ? extends Object> attrs, final LogContext context)
     {
         // lastTimestamp is only for testing
         lastTimestamp = now;
         // buildEvent doesn't modify "attrs", but construct another Map object.
         // Original attrs is used for many purposes (dump it on local log, send it to Fluentd and/or Sentry),
         // so we should not modify it.
-        Map<String, Object> event = new HashMap<>();
-        event.put(SUBSECOND_TIME_FIELD, now.getNano());
+        AttrsMap<String, Object> event = new AttrsMap<>(4 + defaultAttributes.size() + (attrs == null ? 0 : attrs.size()));
+        event.append(SUBSECOND_TIME_FIELD, now.getNano());
         if (messageKey != null) {
-            event.put(messageKey, message);
+            event.put(messageKey, scrub(message));
         }
         if (e != null) {
             event.put("errorClass", e.getClass().getName());
-            event.put("error", e.getMessage());
+            event.put("error", scrub(e.getMessage()));
+            StackTraceEncoder encoder = stackTraceEncoder;
+            if (encoder != null) {
+                StackTraceEncoder.Encoded encoded = encoder.encode(e);
+                event.put(StackTraceEncoder.STACK_FIELD, encoded.stack);
+                event.put(StackTraceEncoder.STACK_HASH_FIELD, encoded.hash);
+            }
+        }
+        for (Map.Entry<String, ? extends Object> pair : defaultAttributes.entrySet()) {
+            event.put(pair.getKey(), pair.getValue());
+        }
+        filterContextInto(event, context);
+        if (attrs != null) {
+            filterAttrsInto(event, attrs, false);
         }
-        event.putAll(defaultAttributes);
-        event.putAll(filterAttrs(attrs));
         return event;
     }
 
@@ -470,30 +994,135 @@ public class Log
 
     protected void sendEvent(final String tag, final Instant now, final String messageKey, final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (fluency == null) {
+        if (!hasFluentd()) {
             return;
         }
+        emitEvent(tag, now, buildEvent(now, messageKey, message, e, attrs));
+    }
+
+    // sends a columnar record (e.g., of compact metric batches), whose lists are not stringified unlike attributes of sendEvent
+    protected void sendColumns(final String tag, final Instant now, final Map<String, ? extends Object> columns)
+    {
+        if (!hasFluentd()) {
+            return;
+        }
+        Map<String, Object> event = buildEvent(now, null, null, null, null);
+        for (Map.Entry<String, ? extends Object> pair : columns.entrySet()) {
+            event.put(pair.getKey(), filterColumn(pair.getValue()));
+        }
+        emitEvent(tag, now, event);
+    }
+
+    void emitEvent(final String tag, final Instant now, final Map<String, Object> event)
+    {
+        Fluency single = fluency;
+        FluentdEmitter emitter = fluentdEmitter;
+        if (single == null && emitter == null) {
+            return;
+        }
+        long start = System.nanoTime();
         try {
             // Fluentd 0.12 doesn't support EventTime, so use a normal integer here
-            fluency.emit(tag, now.getEpochSecond(), buildEvent(now, messageKey, message, e, attrs));
+            if (emitter != null) {
+                emitter.emit(tag, now.getEpochSecond(), event);
+            }
+            else {
+                single.emit(tag, now.getEpochSecond(), event);
+            }
+            fluentdStats.emitted(true, System.nanoTime() - start);
         }
         catch (IOException ex) {
+            fluentdStats.emitted(false, System.nanoTime() - start);
             logger.error("Failed to emit event to Fluentd", ex);
         }
     }
 
+    private void recordFlight(final int level, final String message, final Throwable e)
+    {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder != null) {
+            recorder.record(level, clazz.getName(), message, e);
+        }
+    }
+
+    // Opens a scope to capture debug/trace events on the current thread, which are sent only if the scope fails.
+    // See LogCapture.
+    public LogCapture capture(final int capacity)
+    {
+        return LogCapture.open(this, capacity);
+    }
+
+    // Calls the body in a capture scope, which fails if the body throws (then captured events are sent).
+    public <T> T captured(final int capacity, final Callable<T> body)
+            throws Exception
+    {
+        try (LogCapture capture = LogCapture.open(this, capacity)) {
+            try {
+                return body.call();
+            }
+            catch (Throwable e) {
+                capture.fail();
+                throw e;
+            }
+        }
+    }
+
+    // debug/trace events not sent to Fluentd by its level. Attributes are filtered on record (into copies, which
+    // don't reference values of callers), and events are built only if the scope fails.
+    private void captureEvent(final String tag, final String message, final Throwable e, final Map<String, ? extends Object> attrs)
+    {
+        if (!hasFluentd()) {
+            return;
+        }
+        LogCapture capture = LogCapture.current();
+        if (capture != null) {
+            capture.record(tag, Instant.now(), message, e, attrs == null ? null : filterAttrs(attrs), LogContext.current());
+        }
+    }
+
+    // filteredAttrs are ones filtered by captureEvent
+    void emitCaptured(final String tag, final Instant now, final String message, final Throwable e, final Map<String, Object> filteredAttrs, final LogContext context)
+    {
+        Map<String, Object> event = buildEvent(now, "message", message, e, null, context);
+        if (filteredAttrs != null) {
+            for (Map.Entry<String, Object> pair : filteredAttrs.entrySet()) {
+                event.put(pair.getKey(), pair.getValue());
+            }
+        }
+        event.put(LogCapture.CAPTURED_FIELD, true);
+        emitEvent(tag, now, event);
+    }
+
     public void error(final String message)
     {
-        logger.error(message);
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_ERROR].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_ERROR, message, null);
+        LogCapture.failCurrent();
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) || isTurboFiltered()) {
+            logger.error(message);
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
             sendEvent(errorTag, message, null);
         }
     }
 
     public void error(final String message, final Map<String, ? extends Object> attrs)
     {
-        logger.error(message + " {}", filterAttrs(attrs));
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_ERROR].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_ERROR, message, null);
+        LogCapture.failCurrent();
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) || isTurboFiltered()) {
+            logger.error(message + " {}", filterAttrs(attrs));
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
             sendEvent(errorTag, message, attrs);
         }
     }
@@ -505,32 +1134,57 @@ public class Log
 
     public void error(final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (attrs == null) {
-            logger.error(message, e);
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) && !isTurboFiltered()) {
+            return;
         }
-        else {
-            logger.error(message + " {}", filterAttrs(attrs), e);
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_ERROR].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_ERROR, message, e);
+        LogCapture.failCurrent();
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_ERROR) || isTurboFiltered()) {
+            if (attrs == null) {
+                logger.error(message, e);
+            }
+            else {
+                logger.error(message + " {}", filterAttrs(attrs), e);
+            }
         }
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
             sendEvent(errorTag, message, e, attrs);
         }
-        if (isEnabled(sentryLevel, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
+        if (isEnabled(levels, LEVEL_BITS_SENTRY, LOG_SERVICE_LEVEL_THRESHOLD_ERROR)) {
             sendException(e, attrs);
         }
     }
 
     public void warn(final String message)
     {
-        logger.warn(message);
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_WARN) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_WARN].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_WARN, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_WARN) || isTurboFiltered()) {
+            logger.warn(message);
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
             sendEvent(warnTag, message, null);
         }
     }
 
     public void warn(final String message, final Map<String, ? extends Object> attrs)
     {
-        logger.warn(message + " {}", filterAttrs(attrs));
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_WARN) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_WARN].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_WARN, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_WARN) || isTurboFiltered()) {
+            logger.warn(message + " {}", filterAttrs(attrs));
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
             sendEvent(warnTag, message, attrs);
         }
     }
@@ -542,32 +1196,56 @@ public class Log
 
     public void warn(final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (attrs == null) {
-            logger.warn(message, e);
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_WARN) && !isTurboFiltered()) {
+            return;
         }
-        else {
-            logger.warn(message + " {}", filterAttrs(attrs), e);
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_WARN].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_WARN, message, e);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_WARN) || isTurboFiltered()) {
+            if (attrs == null) {
+                logger.warn(message, e);
+            }
+            else {
+                logger.warn(message + " {}", filterAttrs(attrs), e);
+            }
         }
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
             sendEvent(warnTag, message, e, attrs);
         }
-        if (isEnabled(sentryLevel, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
+        if (isEnabled(levels, LEVEL_BITS_SENTRY, LOG_SERVICE_LEVEL_THRESHOLD_WARN)) {
             sendException(e, attrs);
         }
     }
 
     public void info(final String message)
     {
-        logger.info(message);
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_INFO) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_INFO].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_INFO, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_INFO) || isTurboFiltered()) {
+            logger.info(message);
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
             sendEvent(infoTag, message, null);
         }
     }
 
     public void info(final String message, final Map<String, ? extends Object> attrs)
     {
-        logger.info(message + " {}", filterAttrs(attrs));
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_INFO) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_INFO].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_INFO, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_INFO) || isTurboFiltered()) {
+            logger.info(message + " {}", filterAttrs(attrs));
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
             sendEvent(infoTag, message, attrs);
         }
     }
@@ -579,34 +1257,64 @@ public class Log
 
     public void info(final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (attrs == null) {
-            logger.info(message, e);
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_INFO) && !isTurboFiltered()) {
+            return;
         }
-        else {
-            logger.info(message + " {}", filterAttrs(attrs), e);
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_INFO].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_INFO, message, e);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_INFO) || isTurboFiltered()) {
+            if (attrs == null) {
+                logger.info(message, e);
+            }
+            else {
+                logger.info(message + " {}", filterAttrs(attrs), e);
+            }
         }
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
             sendEvent(infoTag, message, e, attrs);
         }
-        if (isEnabled(sentryLevel, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
+        if (isEnabled(levels, LEVEL_BITS_SENTRY, LOG_SERVICE_LEVEL_THRESHOLD_INFO)) {
             sendException(e, attrs);
         }
     }
 
     public void debug(final String message)
     {
-        logger.debug(message);
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_DEBUG].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_DEBUG, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) || isTurboFiltered()) {
+            logger.debug(message);
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
             sendEvent(debugTag, message, null);
         }
+        else {
+            captureEvent(debugTag, message, null, null);
+        }
     }
 
     public void debug(final String message, final Map<String, ? extends Object> attrs)
     {
-        logger.debug(message + " {}", filterAttrs(attrs));
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_DEBUG].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_DEBUG, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) || isTurboFiltered()) {
+            logger.debug(message + " {}", filterAttrs(attrs));
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
             sendEvent(debugTag, message, attrs);
         }
+        else {
+            captureEvent(debugTag, message, null, attrs);
+        }
     }
 
     public void debug(final String message, final Throwable e)
@@ -616,34 +1324,67 @@ public class Log
 
     public void debug(final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (attrs == null) {
-            logger.debug(message, e);
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) && !isTurboFiltered()) {
+            return;
         }
-        else {
-            logger.debug(message + " {}", filterAttrs(attrs), e);
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_DEBUG].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_DEBUG, message, e);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG) || isTurboFiltered()) {
+            if (attrs == null) {
+                logger.debug(message, e);
+            }
+            else {
+                logger.debug(message + " {}", filterAttrs(attrs), e);
+            }
         }
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
             sendEvent(debugTag, message, e, attrs);
         }
-        if (isEnabled(sentryLevel, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
+        else {
+            captureEvent(debugTag, message, e, attrs);
+        }
+        if (isEnabled(levels, LEVEL_BITS_SENTRY, LOG_SERVICE_LEVEL_THRESHOLD_DEBUG)) {
             sendException(e, attrs);
         }
     }
 
     public void trace(final String message)
     {
-        logger.trace(message);
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_TRACE].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_TRACE, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) || isTurboFiltered()) {
+            logger.trace(message);
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
             sendEvent(traceTag, message, null);
         }
+        else {
+            captureEvent(traceTag, message, null, null);
+        }
     }
 
     public void trace(final String message, final Map<String, ? extends Object> attrs)
     {
-        logger.trace(message + " {}", filterAttrs(attrs));
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) && !isTurboFiltered()) {
+            return;
+        }
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_TRACE].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_TRACE, message, null);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) || isTurboFiltered()) {
+            logger.trace(message + " {}", filterAttrs(attrs));
+        }
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
             sendEvent(traceTag, message, attrs);
         }
+        else {
+            captureEvent(traceTag, message, null, attrs);
+        }
     }
 
     public void trace(final String message, final Throwable e)
@@ -653,16 +1394,27 @@ public class Log
 
     public void trace(final String message, final Throwable e, final Map<String, ? extends Object> attrs)
     {
-        if (attrs == null) {
-            logger.trace(message, e);
+        int levels = this.levels;
+        if (!isAnyEnabled(levels, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) && !isTurboFiltered()) {
+            return;
         }
-        else {
-            logger.trace(message + " {}", filterAttrs(attrs), e);
+        counts[LOG_SERVICE_LEVEL_THRESHOLD_TRACE].increment();
+        recordFlight(LOG_SERVICE_LEVEL_THRESHOLD_TRACE, message, e);
+        if (isEnabled(levels, LEVEL_BITS_LOCAL, LOG_SERVICE_LEVEL_THRESHOLD_TRACE) || isTurboFiltered()) {
+            if (attrs == null) {
+                logger.trace(message, e);
+            }
+            else {
+                logger.trace(message + " {}", filterAttrs(attrs), e);
+            }
         }
-        if (isEnabled(fluentdLevel, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
+        if (isEnabled(levels, LEVEL_BITS_FLUENTD, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
             sendEvent(traceTag, message, e, attrs);
         }
-        if (isEnabled(sentryLevel, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
+        else {
+            captureEvent(traceTag, message, e, attrs);
+        }
+        if (isEnabled(levels, LEVEL_BITS_SENTRY, LOG_SERVICE_LEVEL_THRESHOLD_TRACE)) {
             sendException(e, attrs);
         }
     }
@@ -0,0 +1,181 @@
+package com.treasuredata.bigdam.log;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Scope of tail-based capture of debug/trace events, opened by Log#capture on the current thread.
+// Debug/trace calls which are not sent to Fluentd by its level are recorded into a bounded buffer of the scope
+// (with filtered attributes: events are built only when these are sent), and these are sent to Fluentd on close only if
+// the scope failed: error(...) was called in the scope (on the same thread), or fail() was called.
+// Otherwise, these are discarded. If more calls than the capacity are recorded, older ones are dropped.
+// Attributes are filtered (hidden, masked, scrubbed and stringified) into copies on record, as for events sent at once,
+// but exceptions are referenced until the scope is closed.
+// Debug/trace calls are checked for capture only while any scope is open, and only on threads with open scopes.
+//
+//     Result result = log.captured(256, () -> handle(request)); // fails if handle() throws
+//
+// or, to fail the scope explicitly (it must fail before close, so not in a catch clause of the same try):
+//
+//     try (LogCapture capture = log.capture(256)) {
+//         Result result = handle(request); // log.debug(...) calls are captured
+//         if (!result.isSuccess()) {
+//             capture.fail(); // captured debug events are sent on close
+//         }
+//     }
+//
+// Scopes must be closed on the thread which opened these. Nested scopes are failed together with inner ones.
+public final class LogCapture
+        implements AutoCloseable
+{
+    public static final String CAPTURED_FIELD = "captured";
+
+    private static final ThreadLocal<LogCapture> CURRENT = new ThreadLocal<>();
+    // open scopes on all threads: Log enables capture levels only while any scope is open,
+    // not to look up the thread local in every debug/trace call otherwise
+    private static final AtomicInteger ACTIVE = new AtomicInteger(0);
+
+    private final Log owner;
+    private final LogCapture previous;
+
+    private final String[] tags;
+    private final Instant[] times;
+    private final String[] messages;
+    private final Throwable[] errors;
+    private final Map<String, Object>[] attrs;
+    private final LogContext[] contexts;
+    private int head;
+    private int count;
+    private long dropped;
+
+    private boolean failed;
+    private boolean closed;
+
+    private LogCapture(final Log owner, final LogCapture previous, final int capacity)
+    {
+        this.owner = owner;
+        this.previous = previous;
+        this.tags = new String[capacity];
+        this.times = new Instant[capacity];
+        this.messages = new String[capacity];
+        this.errors = new Throwable[capacity];
+        this.attrs = newMaps(capacity);
+        this.contexts = new LogContext[capacity];
+        this.head = 0;
+        this.count = 0;
+        this.dropped = 0L;
+        this.failed = false;
+        this.closed = false;
+    }
+
+    static LogCapture open(final Log owner, final int capacity)
+    {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of log capture must be a positive integer:" + capacity);
+        }
+        LogCapture capture = new LogCapture(owner, CURRENT.get(), capacity);
+        CURRENT.set(capture);
+        if (ACTIVE.getAndIncrement() == 0) {
+            Log.refreshLevels();
+        }
+        return capture;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object>[] newMaps(final int capacity)
+    {
+        return (Map<String, Object>[]) new Map<?, ?>[capacity];
+    }
+
+    static boolean isAnyOpen()
+    {
+        return ACTIVE.get() > 0;
+    }
+
+    // null if no capture scope is open on this thread
+    static LogCapture current()
+    {
+        if (ACTIVE.get() == 0) {
+            return null;
+        }
+        return CURRENT.get();
+    }
+
+    static void failCurrent()
+    {
+        LogCapture capture = current();
+        if (capture != null) {
+            capture.fail();
+        }
+    }
+
+    // filteredAttributes are not copied: Log filters attributes into new maps
+    void record(final String tag, final Instant now, final String message, final Throwable e, final Map<String, Object> filteredAttributes, final LogContext context)
+    {
+        int index = (head + count) % tags.length;
+        if (count == tags.length) {
+            head = (head + 1) % tags.length;
+            dropped += 1;
+        }
+        else {
+            count += 1;
+        }
+        tags[index] = tag;
+        times[index] = now;
+        messages[index] = message;
+        errors[index] = e;
+        attrs[index] = filteredAttributes;
+        contexts[index] = context;
+    }
+
+    // marks this scope (and outer ones) as failed, to send captured events on close
+    public void fail()
+    {
+        for (LogCapture c = this; c != null; c = c.previous) {
+            c.failed = true;
+        }
+    }
+
+    public boolean isFailed()
+    {
+        return failed;
+    }
+
+    public int getCaptured()
+    {
+        return count;
+    }
+
+    public long getDropped()
+    {
+        return dropped;
+    }
+
+    @Override
+    public void close()
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        CURRENT.set(previous);
+        if (ACTIVE.decrementAndGet() == 0) {
+            Log.refreshLevels();
+        }
+        if (failed) {
+            for (int i = 0; i < count; i++) {
+                int index = (head + i) % tags.length;
+                owner.emitCaptured(tags[index], times[index], messages[index], errors[index], attrs[index], contexts[index]);
+            }
+        }
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = null;
+            times[i] = null;
+            messages[i] = null;
+            errors[i] = null;
+            attrs[i] = null;
+            contexts[i] = null;
+        }
+        count = 0;
+    }
+}
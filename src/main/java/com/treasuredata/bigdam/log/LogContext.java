@@ -0,0 +1,157 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// Context attributes (e.g., request id) merged into every Fluentd event and Sentry report of the current thread.
+// A context is an immutable linked list of attributes: pushing an attribute creates a node pointing its parent,
+// and wrappers of Runnable/Callable/Supplier/Executor carry the context to other threads by reference (no copies).
+//
+//     try (LogContext.Scope scope = LogContext.put("request_id", id)) {
+//         log.info("processing"); // has request_id
+//         CompletableFuture.runAsync(LogContext.wrap(task), executor); // task logs with request_id
+//     }
+//
+// Attributes specified in log calls override context attributes of the same key, and nearer (later) context
+// attributes override farther ones.
+public final class LogContext
+{
+    static final LogContext EMPTY = new LogContext(null, null, null);
+
+    private static final ThreadLocal<LogContext> CURRENT = ThreadLocal.withInitial(() -> EMPTY);
+
+    final String key;
+    final Object value;
+    final LogContext parent;
+
+    private LogContext(final String key, final Object value, final LogContext parent)
+    {
+        this.key = key;
+        this.value = value;
+        this.parent = parent;
+    }
+
+    boolean isEmpty()
+    {
+        return parent == null;
+    }
+
+    // Restores the context of the time when the scope was opened
+    public static final class Scope
+            implements AutoCloseable
+    {
+        private final LogContext previous;
+
+        private Scope(final LogContext previous)
+        {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close()
+        {
+            CURRENT.set(previous);
+        }
+    }
+
+    static LogContext current()
+    {
+        return CURRENT.get();
+    }
+
+    public static Scope put(final String key, final Object value)
+    {
+        if (key == null) {
+            throw new IllegalArgumentException("Key of context attribute must not be null");
+        }
+        LogContext previous = CURRENT.get();
+        CURRENT.set(new LogContext(key, value, previous));
+        return new Scope(previous);
+    }
+
+    public static Scope putAll(final Map<String, ? extends Object> attrs)
+    {
+        LogContext previous = CURRENT.get();
+        LogContext context = previous;
+        for (Map.Entry<String, ? extends Object> pair : attrs.entrySet()) {
+            if (pair.getKey() == null) {
+                throw new IllegalArgumentException("Key of context attribute must not be null");
+            }
+            context = new LogContext(pair.getKey(), pair.getValue(), context);
+        }
+        CURRENT.set(context);
+        return new Scope(previous);
+    }
+
+    // attributes of the current context, in the order of these were put
+    public static Map<String, Object> attributes()
+    {
+        AttrsMap<String, Object> map = new AttrsMap<>(4);
+        CURRENT.get().putInto(map);
+        return map;
+    }
+
+    // from the root, so that nearer attributes override farther ones
+    void putInto(final AttrsMap<String, Object> map)
+    {
+        if (parent == null) {
+            return;
+        }
+        parent.putInto(map);
+        map.put(key, value);
+    }
+
+    public static Runnable wrap(final Runnable runnable)
+    {
+        LogContext captured = CURRENT.get();
+        return () -> {
+            LogContext previous = CURRENT.get();
+            CURRENT.set(captured);
+            try {
+                runnable.run();
+            }
+            finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    public static <T> Callable<T> wrapCallable(final Callable<T> callable)
+    {
+        LogContext captured = CURRENT.get();
+        return () -> {
+            LogContext previous = CURRENT.get();
+            CURRENT.set(captured);
+            try {
+                return callable.call();
+            }
+            finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    // for CompletableFuture.supplyAsync and so on
+    public static <T> Supplier<T> wrapSupplier(final Supplier<T> supplier)
+    {
+        LogContext captured = CURRENT.get();
+        return () -> {
+            LogContext previous = CURRENT.get();
+            CURRENT.set(captured);
+            try {
+                return supplier.get();
+            }
+            finally {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    // Tasks run by the returned executor have the context of the thread which submitted these
+    public static Executor wrapExecutor(final Executor executor)
+    {
+        return task -> executor.execute(wrap(task));
+    }
+}
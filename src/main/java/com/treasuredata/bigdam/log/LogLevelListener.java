@@ -0,0 +1,50 @@
+package com.treasuredata.bigdam.log;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggerContextListener;
+
+// Refreshes effective levels of all Log instances when logback levels are changed (by setLevel, or reconfiguration).
+class LogLevelListener
+        implements LoggerContextListener
+{
+    static synchronized void register(final LoggerContext context)
+    {
+        for (LoggerContextListener listener : context.getCopyOfListenerList()) {
+            if (listener instanceof LogLevelListener) {
+                return;
+            }
+        }
+        context.addListener(new LogLevelListener());
+    }
+
+    @Override
+    public boolean isResetResistant()
+    {
+        return true;
+    }
+
+    @Override
+    public void onStart(final LoggerContext context)
+    {
+        Log.refreshLevels();
+    }
+
+    @Override
+    public void onReset(final LoggerContext context)
+    {
+        Log.refreshLevels();
+    }
+
+    @Override
+    public void onStop(final LoggerContext context)
+    {
+    }
+
+    @Override
+    public void onLevelChange(final Logger logger, final Level level)
+    {
+        Log.refreshLevels();
+    }
+}
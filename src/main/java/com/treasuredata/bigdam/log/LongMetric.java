@@ -0,0 +1,54 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+public final class LongMetric
+        extends PrimitiveMetric
+{
+    private static final AtomicLongFieldUpdater<LongMetric> UPDATER = AtomicLongFieldUpdater.newUpdater(LongMetric.class, "value");
+
+    private volatile long value;
+
+    public LongMetric(final String name)
+    {
+        this(name, Labels.EMPTY);
+    }
+
+    public LongMetric(final String name, final Labels labels)
+    {
+        super(name, labels);
+        this.value = 0L;
+    }
+
+    public long get()
+    {
+        return value;
+    }
+
+    public void set(final long v)
+    {
+        value = v;
+    }
+
+    public long add(final long delta)
+    {
+        return UPDATER.addAndGet(this, delta);
+    }
+
+    public long increment()
+    {
+        return UPDATER.incrementAndGet(this);
+    }
+
+    @Override
+    public boolean isDouble()
+    {
+        return false;
+    }
+
+    @Override
+    long bits()
+    {
+        return value;
+    }
+}
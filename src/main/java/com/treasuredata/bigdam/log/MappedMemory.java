@@ -0,0 +1,141 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.base.Throwables;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+// Atomic (volatile, get-and-add and CAS) access to memory of mapped buffers, which Java 8 has no public API for.
+// sun.misc.Unsafe is looked up reflectively and called via method handles (constant-folded by JIT as static finals),
+// not to depend on the internal API at compile time. If the JDK doesn't have it or denies the access
+// (e.g., to Buffer.address on newer JDKs), AVAILABLE is false and MappedMetricStore keeps values on the heap.
+final class MappedMemory
+{
+    static final boolean AVAILABLE;
+
+    private static final Field ADDRESS;
+    private static final MethodHandle GET_INT_VOLATILE;
+    private static final MethodHandle PUT_INT_VOLATILE;
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_LONG_VOLATILE;
+    private static final MethodHandle GET_AND_ADD_LONG;
+    private static final MethodHandle COMPARE_AND_SWAP_LONG;
+
+    static {
+        Field address = null;
+        MethodHandle[] handles = new MethodHandle[6];
+        boolean available;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            handles[0] = lookup.findVirtual(unsafeClass, "getIntVolatile", MethodType.methodType(int.class, Object.class, long.class)).bindTo(unsafe);
+            handles[1] = lookup.findVirtual(unsafeClass, "putIntVolatile", MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+            handles[2] = lookup.findVirtual(unsafeClass, "getLongVolatile", MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+            handles[3] = lookup.findVirtual(unsafeClass, "putLongVolatile", MethodType.methodType(void.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            handles[4] = lookup.findVirtual(unsafeClass, "getAndAddLong", MethodType.methodType(long.class, Object.class, long.class, long.class)).bindTo(unsafe);
+            handles[5] = lookup.findVirtual(unsafeClass, "compareAndSwapLong", MethodType.methodType(boolean.class, Object.class, long.class, long.class, long.class)).bindTo(unsafe);
+            address = Buffer.class.getDeclaredField("address");
+            address.setAccessible(true);
+            available = true;
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            available = false;
+        }
+        AVAILABLE = available;
+        ADDRESS = available ? address : null;
+        GET_INT_VOLATILE = available ? handles[0] : null;
+        PUT_INT_VOLATILE = available ? handles[1] : null;
+        GET_LONG_VOLATILE = available ? handles[2] : null;
+        PUT_LONG_VOLATILE = available ? handles[3] : null;
+        GET_AND_ADD_LONG = available ? handles[4] : null;
+        COMPARE_AND_SWAP_LONG = available ? handles[5] : null;
+    }
+
+    private MappedMemory()
+    {
+    }
+
+    // address of a direct (or mapped) buffer
+    static long addressOf(final ByteBuffer buffer)
+    {
+        try {
+            return ADDRESS.getLong(buffer);
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int getIntVolatile(final long address)
+    {
+        try {
+            return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static void putIntVolatile(final long address, final int value)
+    {
+        try {
+            PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static long getLongVolatile(final long address)
+    {
+        try {
+            return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static void putLongVolatile(final long address, final long value)
+    {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object) null, address, value);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static long getAndAddLong(final long address, final long delta)
+    {
+        try {
+            return (long) GET_AND_ADD_LONG.invokeExact((Object) null, address, delta);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static boolean compareAndSwapLong(final long address, final long expected, final long value)
+    {
+        try {
+            return (boolean) COMPARE_AND_SWAP_LONG.invokeExact((Object) null, address, expected, value);
+        }
+        catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static RuntimeException propagate(final Throwable e)
+    {
+        Throwables.throwIfUnchecked(e);
+        throw new IllegalStateException(e);
+    }
+}
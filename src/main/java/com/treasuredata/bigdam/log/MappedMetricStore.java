@@ -0,0 +1,518 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Store of counters and gauges, whose values live in a memory-mapped file instead of the heap.
+// Values are updated with atomic operations on the mapped memory, and other processes (e.g., a sidecar agent)
+// can scrape the file while this process updates it. MetricMonitor reads it via addMetricStore().
+//
+// File layout (all integers are in the native byte order of the writer, see BYTE_ORDER_MARK):
+//   header (64 bytes):
+//     0: int  magic (0x42444D53, "BDMS")
+//     4: int  version (1)
+//     8: int  number of slots
+//    12: int  size of the dictionary region in bytes
+//    16: int  number of published slots (written after the slot and its dictionary entry are written)
+//    20: int  used bytes of the dictionary region
+//    24: long byte order mark (0x0102030405060708)
+//   slots (32 bytes each), from offset 64:
+//     0: long value (long, or IEEE 754 bits of double for KIND_DOUBLE_GAUGE)
+//     8: int  kind (KIND_COUNTER, KIND_GAUGE or KIND_DOUBLE_GAUGE)
+//    12: int  offset of the dictionary entry (from the start of the dictionary region)
+//    16: int  length of the dictionary entry
+//   dictionary region, from offset 64 + 32 * slots:
+//     entry: u16 number of strings, then strings of (u16 length, UTF-8 bytes): name, label key 1, label value 1, ...
+// Published slots are never changed except values, so readers can cache names and labels per slot.
+//
+// Atomic operations on mapped memory are done by MappedMemory. If it's not available on the JDK, values are kept
+// on the heap (atomically) and copied into the file after updates, so readers may see stale values for a moment.
+public class MappedMetricStore
+        implements Closeable
+{
+    public static final int MAGIC = 0x42444D53;
+    public static final int VERSION = 1;
+    public static final long BYTE_ORDER_MARK = 0x0102030405060708L;
+
+    public static final int KIND_COUNTER = 1;
+    public static final int KIND_GAUGE = 2;
+    public static final int KIND_DOUBLE_GAUGE = 3;
+
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 32;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int DICTIONARY_SIZE_OFFSET = 12;
+    private static final int PUBLISHED_OFFSET = 16;
+    private static final int DICTIONARY_USED_OFFSET = 20;
+    private static final int BYTE_ORDER_MARK_OFFSET = 24;
+
+    private static final int SLOT_VALUE_OFFSET = 0;
+    private static final int SLOT_KIND_OFFSET = 8;
+    private static final int SLOT_ENTRY_OFFSET = 12;
+    private static final int SLOT_ENTRY_LENGTH_OFFSET = 16;
+
+    private final Path path;
+    private final FileChannel channel;
+    // referenced as long as cells are alive: the mapping is released when the buffer is collected
+    private final MappedByteBuffer buffer;
+    // values are updated on the mapped memory, or on the heap if MappedMemory is not available
+    private final boolean direct;
+    private final long address;
+    private final int slots;
+    private final int dictionarySize;
+    private final int dictionaryOffset;
+
+    private final ConcurrentMap<Long, PrimitiveMetric> cells;
+    private final List<PrimitiveMetric> metrics;
+    private int published;
+    private int dictionaryUsed;
+
+    private MappedMetricStore(final Path path, final FileChannel channel, final MappedByteBuffer buffer, final boolean direct, final int slots, final int dictionarySize)
+    {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.direct = direct;
+        this.address = direct ? MappedMemory.addressOf(buffer) : 0L;
+        this.slots = slots;
+        this.dictionarySize = dictionarySize;
+        this.dictionaryOffset = HEADER_SIZE + SLOT_SIZE * slots;
+        this.cells = new ConcurrentHashMap<>();
+        this.metrics = new CopyOnWriteArrayList<>();
+        this.published = 0;
+        this.dictionaryUsed = 0;
+    }
+
+    // Creates a new store file, replacing the existing one (readers which mapped the old file keep reading it)
+    public static MappedMetricStore create(final Path path, final int slots, final int dictionarySize)
+            throws IOException
+    {
+        return create(path, slots, dictionarySize, MappedMemory.AVAILABLE);
+    }
+
+    static MappedMetricStore create(final Path path, final int slots, final int dictionarySize, final boolean direct)
+            throws IOException
+    {
+        if (slots < 1 || dictionarySize < 1) {
+            throw new IllegalArgumentException("Slots and dictionary size must be positive integers");
+        }
+        long size = HEADER_SIZE + (long) SLOT_SIZE * slots + dictionarySize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Metric store is too large:" + size);
+        }
+        Files.deleteIfExists(path);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(SLOTS_OFFSET, slots);
+            buffer.putInt(DICTIONARY_SIZE_OFFSET, dictionarySize);
+            buffer.putInt(PUBLISHED_OFFSET, 0);
+            buffer.putInt(DICTIONARY_USED_OFFSET, 0);
+            buffer.putLong(BYTE_ORDER_MARK_OFFSET, BYTE_ORDER_MARK);
+            MappedMetricStore store = new MappedMetricStore(path, channel, buffer, direct, slots, dictionarySize);
+            // magic is written at last, so that readers don't read partially initialized header
+            store.putIntVolatile(MAGIC_OFFSET, MAGIC);
+            return store;
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    // false if values are kept on the heap, as MappedMemory is not available
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    // Cumulative value, emitted as deltas and rates by MetricMonitor
+    public MappedLongMetric counter(final String name, final Labels labels)
+    {
+        return (MappedLongMetric) cell(name, labels, KIND_COUNTER);
+    }
+
+    public MappedLongMetric gauge(final String name, final Labels labels)
+    {
+        return (MappedLongMetric) cell(name, labels, KIND_GAUGE);
+    }
+
+    public MappedDoubleMetric doubleGauge(final String name, final Labels labels)
+    {
+        return (MappedDoubleMetric) cell(name, labels, KIND_DOUBLE_GAUGE);
+    }
+
+    // metrics in the order of slots, which can be iterated while metrics are added
+    List<PrimitiveMetric> metrics()
+    {
+        return metrics;
+    }
+
+    static boolean isCounter(final PrimitiveMetric metric)
+    {
+        return metric instanceof MappedLongMetric && ((MappedLongMetric) metric).counter;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        // the mapping itself is kept until the buffer is collected, not to crash writers of cells
+        buffer.force();
+        channel.close();
+    }
+
+    private PrimitiveMetric cell(final String name, final Labels labels, final int kind)
+    {
+        Labels l = labels == null ? Labels.EMPTY : labels;
+        long key = SeriesTable.hashSeries(Integer.toString(kind), name, l.hash());
+        PrimitiveMetric cell = cells.get(key);
+        if (cell == null) {
+            synchronized (this) {
+                cell = cells.get(key);
+                if (cell == null) {
+                    cell = allocate(name, l, kind);
+                    cells.put(key, cell);
+                    metrics.add(cell);
+                }
+            }
+        }
+        if (!cell.getName().equals(name) || !cell.getLabels().equals(l)) {
+            throw new IllegalArgumentException("Metric conflicts with " + cell.getName() + cell.getLabels().asMap() + " in the store:" + name);
+        }
+        return cell;
+    }
+
+    // called in synchronized(this)
+    private PrimitiveMetric allocate(final String name, final Labels labels, final int kind)
+    {
+        if (published >= slots) {
+            throw new IllegalStateException("No more slots in the metric store " + path + ":" + slots);
+        }
+        byte[] entry = encodeEntry(name, labels);
+        if (dictionaryUsed + entry.length > dictionarySize) {
+            throw new IllegalStateException("No more space in the dictionary of the metric store " + path + ":" + dictionarySize);
+        }
+        int entryOffset = dictionaryUsed;
+        ByteBuffer dictionary = buffer.duplicate();
+        dictionary.position(dictionaryOffset + entryOffset);
+        dictionary.put(entry);
+        dictionaryUsed += entry.length;
+
+        int slot = HEADER_SIZE + SLOT_SIZE * published;
+        buffer.putLong(slot + SLOT_VALUE_OFFSET, 0L);
+        buffer.putInt(slot + SLOT_KIND_OFFSET, kind);
+        buffer.putInt(slot + SLOT_ENTRY_OFFSET, entryOffset);
+        buffer.putInt(slot + SLOT_ENTRY_LENGTH_OFFSET, entry.length);
+        buffer.putInt(DICTIONARY_USED_OFFSET, dictionaryUsed);
+        published += 1;
+        // release: readers which see the new count see the slot and its entry
+        putIntVolatile(PUBLISHED_OFFSET, published);
+
+        if (kind == KIND_DOUBLE_GAUGE) {
+            return new MappedDoubleMetric(this, name, labels, slot + SLOT_VALUE_OFFSET);
+        }
+        return new MappedLongMetric(this, name, labels, slot + SLOT_VALUE_OFFSET, kind == KIND_COUNTER);
+    }
+
+    // copies a heap value into the file, until no other updates race with the copy (the last update wins)
+    private void mirror(final int offset, final AtomicLong heap)
+    {
+        long value;
+        do {
+            value = heap.get();
+            buffer.putLong(offset, value);
+        }
+        while (heap.get() != value);
+    }
+
+    private void putIntVolatile(final int offset, final int value)
+    {
+        if (direct) {
+            MappedMemory.putIntVolatile(address + offset, value);
+        }
+        else {
+            buffer.putInt(offset, value);
+        }
+    }
+
+    private static byte[] encodeEntry(final String name, final Labels labels)
+    {
+        List<byte[]> strings = new ArrayList<>(1 + labels.asMap().size() * 2);
+        strings.add(name.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, Object> pair : labels.asMap().entrySet()) {
+            strings.add(pair.getKey().getBytes(StandardCharsets.UTF_8));
+            strings.add(pair.getValue().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        int length = 2;
+        for (byte[] s : strings) {
+            if (s.length > 0xffff) {
+                throw new IllegalArgumentException("Name or label is too long for the metric store:" + name);
+            }
+            length += 2 + s.length;
+        }
+        if (strings.size() > 0xffff) {
+            throw new IllegalArgumentException("Too many labels for the metric store:" + name);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+        entry.putShort((short) strings.size());
+        for (byte[] s : strings) {
+            entry.putShort((short) s.length);
+            entry.put(s);
+        }
+        return entry.array();
+    }
+
+    public static final class MappedLongMetric
+            extends PrimitiveMetric
+    {
+        private final MappedMetricStore store; // keeps the mapping alive
+        // absolute address of the value, if the store is direct
+        private final long address;
+        private final int offset;
+        private final AtomicLong heap;
+        private final boolean counter;
+
+        private MappedLongMetric(final MappedMetricStore store, final String name, final Labels labels, final int offset, final boolean counter)
+        {
+            super(name, labels);
+            this.store = store;
+            this.address = store.address + offset;
+            this.offset = offset;
+            this.heap = store.direct ? null : new AtomicLong(0L);
+            this.counter = counter;
+        }
+
+        public long get()
+        {
+            if (heap != null) {
+                return heap.get();
+            }
+            return MappedMemory.getLongVolatile(address);
+        }
+
+        public void set(final long v)
+        {
+            if (heap != null) {
+                heap.set(v);
+                store.mirror(offset, heap);
+                return;
+            }
+            MappedMemory.putLongVolatile(address, v);
+        }
+
+        public long add(final long delta)
+        {
+            if (heap != null) {
+                long v = heap.addAndGet(delta);
+                store.mirror(offset, heap);
+                return v;
+            }
+            return MappedMemory.getAndAddLong(address, delta) + delta;
+        }
+
+        public long increment()
+        {
+            return add(1L);
+        }
+
+        @Override
+        public boolean isDouble()
+        {
+            return false;
+        }
+
+        @Override
+        long bits()
+        {
+            return get();
+        }
+    }
+
+    public static final class MappedDoubleMetric
+            extends PrimitiveMetric
+    {
+        private final MappedMetricStore store; // keeps the mapping alive
+        private final long address;
+        private final int offset;
+        // raw bits of the value, if the store is not direct
+        private final AtomicLong heap;
+
+        private MappedDoubleMetric(final MappedMetricStore store, final String name, final Labels labels, final int offset)
+        {
+            super(name, labels);
+            this.store = store;
+            this.address = store.address + offset;
+            this.offset = offset;
+            this.heap = store.direct ? null : new AtomicLong(Double.doubleToLongBits(0.0));
+        }
+
+        public double get()
+        {
+            return Double.longBitsToDouble(bits());
+        }
+
+        public void set(final double v)
+        {
+            long bits = Double.doubleToLongBits(v);
+            if (heap != null) {
+                heap.set(bits);
+                store.mirror(offset, heap);
+                return;
+            }
+            MappedMemory.putLongVolatile(address, bits);
+        }
+
+        public double add(final double delta)
+        {
+            while (true) {
+                long current = bits();
+                double next = Double.longBitsToDouble(current) + delta;
+                long nextBits = Double.doubleToLongBits(next);
+                if (heap != null) {
+                    if (heap.compareAndSet(current, nextBits)) {
+                        store.mirror(offset, heap);
+                        return next;
+                    }
+                }
+                else if (MappedMemory.compareAndSwapLong(address, current, nextBits)) {
+                    return next;
+                }
+            }
+        }
+
+        @Override
+        public boolean isDouble()
+        {
+            return true;
+        }
+
+        @Override
+        long bits()
+        {
+            if (heap != null) {
+                return heap.get();
+            }
+            return MappedMemory.getLongVolatile(address);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Visitor
+    {
+        // value is the raw bits of double for KIND_DOUBLE_GAUGE
+        void visit(String name, Map<String, String> labels, int kind, long value);
+    }
+
+    // Reference reader of store files, for other processes. Names and labels of slots are decoded only once.
+    public static class Reader
+            implements Closeable
+    {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final long address;
+        private final int slots;
+        private final int dictionaryOffset;
+        private final List<String> names;
+        private final List<Map<String, String>> labels;
+
+        public Reader(final Path path)
+                throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.nativeOrder());
+                if (buffer.capacity() < HEADER_SIZE || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                    throw new IOException("Not a metric store file, or not initialized yet:" + path);
+                }
+                if (buffer.getLong(BYTE_ORDER_MARK_OFFSET) != BYTE_ORDER_MARK) {
+                    throw new IOException("Metric store file was written in a different byte order:" + path);
+                }
+                if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+                    throw new IOException("Unsupported version of metric store file:" + buffer.getInt(VERSION_OFFSET));
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            this.address = MappedMemory.AVAILABLE ? MappedMemory.addressOf(buffer) : 0L;
+            this.slots = buffer.getInt(SLOTS_OFFSET);
+            this.dictionaryOffset = HEADER_SIZE + SLOT_SIZE * slots;
+            this.names = new ArrayList<>();
+            this.labels = new ArrayList<>();
+        }
+
+        public void read(final Visitor visitor)
+        {
+            int published = MappedMemory.AVAILABLE ? MappedMemory.getIntVolatile(address + PUBLISHED_OFFSET) : buffer.getInt(PUBLISHED_OFFSET);
+            int count = Math.min(published, slots);
+            for (int i = names.size(); i < count; i++) {
+                decodeEntry(HEADER_SIZE + SLOT_SIZE * i);
+            }
+            for (int i = 0; i < count; i++) {
+                int slot = HEADER_SIZE + SLOT_SIZE * i;
+                int kind = buffer.getInt(slot + SLOT_KIND_OFFSET);
+                long value = MappedMemory.AVAILABLE ? MappedMemory.getLongVolatile(address + slot + SLOT_VALUE_OFFSET) : buffer.getLong(slot + SLOT_VALUE_OFFSET);
+                visitor.visit(names.get(i), labels.get(i), kind, value);
+            }
+        }
+
+        private void decodeEntry(final int slot)
+        {
+            ByteBuffer entry = buffer.duplicate().order(ByteOrder.nativeOrder());
+            entry.position(dictionaryOffset + buffer.getInt(slot + SLOT_ENTRY_OFFSET));
+            int strings = entry.getShort() & 0xffff;
+            String name = decodeString(entry);
+            Map<String, String> map = new LinkedHashMap<>();
+            for (int i = 1; i + 1 < strings; i += 2) {
+                String key = decodeString(entry);
+                map.put(key, decodeString(entry));
+            }
+            names.add(name);
+            labels.add(Collections.unmodifiableMap(map));
+        }
+
+        private static String decodeString(final ByteBuffer entry)
+        {
+            byte[] bytes = new byte[entry.getShort() & 0xffff];
+            entry.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Columnar buffer of metrics in a tick, to be emitted as a single record
+class MetricBatch
+{
+    public static final String NAMES_FIELD_NAME = "names";
+    public static final String VALUES_FIELD_NAME = "values";
+    public static final String RATES_FIELD_NAME = "rates";
+    public static final String LABELS_FIELD_NAME = "labels";
+
+    private final List<String> names;
+    private final List<Object> values;
+    private final List<Double> rates;
+    private final List<Map<String, Object>> labels;
+
+    MetricBatch()
+    {
+        this.names = new ArrayList<>();
+        this.values = new ArrayList<>();
+        this.rates = new ArrayList<>();
+        this.labels = new ArrayList<>();
+    }
+
+    // rate is NaN (null in the record) except for counters
+    void add(final String name, final Object value, final double rate, final Map<String, Object> labelSet)
+    {
+        names.add(name);
+        values.add(value);
+        rates.add(Double.isNaN(rate) ? null : rate);
+        labels.add(labelSet);
+    }
+
+    int size()
+    {
+        return names.size();
+    }
+
+    boolean isEmpty()
+    {
+        return names.isEmpty();
+    }
+
+    // columns are copied because this batch is reused in the next tick
+    Map<String, Object> toRecord()
+    {
+        return ImmutableMap.of(
+                NAMES_FIELD_NAME, new ArrayList<>(names),
+                VALUES_FIELD_NAME, new ArrayList<>(values),
+                RATES_FIELD_NAME, new ArrayList<>(rates),
+                LABELS_FIELD_NAME, new ArrayList<>(labels));
+    }
+
+    void clear()
+    {
+        names.clear();
+        values.clear();
+        rates.clear();
+        labels.clear();
+    }
+}
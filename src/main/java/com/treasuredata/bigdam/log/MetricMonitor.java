@@ -2,8 +2,11 @@ package com.treasuredata.bigdam.log;
 
 import com.google.common.collect.ImmutableMap;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -33,6 +36,35 @@ public class MetricMonitor
     private final List<MetricProducer> rawMetricProducers;
     private final List<ComplexMetricProducer> metricProducersComplex;
     private final List<ComplexMetricProducer> rawMetricProducersComplex;
+    private final List<MetricProducer> counterProducers;
+    private final List<ComplexMetricProducer> counterProducersComplex;
+    private final List<PrimitiveMetric> primitiveMetrics;
+    private final List<PrimitiveMetric> rawPrimitiveMetrics;
+    private final List<PrimitiveMetric> counterPrimitiveMetrics;
+    private final List<HistogramMetric> histograms;
+    private final List<HistogramMetric.Snapshot> histogramSnapshots;
+    private final List<MappedMetricStore> metricStores;
+    private final List<MetricSink> sinks;
+    private final List<MetricRollup> rollups;
+
+    // last values of monotonic counters, keyed by (name, labels)
+    private final SeriesTable counters;
+    private int tick;
+
+    // tag name (after prefix) of compact batch records, or null when compact mode is disabled
+    private String compactTagName;
+    private final MetricBatch metricBatch;
+    private final MetricBatch rawMetricBatch;
+
+    // fingerprints of last emitted values, keyed by (prefix, name, labels), used when heartbeatTicks > 0
+    private final SeriesTable lastEmitted;
+    private int heartbeatTicks;
+
+    // limits the number of label sets per metric name, or null if not limited
+    private CardinalityGuard cardinalityGuard;
+
+    // saves counter baselines in every tick, or null if not enabled
+    private CounterCheckpoint checkpoint;
 
     private final int metricIntervalSeconds;
 
@@ -43,6 +75,21 @@ public class MetricMonitor
     private static final long SLEEP_INTERVAL_MSEC = 800L;
     private static final long MONITOR_THREAD_STOP_TIMEOUT = 2000L; // sleep interval * 2 + alpha
 
+    public static final String RATE_FIELD_NAME = "rate";
+    // prefix of dynamic labels (of producers and stores) named as reserved fields (metricFieldName, and RATE_FIELD_NAME of counters)
+    public static final String CONFLICTING_LABEL_PREFIX = "label_";
+
+    // emitted into tagPrefixMetric with label "metric" (tag prefix + name), when label sets of the metric are folded
+    public static final String CARDINALITY_OVERFLOW_METRIC_NAME = "cardinality_overflow";
+
+    // counter series not reported for this number of ticks are forgotten (and restart from a new baseline)
+    private static final int COUNTER_EXPIRE_TICKS = 10;
+
+    // kinds of values: primitive values are passed as (kind, bits) not to box these until emitting records
+    private static final byte KIND_OBJECT = 0;
+    private static final byte KIND_LONG = 1;
+    private static final byte KIND_DOUBLE = 2;
+
     public MetricMonitor(
             final Log logger,
             final String tagPrefixMetric,
@@ -64,6 +111,29 @@ public class MetricMonitor
         this.rawMetricProducers = new ArrayList<>();
         this.metricProducersComplex = new ArrayList<>();
         this.rawMetricProducersComplex = new ArrayList<>();
+        this.counterProducers = new ArrayList<>();
+        this.counterProducersComplex = new ArrayList<>();
+        this.primitiveMetrics = new ArrayList<>();
+        this.rawPrimitiveMetrics = new ArrayList<>();
+        this.counterPrimitiveMetrics = new ArrayList<>();
+        this.histograms = new ArrayList<>();
+        this.histogramSnapshots = new ArrayList<>();
+        this.metricStores = new ArrayList<>();
+        this.sinks = new ArrayList<>();
+        this.rollups = new ArrayList<>();
+
+        this.counters = new SeriesTable();
+        this.tick = 0;
+
+        this.compactTagName = null;
+        this.metricBatch = new MetricBatch();
+        this.rawMetricBatch = new MetricBatch();
+
+        this.lastEmitted = new SeriesTable();
+        this.heartbeatTicks = 0;
+
+        this.cardinalityGuard = null;
+        this.checkpoint = null;
 
         this.running = new AtomicBoolean(false);
     }
@@ -88,6 +158,128 @@ public class MetricMonitor
         rawMetricProducersComplex.add(producer);
     }
 
+    // Producers registered as counter producers return cumulative values (e.g., bytes processed since start).
+    // MetricMonitor emits per-interval deltas and per-second rates of these values into tagPrefixMetric.
+    public void addCounterProducer(final MetricProducer producer)
+    {
+        counterProducers.add(producer);
+    }
+
+    public void addCounterProducer(final ComplexMetricProducer producer)
+    {
+        counterProducersComplex.add(producer);
+    }
+
+    // Primitive metrics are registered once, and updated in place by producers.
+    public void addMetric(final PrimitiveMetric metric)
+    {
+        checkLabels(metric.getName(), metric.getLabels(), false);
+        primitiveMetrics.add(metric);
+    }
+
+    public void addRawMetric(final PrimitiveMetric metric)
+    {
+        checkLabels(metric.getName(), metric.getLabels(), false);
+        rawPrimitiveMetrics.add(metric);
+    }
+
+    public void addCounterMetric(final PrimitiveMetric metric)
+    {
+        checkLabels(metric.getName(), metric.getLabels(), true);
+        counterPrimitiveMetrics.add(metric);
+    }
+
+    // Histograms are drained in each tick, and emitted into tagPrefixMetric as series of
+    // <name>.count, <name>.sum, <name>.max, <name>.p50, <name>.p90 and <name>.p99.
+    public void addHistogram(final HistogramMetric histogram)
+    {
+        checkLabels(histogram.getName(), histogram.getLabels(), false);
+        histograms.add(histogram);
+        histogramSnapshots.add(new HistogramMetric.Snapshot());
+    }
+
+    // labels of registered metrics must not be named as reserved fields of records (RATE_FIELD_NAME only in records of counters)
+    private void checkLabels(final String name, final Labels labels, final boolean counter)
+    {
+        Map<String, Object> map = labels.asMap();
+        if (map.containsKey(metricFieldName)) {
+            throw new IllegalArgumentException(String.format("Labels of metric %s must not be named '%s'", name, metricFieldName));
+        }
+        if (counter && map.containsKey(RATE_FIELD_NAME)) {
+            throw new IllegalArgumentException(String.format("Labels of counter %s must not be named '%s'", name, RATE_FIELD_NAME));
+        }
+    }
+
+    // Metrics in the store are emitted into tagPrefixMetric: counters as deltas and rates, and gauges as these are.
+    // Metrics added to the store later are also emitted.
+    public void addMetricStore(final MappedMetricStore store)
+    {
+        metricStores.add(store);
+    }
+
+    // Sinks receive metrics emitted in each tick (after counter/change-only processing), in addition to Fluentd events
+    public void addSink(final MetricSink sink)
+    {
+        sinks.add(sink);
+    }
+
+    // In compact mode, all metrics in a tick are emitted as a record per tag prefix (tagPrefix + compactTagName),
+    // which has columnar arrays of names, values, rates (null except for counters) and labels, instead of an event per metric.
+    public void enableCompactMode(final String compactTagName)
+    {
+        if (compactTagName == null || compactTagName.isEmpty()) {
+            throw new IllegalArgumentException("Tag name for compact metric records is not specified");
+        }
+        this.compactTagName = compactTagName;
+    }
+
+    // In change-only mode, a metric series (name and labels) is emitted only when its value changed since the last tick,
+    // or it appeared newly. All series are emitted every heartbeatTicks ticks even if these are not changed.
+    // Counters are emitted whenever their deltas are non-zero, even if the deltas are the same as the last tick.
+    public void enableChangeOnlyMode(final int heartbeatTicks)
+    {
+        if (heartbeatTicks < 1) {
+            throw new IllegalArgumentException("Heartbeat ticks must be a positive integer:" + heartbeatTicks);
+        }
+        this.heartbeatTicks = heartbeatTicks;
+    }
+
+    // Limits the number of label sets (series) per metric name. Once the limit is reached, values of new label sets
+    // are summed up into a series with label "__overflow__", and the number of folded values is emitted
+    // as CARDINALITY_OVERFLOW_METRIC_NAME. Label sets not seen for expireTicks ticks are forgotten.
+    public void enableCardinalityLimit(final int maxLabelSetsPerName, final int expireTicks)
+    {
+        if (maxLabelSetsPerName < 1 || expireTicks < 1) {
+            throw new IllegalArgumentException("Cardinality limit and expire ticks must be positive integers");
+        }
+        this.cardinalityGuard = new CardinalityGuard(maxLabelSetsPerName, expireTicks);
+    }
+
+    // Rollups aggregate samples of tagPrefixMetric (values after counter processing, and histograms) over windowTicks ticks,
+    // and emit these every windowTicks ticks as events of rollupTagPrefix + name, which have sum/min/max/last/count
+    // (count/sum/max/p50/p90/p99 for histograms) and labels. Rollup events are not batched in compact mode, nor written to sinks.
+    public void addRollup(final String rollupTagPrefix, final int windowTicks)
+    {
+        if (rollupTagPrefix == null || rollupTagPrefix.isEmpty() || rollupTagPrefix.equals(tagPrefixMetric) || rollupTagPrefix.equals(tagPrefixRawMetric)) {
+            throw new IllegalArgumentException("Tag prefix of rollups must be different from ones of metrics:" + rollupTagPrefix);
+        }
+        if (windowTicks < 2) {
+            throw new IllegalArgumentException("Window of rollups must be 2 ticks or more:" + windowTicks);
+        }
+        rollups.add(new MetricRollup(rollupTagPrefix, windowTicks));
+    }
+
+    // Saves last values of counters (and fingerprints of change-only mode) into the file in every tick, and loads these
+    // on start, so that deltas and rates of counters continue over process restarts without a lost interval.
+    // Counters which restart from zero in the new process are treated as counter resets.
+    public void enableCounterCheckpoint(final Path path)
+    {
+        if (path == null) {
+            throw new IllegalArgumentException("Path of counter checkpoint is not specified");
+        }
+        this.checkpoint = new CounterCheckpoint(path);
+    }
+
     // only for MetricMonitorTest
     void setSleepInterval(final long sleepInterval)
     {
@@ -96,6 +288,9 @@ public class MetricMonitor
 
     public void start()
     {
+        if (checkpoint != null) {
+            loadCheckpoint();
+        }
         running.set(true);
         monitorThread = new Thread(this::loop);
         monitorThread.start();
@@ -121,6 +316,75 @@ public class MetricMonitor
         }
     }
 
+    // Visits current values of all registered metrics without emitting these, for pull-style exporters.
+    // Producers are called on the caller thread (so these should be thread-safe), and counters are visited
+    // by writeCounter as these are (cumulative values) instead of deltas. Histograms are visited by writeHistogram
+    // with cumulative buckets, not drained.
+    public void collect(final MetricSink sink)
+    {
+        collectMetric(sink, metricProducers, tagPrefixMetric, false);
+        collectComplexMetric(sink, metricProducersComplex, tagPrefixMetric, false);
+        collectPrimitiveMetric(sink, primitiveMetrics, tagPrefixMetric, false);
+
+        collectMetric(sink, rawMetricProducers, tagPrefixRawMetric, false);
+        collectComplexMetric(sink, rawMetricProducersComplex, tagPrefixRawMetric, false);
+        collectPrimitiveMetric(sink, rawPrimitiveMetrics, tagPrefixRawMetric, false);
+
+        collectMetric(sink, counterProducers, tagPrefixMetric, true);
+        collectComplexMetric(sink, counterProducersComplex, tagPrefixMetric, true);
+        collectPrimitiveMetric(sink, counterPrimitiveMetrics, tagPrefixMetric, true);
+
+        for (HistogramMetric histogram : histograms) {
+            sink.writeHistogram(tagPrefixMetric, histogram.getName(), histogram.totalBuckets(), histogram.totalSum(), histogram.getLabels().asMap());
+        }
+
+        for (MappedMetricStore store : metricStores) {
+            for (PrimitiveMetric metric : store.metrics()) {
+                collectPrimitiveMetric(sink, metric, tagPrefixMetric, MappedMetricStore.isCounter(metric));
+            }
+        }
+    }
+
+    private static void collectMetric(MetricSink sink, List<MetricProducer> producers, String tagPrefix, boolean counter)
+    {
+        for (MetricProducer producer : producers) {
+            for (Map.Entry<String, Object> kv : producer.produce().entrySet()) {
+                if (counter) {
+                    sink.writeCounter(tagPrefix, kv.getKey(), kv.getValue(), Labels.EMPTY.asMap());
+                }
+                else {
+                    sink.write(tagPrefix, kv.getKey(), kv.getValue(), Labels.EMPTY.asMap());
+                }
+            }
+        }
+    }
+
+    private static void collectComplexMetric(MetricSink sink, List<ComplexMetricProducer> producers, String tagPrefix, boolean counter)
+    {
+        for (ComplexMetricProducer producer : producers) {
+            for (ComplexMetric metric : producer.produce()) {
+                if (counter) {
+                    sink.writeCounter(tagPrefix, metric.getName(), metric.getValue(), metric.getAdditional());
+                }
+                else {
+                    sink.write(tagPrefix, metric.getName(), metric.getValue(), metric.getAdditional());
+                }
+            }
+        }
+    }
+
+    private static void collectPrimitiveMetric(MetricSink sink, List<PrimitiveMetric> metrics, String tagPrefix, boolean counter)
+    {
+        for (PrimitiveMetric metric : metrics) {
+            collectPrimitiveMetric(sink, metric, tagPrefix, counter);
+        }
+    }
+
+    private static void collectPrimitiveMetric(MetricSink sink, PrimitiveMetric metric, String tagPrefix, boolean counter)
+    {
+        writeTo(sink, tagPrefix, metric.getName(), metric.isDouble() ? KIND_DOUBLE : KIND_LONG, metric.bits(), null, metric.getLabels().asMap(), counter);
+    }
+
     private void loop()
     {
         long metricInterval = metricIntervalSeconds * 1_000_000_000L;
@@ -143,19 +407,305 @@ public class MetricMonitor
     private void run()
     {
         Instant now = Instant.now();
+        long nowNanos = Clock.now();
+        tick += 1;
+
+        for (MetricSink sink : sinks) {
+            sink.begin(now);
+        }
+        try {
+            processMetric(logger, now, metricProducers, tagPrefixMetric);
+            processComplexMetric(logger, now, metricProducersComplex, tagPrefixMetric);
+            processPrimitiveMetric(logger, now, primitiveMetrics, tagPrefixMetric);
+            processHistogram(logger, now, tagPrefixMetric);
+
+            processMetric(logger, now, rawMetricProducers, tagPrefixRawMetric);
+            processComplexMetric(logger, now, rawMetricProducersComplex, tagPrefixRawMetric);
+            processPrimitiveMetric(logger, now, rawPrimitiveMetrics, tagPrefixRawMetric);
+
+            processCounter(logger, now, nowNanos, counterProducers, tagPrefixMetric);
+            processComplexCounter(logger, now, nowNanos, counterProducersComplex, tagPrefixMetric);
+            processPrimitiveCounter(logger, now, nowNanos, counterPrimitiveMetrics, tagPrefixMetric);
+            for (MappedMetricStore store : metricStores) {
+                processMetricStore(logger, now, nowNanos, store, tagPrefixMetric);
+            }
+            counters.expire(tick - COUNTER_EXPIRE_TICKS);
+            if (cardinalityGuard != null) {
+                emitOverflows(logger, now);
+                cardinalityGuard.expire(tick);
+            }
+            if (heartbeatTicks > 0) {
+                lastEmitted.expire(tick - heartbeatTicks);
+            }
+            for (MetricRollup rollup : rollups) {
+                if (rollup.isDue(tick)) {
+                    rollup.emit(logger, now, tick);
+                }
+            }
+            if (checkpoint != null) {
+                saveCheckpoint(now, nowNanos);
+            }
+        }
+        finally {
+            // metrics collected before errors are emitted, as in the non-compact mode
+            flushBatch(logger, now, metricBatch, tagPrefixMetric);
+            flushBatch(logger, now, rawMetricBatch, tagPrefixRawMetric);
+            for (MetricSink sink : sinks) {
+                sink.flush();
+            }
+        }
+    }
+
+    private static long epochNanos(final Instant instant)
+    {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
 
-        processMetric(logger, now, metricProducers, tagPrefixMetric);
-        processComplexMetric(logger, now, metricProducersComplex, tagPrefixMetric);
+    private void loadCheckpoint()
+    {
+        try {
+            checkpoint.load(counters, lastEmitted, Clock.now(), epochNanos(Instant.now()), tick);
+        }
+        catch (IOException | RuntimeException e) {
+            // broken checkpoint: counters restart from new baselines
+            counters.clear();
+            lastEmitted.clear();
+            logger.warn(String.format("MetricMonitor failed to load counter checkpoint %s: %s", checkpoint.getPath(), e.getMessage()));
+        }
+    }
 
-        processMetric(logger, now, rawMetricProducers, tagPrefixRawMetric);
-        processComplexMetric(logger, now, rawMetricProducersComplex, tagPrefixRawMetric);
+    private void saveCheckpoint(Instant now, long nowNanos)
+    {
+        try {
+            checkpoint.save(counters, lastEmitted, nowNanos, epochNanos(now));
+        }
+        catch (IOException e) {
+            logger.warn(String.format("MetricMonitor failed to save counter checkpoint %s: %s", checkpoint.getPath(), e.getMessage()));
+        }
+    }
+
+    private static byte kindOf(final Object value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return KIND_LONG;
+        }
+        if (value instanceof Number) {
+            return KIND_DOUBLE;
+        }
+        return KIND_OBJECT;
+    }
+
+    private static long bitsOf(final byte kind, final Object value)
+    {
+        if (kind == KIND_LONG) {
+            return ((Number) value).longValue();
+        }
+        if (kind == KIND_DOUBLE) {
+            return Double.doubleToLongBits(((Number) value).doubleValue());
+        }
+        return 0L;
+    }
+
+    // values from producers are emitted as these are (e.g., Integer is not converted into Long)
+    private static Object boxed(final byte kind, final long bits, final Object value)
+    {
+        if (value != null || kind == KIND_OBJECT) {
+            return value;
+        }
+        if (kind == KIND_LONG) {
+            return bits;
+        }
+        if (kind == KIND_DOUBLE) {
+            return Double.longBitsToDouble(bits);
+        }
+        return value;
+    }
+
+    // labels hash is required only in change-only mode, with cardinality limit or with rollups
+    private long labelsHashFor(final Map<String, Object> labels)
+    {
+        return heartbeatTicks > 0 || cardinalityGuard != null || !rollups.isEmpty() ? SeriesTable.hashLabels(labels) : 0L;
+    }
+
+    // value is used only for KIND_OBJECT, and rate is NaN for non-counter metrics
+    private void emit(Log logger, Instant now, String tagPrefix, String name, byte kind, long bits, Object value, double rate, Map<String, Object> labels, long labelsHash)
+    {
+        if (!admit(tagPrefix, name, kind, bits, value, labelsHash)) {
+            return;
+        }
+        rollUp(tagPrefix, name, kind, bits, value, labels, labelsHash);
+        emitAdmitted(logger, now, tagPrefix, name, kind, bits, value, rate, labels, labelsHash);
+    }
+
+    // returns false if the value is folded into the overflow series of the name
+    private boolean admit(String tagPrefix, String name, byte kind, long bits, Object value, long labelsHash)
+    {
+        if (cardinalityGuard != null) {
+            CardinalityGuard.NameState overflow = cardinalityGuard.admit(tagPrefix, name, labelsHash, tick);
+            if (overflow != null) {
+                if (kind != KIND_OBJECT) {
+                    long longValue = kind == KIND_LONG ? bits : 0L;
+                    double doubleValue = kind == KIND_DOUBLE ? Double.longBitsToDouble(bits) : 0.0;
+                    overflow.fold(kind == KIND_DOUBLE, longValue, doubleValue);
+                }
+                else if (value instanceof Number) {
+                    byte k = kindOf(value);
+                    overflow.fold(k == KIND_DOUBLE, ((Number) value).longValue(), ((Number) value).doubleValue());
+                }
+                else {
+                    overflow.folded += 1; // not numeric: only counted
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rollUp(String tagPrefix, String name, byte kind, long bits, Object value, Map<String, Object> labels, long labelsHash)
+    {
+        if (rollups.isEmpty() || !tagPrefix.equals(tagPrefixMetric)) {
+            return;
+        }
+        double v;
+        if (kind == KIND_LONG) {
+            v = value != null ? ((Number) value).longValue() : bits;
+        }
+        else if (kind == KIND_DOUBLE) {
+            v = value != null ? ((Number) value).doubleValue() : Double.longBitsToDouble(bits);
+        }
+        else {
+            return; // not numeric
+        }
+        for (MetricRollup rollup : rollups) {
+            rollup.add(name, labels, labelsHash, v, tick);
+        }
+    }
+
+    private void emitOverflows(Log logger, Instant now)
+    {
+        for (CardinalityGuard.NameState state : cardinalityGuard.states()) {
+            if (state.folded == 0) {
+                continue;
+            }
+            if (!state.warned) {
+                state.warned = true;
+                logger.warn(String.format("MetricMonitor folds label sets of %s%s into an overflow series: too many label sets", state.tagPrefix, state.name));
+            }
+            byte kind = state.isDouble ? KIND_DOUBLE : KIND_LONG;
+            long bits = state.isDouble ? Double.doubleToLongBits(state.doubleSum) : state.longSum;
+            rollUp(state.tagPrefix, state.name, kind, bits, null, CardinalityGuard.OVERFLOW_LABELS, CardinalityGuard.OVERFLOW_LABELS_HASH);
+            emitAdmitted(logger, now, state.tagPrefix, state.name, kind, bits, null, Double.NaN,
+                    CardinalityGuard.OVERFLOW_LABELS, CardinalityGuard.OVERFLOW_LABELS_HASH);
+
+            Map<String, Object> labels = ImmutableMap.of("metric", state.tagPrefix + state.name);
+            emitAdmitted(logger, now, tagPrefixMetric, CARDINALITY_OVERFLOW_METRIC_NAME, KIND_LONG, state.folded, null, Double.NaN,
+                    labels, SeriesTable.hashLabels(labels));
+            state.reset();
+        }
+    }
+
+    private void emitAdmitted(Log logger, Instant now, String tagPrefix, String name, byte kind, long bits, Object value, double rate, Map<String, Object> labels, long labelsHash)
+    {
+        // deltas of counters are not values to be compared: only zero deltas (zero rates) are suppressed
+        boolean nonZeroDelta = !Double.isNaN(rate) && rate != 0.0;
+        if (heartbeatTicks > 0 && !isChanged(tagPrefix, name, kind, bits, value, labelsHash) && !nonZeroDelta) {
+            return;
+        }
+        for (MetricSink sink : sinks) {
+            // only counters have rates
+            writeTo(sink, tagPrefix, name, kind, bits, value, labels, !Double.isNaN(rate));
+        }
+        Object v = boxed(kind, bits, value);
+        if (compactTagName != null) {
+            // rates have their own column, so labels never conflict with reserved fields here
+            MetricBatch batch = tagPrefix.equals(tagPrefixRawMetric) ? rawMetricBatch : metricBatch;
+            batch.add(name, v, rate, labels);
+            return;
+        }
+        boolean counter = !Double.isNaN(rate);
+        ImmutableMap.Builder<String, Object> record = ImmutableMap.<String, Object>builder().put(metricFieldName, v);
+        if (counter) {
+            record.put(RATE_FIELD_NAME, rate);
+        }
+        logger.sendEvent(tagPrefix + name, now, record.putAll(recordLabels(labels, counter)).build());
+    }
+
+    // labels to be put into records with reserved fields, as-is unless these conflict (RATE_FIELD_NAME only in records of counters)
+    private Map<String, Object> recordLabels(final Map<String, Object> labels, final boolean counter)
+    {
+        if (!labels.containsKey(metricFieldName) && !(counter && labels.containsKey(RATE_FIELD_NAME))) {
+            return labels;
+        }
+        Map<String, Object> renamed = new LinkedHashMap<>(labels.size());
+        for (Map.Entry<String, Object> pair : labels.entrySet()) {
+            String key = pair.getKey();
+            if (key.equals(metricFieldName) || (counter && key.equals(RATE_FIELD_NAME))) {
+                key = CONFLICTING_LABEL_PREFIX + key;
+            }
+            renamed.put(key, pair.getValue());
+        }
+        return renamed;
+    }
+
+    private static void writeTo(MetricSink sink, String tagPrefix, String name, byte kind, long bits, Object value, Map<String, Object> labels, boolean counter)
+    {
+        if (value != null || kind == KIND_OBJECT) {
+            if (counter) {
+                sink.writeCounter(tagPrefix, name, value, labels);
+            }
+            else {
+                sink.write(tagPrefix, name, value, labels);
+            }
+        }
+        else if (kind == KIND_LONG) {
+            if (counter) {
+                sink.writeCounter(tagPrefix, name, bits, labels);
+            }
+            else {
+                sink.write(tagPrefix, name, bits, labels);
+            }
+        }
+        else if (counter) {
+            sink.writeCounter(tagPrefix, name, Double.longBitsToDouble(bits), labels);
+        }
+        else {
+            sink.write(tagPrefix, name, Double.longBitsToDouble(bits), labels);
+        }
+    }
+
+    private boolean isChanged(String tagPrefix, String name, byte kind, long bits, Object value, long labelsHash)
+    {
+        // same as SeriesTable.hashValue for boxed values
+        long fingerprint = kind == KIND_OBJECT ? SeriesTable.hashValue(value) : SeriesTable.mix(bits);
+        int slot = lastEmitted.insert(SeriesTable.hashSeries(tagPrefix, name, labelsHash));
+        boolean changed = slot < 0 || lastEmitted.value(slot) != fingerprint || tick % heartbeatTicks == 0;
+        slot = slot < 0 ? -slot - 1 : slot;
+        lastEmitted.value(slot, fingerprint);
+        lastEmitted.tick(slot, tick);
+        return changed;
+    }
+
+    private void flushBatch(Log logger, Instant now, MetricBatch batch, String tagPrefix)
+    {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            logger.sendColumns(tagPrefix + compactTagName, now, batch.toRecord());
+        }
+        finally {
+            batch.clear();
+        }
     }
 
     private void processMetric(Log logger, Instant now, List<MetricProducer> producers, String tagPrefix)
     {
         for (MetricProducer producer : producers) {
             for (Map.Entry<String, Object> kv : producer.produce().entrySet()) {
-                logger.sendEvent(tagPrefix + kv.getKey(), now, ImmutableMap.of(metricFieldName, kv.getValue()));
+                Object value = kv.getValue();
+                byte kind = kindOf(value);
+                Map<String, Object> labels = ImmutableMap.of();
+                emit(logger, now, tagPrefix, kv.getKey(), kind, bitsOf(kind, value), value, Double.NaN, labels, labelsHashFor(labels));
             }
         }
     }
@@ -164,12 +714,143 @@ public class MetricMonitor
     {
         for (ComplexMetricProducer producer : producers) {
             for (ComplexMetric metric : producer.produce()) {
-                Map<String, Object> record = ImmutableMap.<String, Object>builder()
-                        .put(metricFieldName, metric.getValue())
-                        .putAll(metric.getAdditional())
-                        .build();
-                logger.sendEvent(tagPrefix + metric.getName(), now, record);
+                Object value = metric.getValue();
+                byte kind = kindOf(value);
+                Map<String, Object> labels = metric.getAdditional();
+                emit(logger, now, tagPrefix, metric.getName(), kind, bitsOf(kind, value), value, Double.NaN, labels, labelsHashFor(labels));
+            }
+        }
+    }
+
+    private void processPrimitiveMetric(Log logger, Instant now, List<PrimitiveMetric> metrics, String tagPrefix)
+    {
+        for (PrimitiveMetric metric : metrics) {
+            Labels labels = metric.getLabels();
+            byte kind = metric.isDouble() ? KIND_DOUBLE : KIND_LONG;
+            emit(logger, now, tagPrefix, metric.getName(), kind, metric.bits(), null, Double.NaN, labels.asMap(), labels.hash());
+        }
+    }
+
+    // derived series of histograms are not rolled up as values: rollups merge histograms instead
+    private void processHistogram(Log logger, Instant now, String tagPrefix)
+    {
+        for (int i = 0; i < histograms.size(); i++) {
+            HistogramMetric histogram = histograms.get(i);
+            HistogramMetric.Snapshot snapshot = histogramSnapshots.get(i);
+            snapshot.clear();
+            histogram.drainTo(snapshot);
+
+            String name = histogram.getName();
+            Labels labels = histogram.getLabels();
+            emitHistogramSeries(logger, now, tagPrefix, name + ".count", snapshot.count, labels);
+            emitHistogramSeries(logger, now, tagPrefix, name + ".sum", snapshot.sum, labels);
+            emitHistogramSeries(logger, now, tagPrefix, name + ".max", snapshot.max, labels);
+            emitHistogramSeries(logger, now, tagPrefix, name + ".p50", snapshot.percentile(0.50), labels);
+            emitHistogramSeries(logger, now, tagPrefix, name + ".p90", snapshot.percentile(0.90), labels);
+            emitHistogramSeries(logger, now, tagPrefix, name + ".p99", snapshot.percentile(0.99), labels);
+            for (MetricRollup rollup : rollups) {
+                rollup.addHistogram(name, labels.asMap(), labels.hash(), snapshot, tick);
+            }
+        }
+    }
+
+    private void emitHistogramSeries(Log logger, Instant now, String tagPrefix, String name, long value, Labels labels)
+    {
+        if (admit(tagPrefix, name, KIND_LONG, value, null, labels.hash())) {
+            emitAdmitted(logger, now, tagPrefix, name, KIND_LONG, value, null, Double.NaN, labels.asMap(), labels.hash());
+        }
+    }
+
+    private void processCounter(Log logger, Instant now, long nowNanos, List<MetricProducer> producers, String tagPrefix)
+    {
+        for (MetricProducer producer : producers) {
+            for (Map.Entry<String, Object> kv : producer.produce().entrySet()) {
+                Object value = kv.getValue();
+                Map<String, Object> labels = ImmutableMap.of();
+                emitCounter(logger, now, nowNanos, tagPrefix, kv.getKey(), kindOf(value), value, labels, SeriesTable.hashLabels(labels));
+            }
+        }
+    }
+
+    private void processComplexCounter(Log logger, Instant now, long nowNanos, List<ComplexMetricProducer> producers, String tagPrefix)
+    {
+        for (ComplexMetricProducer producer : producers) {
+            for (ComplexMetric metric : producer.produce()) {
+                Object value = metric.getValue();
+                Map<String, Object> labels = metric.getAdditional();
+                emitCounter(logger, now, nowNanos, tagPrefix, metric.getName(), kindOf(value), value, labels, SeriesTable.hashLabels(labels));
+            }
+        }
+    }
+
+    private void processPrimitiveCounter(Log logger, Instant now, long nowNanos, List<PrimitiveMetric> metrics, String tagPrefix)
+    {
+        for (PrimitiveMetric metric : metrics) {
+            Labels labels = metric.getLabels();
+            byte kind = metric.isDouble() ? KIND_DOUBLE : KIND_LONG;
+            emitCounterBits(logger, now, nowNanos, tagPrefix, metric.getName(), kind, metric.bits(), labels.asMap(), labels.hash());
+        }
+    }
+
+    private void processMetricStore(Log logger, Instant now, long nowNanos, MappedMetricStore store, String tagPrefix)
+    {
+        for (PrimitiveMetric metric : store.metrics()) {
+            Labels labels = metric.getLabels();
+            byte kind = metric.isDouble() ? KIND_DOUBLE : KIND_LONG;
+            if (MappedMetricStore.isCounter(metric)) {
+                emitCounterBits(logger, now, nowNanos, tagPrefix, metric.getName(), kind, metric.bits(), labels.asMap(), labels.hash());
             }
+            else {
+                emit(logger, now, tagPrefix, metric.getName(), kind, metric.bits(), null, Double.NaN, labels.asMap(), labels.hash());
+            }
+        }
+    }
+
+    private void emitCounter(Log logger, Instant now, long nowNanos, String tagPrefix, String name, byte kind, Object value, Map<String, Object> labels, long labelsHash)
+    {
+        if (kind == KIND_OBJECT) {
+            return; // counters must be numbers
+        }
+        emitCounterBits(logger, now, nowNanos, tagPrefix, name, kind, bitsOf(kind, value), labels, labelsHash);
+    }
+
+    private void emitCounterBits(Log logger, Instant now, long nowNanos, String tagPrefix, String name, byte kind, long bits, Map<String, Object> labels, long labelsHash)
+    {
+        long key = SeriesTable.hashSeries(tagPrefix, name, labelsHash);
+        int slot = counters.insert(key);
+        if (slot < 0 || counters.kind(slot) != kind) {
+            // first observation (or type change) of this series: it's just a baseline
+            slot = slot < 0 ? -slot - 1 : slot;
+            counters.kind(slot, kind);
+            counters.value(slot, bits);
+            counters.time(slot, nowNanos);
+            counters.tick(slot, tick);
+            return;
+        }
+
+        long lastBits = counters.value(slot);
+        double elapsedSeconds = (nowNanos - counters.time(slot)) / 1_000_000_000.0;
+        counters.value(slot, bits);
+        counters.time(slot, nowNanos);
+        counters.tick(slot, tick);
+
+        long deltaBits;
+        double deltaValue;
+        if (kind == KIND_LONG) {
+            // counter reset (e.g., process restart of the source): the current value is the increment since reset
+            long d = bits >= lastBits ? bits - lastBits : bits;
+            deltaBits = d;
+            deltaValue = d;
         }
+        else {
+            double current = Double.longBitsToDouble(bits);
+            double last = Double.longBitsToDouble(lastBits);
+            double d = current >= last ? current - last : current;
+            deltaBits = Double.doubleToLongBits(d);
+            deltaValue = d;
+        }
+        double rate = elapsedSeconds > 0 ? deltaValue / elapsedSeconds : 0.0;
+
+        emit(logger, now, tagPrefix, name, kind, deltaBits, null, rate, labels, labelsHash);
     }
 }
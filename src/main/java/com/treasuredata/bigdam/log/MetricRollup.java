@@ -0,0 +1,214 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rollup window of metric samples collected by MetricMonitor, emitted every windowTicks ticks into its own tag prefix.
+// Values are stored in a fixed-size ring per series (a slot per tick), and emitted as sum/min/max/last/count of the window.
+// Histograms are merged over the window, and emitted as count/sum/max/percentiles of the merged one.
+// Series not sampled in a window are forgotten. Not thread-safe: this class is used only from the monitor thread.
+class MetricRollup
+{
+    static final String SUM_FIELD_NAME = "sum";
+    static final String MIN_FIELD_NAME = "min";
+    static final String MAX_FIELD_NAME = "max";
+    static final String LAST_FIELD_NAME = "last";
+    static final String COUNT_FIELD_NAME = "count";
+
+    private static final Set<String> VALUES_FIELD_NAMES = ImmutableSet.of(SUM_FIELD_NAME, MIN_FIELD_NAME, MAX_FIELD_NAME, LAST_FIELD_NAME, COUNT_FIELD_NAME);
+    private static final Set<String> HISTOGRAM_FIELD_NAMES = ImmutableSet.of(COUNT_FIELD_NAME, SUM_FIELD_NAME, MAX_FIELD_NAME, "p50", "p90", "p99");
+
+    private static final String HISTOGRAM_KEY_PREFIX = "histogram:";
+
+    private static class Series
+    {
+        long key;
+        String name;
+        Map<String, Object> labels;
+        int lastTick;
+
+        // ring of values, or null for histograms
+        double[] values;
+        int[] ticks;
+
+        HistogramMetric.Snapshot histogram;
+    }
+
+    private final String tagPrefix;
+    private final int windowTicks;
+
+    // series key -> index of series
+    private final SeriesTable index;
+    private final List<Series> series;
+    private final Deque<Integer> freeIndexes;
+
+    MetricRollup(final String tagPrefix, final int windowTicks)
+    {
+        this.tagPrefix = tagPrefix;
+        this.windowTicks = windowTicks;
+        this.index = new SeriesTable();
+        this.series = new ArrayList<>();
+        this.freeIndexes = new ArrayDeque<>();
+    }
+
+    String getTagPrefix()
+    {
+        return tagPrefix;
+    }
+
+    int getWindowTicks()
+    {
+        return windowTicks;
+    }
+
+    boolean isDue(final int tick)
+    {
+        return tick % windowTicks == 0;
+    }
+
+    void add(final String name, final Map<String, Object> labels, final long labelsHash, final double value, final int tick)
+    {
+        Series s = seriesFor(SeriesTable.hashSeries("", name, labelsHash), name, labels, false);
+        int position = tick % windowTicks;
+        s.values[position] = value;
+        s.ticks[position] = tick;
+        s.lastTick = tick;
+    }
+
+    void addHistogram(final String name, final Map<String, Object> labels, final long labelsHash, final HistogramMetric.Snapshot snapshot, final int tick)
+    {
+        Series s = seriesFor(SeriesTable.hashSeries(HISTOGRAM_KEY_PREFIX, name, labelsHash), name, labels, true);
+        s.histogram.merge(snapshot);
+        s.lastTick = tick;
+    }
+
+    // emits series sampled in ticks (tick - windowTicks, tick], and forgets others
+    void emit(final Log logger, final Instant now, final int tick)
+    {
+        int oldest = tick - windowTicks + 1;
+        for (int i = 0; i < series.size(); i++) {
+            Series s = series.get(i);
+            if (s == null) {
+                continue;
+            }
+            if (s.lastTick < oldest) {
+                index.remove(s.key);
+                series.set(i, null);
+                freeIndexes.push(i);
+                continue;
+            }
+            if (s.histogram != null) {
+                emitHistogram(logger, now, s);
+            }
+            else {
+                emitValues(logger, now, s, oldest);
+            }
+        }
+    }
+
+    private void emitValues(final Log logger, final Instant now, final Series s, final int oldest)
+    {
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double last = 0.0;
+        int lastTick = Integer.MIN_VALUE;
+        long count = 0L;
+        for (int i = 0; i < windowTicks; i++) {
+            if (s.ticks[i] < oldest) {
+                continue; // empty, or out of this window
+            }
+            double v = s.values[i];
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            if (s.ticks[i] > lastTick) {
+                lastTick = s.ticks[i];
+                last = v;
+            }
+            count += 1;
+        }
+        logger.sendEvent(tagPrefix + s.name, now, ImmutableMap.<String, Object>builder()
+                .put(SUM_FIELD_NAME, sum)
+                .put(MIN_FIELD_NAME, min)
+                .put(MAX_FIELD_NAME, max)
+                .put(LAST_FIELD_NAME, last)
+                .put(COUNT_FIELD_NAME, count)
+                .putAll(s.labels)
+                .build());
+    }
+
+    private void emitHistogram(final Log logger, final Instant now, final Series s)
+    {
+        HistogramMetric.Snapshot h = s.histogram;
+        logger.sendEvent(tagPrefix + s.name, now, ImmutableMap.<String, Object>builder()
+                .put(COUNT_FIELD_NAME, h.count)
+                .put(SUM_FIELD_NAME, h.sum)
+                .put(MAX_FIELD_NAME, h.max)
+                .put("p50", h.percentile(0.50))
+                .put("p90", h.percentile(0.90))
+                .put("p99", h.percentile(0.99))
+                .putAll(s.labels)
+                .build());
+        h.clear();
+    }
+
+    private Series seriesFor(final long key, final String name, final Map<String, Object> labels, final boolean histogram)
+    {
+        int slot = index.insert(key);
+        if (slot >= 0) {
+            return series.get((int) index.value(slot));
+        }
+        Series s = new Series();
+        s.key = key;
+        s.name = name;
+        s.labels = recordLabels(labels, histogram ? HISTOGRAM_FIELD_NAMES : VALUES_FIELD_NAMES);
+        if (histogram) {
+            s.histogram = new HistogramMetric.Snapshot();
+        }
+        else {
+            s.values = new double[windowTicks];
+            s.ticks = new int[windowTicks];
+            Arrays.fill(s.ticks, Integer.MIN_VALUE);
+        }
+        int i;
+        if (freeIndexes.isEmpty()) {
+            i = series.size();
+            series.add(s);
+        }
+        else {
+            i = freeIndexes.pop();
+            series.set(i, s);
+        }
+        index.value(-slot - 1, i);
+        return s;
+    }
+
+    // labels named as fields of rollup records are renamed as MetricMonitor does for its records,
+    // once per series, not to fail building records in every window
+    private static Map<String, Object> recordLabels(final Map<String, Object> labels, final Set<String> fieldNames)
+    {
+        if (fieldNames.stream().noneMatch(labels::containsKey)) {
+            return labels;
+        }
+        Map<String, Object> renamed = new LinkedHashMap<>(labels.size());
+        for (Map.Entry<String, Object> pair : labels.entrySet()) {
+            String key = pair.getKey();
+            if (fieldNames.contains(key)) {
+                key = MetricMonitor.CONFLICTING_LABEL_PREFIX + key;
+            }
+            renamed.put(key, pair.getValue());
+        }
+        return renamed;
+    }
+}
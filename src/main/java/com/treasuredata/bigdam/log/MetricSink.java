@@ -0,0 +1,52 @@
+package com.treasuredata.bigdam.log;
+
+import java.time.Instant;
+import java.util.Map;
+
+// Receiver of metric values from MetricMonitor.
+// Primitive values of PrimitiveMetric are passed by primitive methods, not to box these.
+// Sinks added by MetricMonitor#addSink are called in each tick as: begin, write (for each metric), flush.
+// Counters are written by writeCounter: deltas of the tick in ticks, and cumulative values by MetricMonitor#collect.
+// Histograms are written by writeHistogram only by MetricMonitor#collect (ticks write derived series of these).
+public interface MetricSink
+{
+    public default void begin(final Instant now)
+    {
+    }
+
+    public void write(String tagPrefix, String name, Object value, Map<String, Object> labels);
+
+    public default void write(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+    {
+        write(tagPrefix, name, (Object) value, labels);
+    }
+
+    public default void write(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+    {
+        write(tagPrefix, name, (Object) value, labels);
+    }
+
+    public default void writeCounter(final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+    {
+        write(tagPrefix, name, value, labels);
+    }
+
+    public default void writeCounter(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+    {
+        write(tagPrefix, name, value, labels);
+    }
+
+    public default void writeCounter(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+    {
+        write(tagPrefix, name, value, labels);
+    }
+
+    // buckets[b] is the count of values recorded in bucket b (up to HistogramMetric#upperBoundOf(b)) since creation
+    public default void writeHistogram(final String tagPrefix, final String name, final long[] buckets, final long sum, final Map<String, Object> labels)
+    {
+    }
+
+    public default void flush()
+    {
+    }
+}
@@ -0,0 +1,33 @@
+package com.treasuredata.bigdam.log;
+
+// Base class of metrics which have primitive values, updated in place by producers and read by MetricMonitor
+// without allocations.
+public abstract class PrimitiveMetric
+{
+    private final String name;
+    private final Labels labels;
+
+    PrimitiveMetric(final String name, final Labels labels)
+    {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("Metric name must not be empty");
+        }
+        this.name = name;
+        this.labels = labels == null ? Labels.EMPTY : labels;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Labels getLabels()
+    {
+        return labels;
+    }
+
+    public abstract boolean isDouble();
+
+    // raw bits of the value: long value itself, or Double#doubleToLongBits of double value
+    abstract long bits();
+}
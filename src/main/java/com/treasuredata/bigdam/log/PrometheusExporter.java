@@ -0,0 +1,431 @@
+package com.treasuredata.bigdam.log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Embedded HTTP endpoint to expose current values of metrics in MetricMonitor, in Prometheus text format.
+// Metric names are built from tag prefix + name, with characters invalid in Prometheus replaced by "_"
+// (e.g., "metric.jvm.gc.count" -> "metric_jvm_gc_count"). Non-numeric values are not exported.
+public class PrometheusExporter
+{
+    public static final String DEFAULT_PATH = "/metrics";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final MetricMonitor monitor;
+    private final InetSocketAddress address;
+    private final String path;
+
+    // tagPrefix -> (name -> sanitized metric name), not to sanitize names in every scrape
+    private final ConcurrentMap<String, ConcurrentMap<String, String>> metricNames;
+    private final ConcurrentMap<String, String> labelNames;
+
+    private final TextFormatWriter samples;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public PrometheusExporter(final MetricMonitor monitor, final int port)
+    {
+        this(monitor, new InetSocketAddress(port), DEFAULT_PATH);
+    }
+
+    public PrometheusExporter(final MetricMonitor monitor, final InetSocketAddress address, final String path)
+    {
+        this.monitor = monitor;
+        this.address = address;
+        this.path = path;
+        this.metricNames = new ConcurrentHashMap<>();
+        this.labelNames = new ConcurrentHashMap<>();
+        this.samples = new TextFormatWriter();
+    }
+
+    public void start()
+    {
+        try {
+            server = HttpServer.create(address, 0);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Failed to start metric exporter at " + address, e);
+        }
+        // a scrape at a time: producers are not called concurrently by scrapes
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "bigdam-log-prometheus-exporter");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext(path, this::handle);
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+            server = null;
+        }
+    }
+
+    // only for testing, to use ephemeral port
+    int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(final HttpExchange exchange)
+            throws IOException
+    {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, 0); // chunked
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                render(writer);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    // scrapes are serialized by the executor, but tests may call this directly
+    synchronized void render(final Writer writer)
+            throws IOException
+    {
+        try {
+            monitor.collect(samples);
+            samples.writeTo(writer);
+        }
+        finally {
+            samples.clear();
+        }
+    }
+
+    String metricName(final String tagPrefix, final String name)
+    {
+        ConcurrentMap<String, String> names = metricNames.computeIfAbsent(tagPrefix, p -> new ConcurrentHashMap<>());
+        String sanitized = names.get(name);
+        if (sanitized == null) {
+            sanitized = sanitize(tagPrefix + name, true);
+            names.put(name, sanitized);
+        }
+        return sanitized;
+    }
+
+    String labelName(final String name)
+    {
+        String sanitized = labelNames.get(name);
+        if (sanitized == null) {
+            sanitized = sanitize(name, false);
+            labelNames.put(name, sanitized);
+        }
+        return sanitized;
+    }
+
+    // metric names: [a-zA-Z_:][a-zA-Z0-9_:]*, label names: [a-zA-Z_][a-zA-Z0-9_]*
+    private static String sanitize(final String name, final boolean allowColon)
+    {
+        StringBuilder builder = new StringBuilder(name.length() + 1);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (allowColon && c == ':') || (i > 0 && c >= '0' && c <= '9');
+            if (i == 0 && c >= '0' && c <= '9') {
+                builder.append('_');
+                valid = true;
+            }
+            builder.append(valid ? c : '_');
+        }
+        return builder.toString();
+    }
+
+    // Samples of a scrape are kept as references (values, labels and buckets) in columns reused across scrapes,
+    // and linked per metric name (family) in the order of arrival, as producers may write samples of a name apart.
+    // Then these are written family by family straight to the response, without formatting the whole scrape
+    // into buffers. The type of a family is the one of its first sample in the scrape.
+    private class TextFormatWriter
+            implements MetricSink
+    {
+        private static final byte KIND_LONG = 0;
+        private static final byte KIND_DOUBLE = 1;
+        private static final byte KIND_HISTOGRAM = 2; // sum in bits, buckets in payloads
+
+        // metric name -> family index, kept across scrapes as metric names are
+        private final Map<String, Integer> familyIndexes = new HashMap<>();
+        private final List<String> familyNames = new ArrayList<>();
+        private String[] types = new String[16];
+        private int[] heads = new int[16];
+        private int[] tails = new int[16];
+        // families in the order of first appearance in the scrape
+        private int[] order = new int[16];
+        private int families = 0;
+
+        private byte[] kinds = new byte[64];
+        private long[] bits = new long[64];
+        private Object[] payloads = new Object[64];
+        private Object[] labelSets = new Object[64];
+        private int[] next = new int[64];
+        private int size = 0;
+
+        // a line of a sample, reused
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+        {
+            writeNumber("gauge", tagPrefix, name, value, labels);
+        }
+
+        @Override
+        public void write(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+        {
+            add("gauge", tagPrefix, name, KIND_LONG, value, null, labels);
+        }
+
+        @Override
+        public void write(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+        {
+            add("gauge", tagPrefix, name, KIND_DOUBLE, Double.doubleToRawLongBits(value), null, labels);
+        }
+
+        @Override
+        public void writeCounter(final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+        {
+            writeNumber("counter", tagPrefix, name, value, labels);
+        }
+
+        @Override
+        public void writeCounter(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+        {
+            add("counter", tagPrefix, name, KIND_LONG, value, null, labels);
+        }
+
+        @Override
+        public void writeCounter(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+        {
+            add("counter", tagPrefix, name, KIND_DOUBLE, Double.doubleToRawLongBits(value), null, labels);
+        }
+
+        @Override
+        public void writeHistogram(final String tagPrefix, final String name, final long[] buckets, final long sum, final Map<String, Object> labels)
+        {
+            add("histogram", tagPrefix, name, KIND_HISTOGRAM, sum, buckets, labels);
+        }
+
+        private void writeNumber(final String type, final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+        {
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                add(type, tagPrefix, name, KIND_LONG, ((Number) value).longValue(), null, labels);
+            }
+            else if (value instanceof Number) {
+                add(type, tagPrefix, name, KIND_DOUBLE, Double.doubleToRawLongBits(((Number) value).doubleValue()), null, labels);
+            }
+            else if (value instanceof Boolean) {
+                add(type, tagPrefix, name, KIND_LONG, ((Boolean) value) ? 1L : 0L, null, labels);
+            }
+        }
+
+        private void add(final String type, final String tagPrefix, final String name, final byte kind, final long value, final Object payload, final Map<String, Object> labels)
+        {
+            int family = family(metricName(tagPrefix, name));
+            if (size == kinds.length) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                bits = Arrays.copyOf(bits, capacity);
+                payloads = Arrays.copyOf(payloads, capacity);
+                labelSets = Arrays.copyOf(labelSets, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            kinds[size] = kind;
+            bits[size] = value;
+            payloads[size] = payload;
+            labelSets[size] = labels;
+            next[size] = -1;
+            if (heads[family] < 0) {
+                heads[family] = size;
+                types[family] = type;
+                if (families == order.length) {
+                    order = Arrays.copyOf(order, families * 2);
+                }
+                order[families++] = family;
+            }
+            else {
+                next[tails[family]] = size;
+            }
+            tails[family] = size;
+            size++;
+        }
+
+        private int family(final String metricName)
+        {
+            Integer index = familyIndexes.get(metricName);
+            if (index != null) {
+                return index;
+            }
+            int family = familyNames.size();
+            if (family == heads.length) {
+                int capacity = family * 2;
+                types = Arrays.copyOf(types, capacity);
+                heads = Arrays.copyOf(heads, capacity);
+                tails = Arrays.copyOf(tails, capacity);
+            }
+            familyNames.add(metricName);
+            familyIndexes.put(metricName, family);
+            heads[family] = -1;
+            return family;
+        }
+
+        void writeTo(final Writer writer)
+                throws IOException
+        {
+            for (int i = 0; i < families; i++) {
+                int family = order[i];
+                String metricName = familyNames.get(family);
+                writer.write("# TYPE ");
+                writer.write(metricName);
+                writer.write(' ');
+                writer.write(types[family]);
+                writer.write('\n');
+                for (int sample = heads[family]; sample >= 0; sample = next[sample]) {
+                    writeSample(writer, metricName, sample);
+                }
+            }
+        }
+
+        // releases references of the scrape, keeping columns for the next one
+        void clear()
+        {
+            for (int i = 0; i < families; i++) {
+                heads[order[i]] = -1;
+            }
+            families = 0;
+            Arrays.fill(payloads, 0, size, null);
+            Arrays.fill(labelSets, 0, size, null);
+            size = 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeSample(final Writer writer, final String metricName, final int sample)
+                throws IOException
+        {
+            Map<String, Object> labels = (Map<String, Object>) labelSets[sample];
+            if (kinds[sample] == KIND_LONG) {
+                startLine(metricName, labels, null, null).append(bits[sample]).append('\n');
+                writer.append(line);
+            }
+            else if (kinds[sample] == KIND_DOUBLE) {
+                appendDouble(startLine(metricName, labels, null, null), Double.longBitsToDouble(bits[sample])).append('\n');
+                writer.append(line);
+            }
+            else {
+                writeHistogram(writer, metricName, (long[]) payloads[sample], bits[sample], labels);
+            }
+        }
+
+        // buckets up to the highest non-empty one (their bounds are fixed), and "+Inf"
+        private void writeHistogram(final Writer writer, final String metricName, final long[] buckets, final long sum, final Map<String, Object> labels)
+                throws IOException
+        {
+            int highest = buckets.length - 1;
+            while (highest >= 0 && buckets[highest] == 0) {
+                highest--;
+            }
+            long count = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i];
+                if (i <= highest && HistogramMetric.upperBoundOf(i) < Long.MAX_VALUE) {
+                    startLine(metricName + "_bucket", labels, "le", Long.toString(HistogramMetric.upperBoundOf(i))).append(count).append('\n');
+                    writer.append(line);
+                }
+            }
+            startLine(metricName + "_bucket", labels, "le", "+Inf").append(count).append('\n');
+            writer.append(line);
+            startLine(metricName + "_sum", labels, null, null).append(sum).append('\n');
+            writer.append(line);
+            startLine(metricName + "_count", labels, null, null).append(count).append('\n');
+            writer.append(line);
+        }
+
+        private StringBuilder appendDouble(final StringBuilder builder, final double value)
+        {
+            if (Double.isNaN(value)) {
+                return builder.append("NaN");
+            }
+            else if (Double.isInfinite(value)) {
+                return builder.append(value > 0 ? "+Inf" : "-Inf");
+            }
+            else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                return builder.append((long) value);
+            }
+            else {
+                return builder.append(value);
+            }
+        }
+
+        // starts the line with the name and labels (and an extra label if specified) of a sample, and returns it for its value
+        private StringBuilder startLine(final String metricName, final Map<String, Object> labels, final String extraKey, final String extraValue)
+        {
+            StringBuilder builder = line;
+            builder.setLength(0);
+            builder.append(metricName);
+            boolean first = true;
+            if (labels != null) {
+                for (Map.Entry<String, Object> pair : labels.entrySet()) {
+                    builder.append(first ? '{' : ',');
+                    first = false;
+                    builder.append(labelName(pair.getKey())).append("=\"");
+                    appendEscaped(builder, pair.getValue() == null ? "" : pair.getValue().toString());
+                    builder.append('"');
+                }
+            }
+            if (extraKey != null) {
+                builder.append(first ? '{' : ',');
+                first = false;
+                builder.append(extraKey).append("=\"").append(extraValue).append('"');
+            }
+            if (!first) {
+                builder.append('}');
+            }
+            return builder.append(' ');
+        }
+
+        private void appendEscaped(final StringBuilder builder, final String value)
+        {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    builder.append("\\\\");
+                }
+                else if (c == '"') {
+                    builder.append("\\\"");
+                }
+                else if (c == '\n') {
+                    builder.append("\\n");
+                }
+                else {
+                    builder.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import io.sentry.SentryClient;
+import io.sentry.event.Event;
+import io.sentry.event.EventBuilder;
+
+// Deduplication of Sentry reports by throwable fingerprints, and asynchronous sending of these.
+// In a window from the first occurrence of a fingerprint, only the first one is sent, and later ones are counted.
+// When the window ends, the count is sent as an aggregate event with the same Sentry fingerprint, and the message
+// of the first exception (scrubbed when the window starts).
+// Events are sent by a background thread through a bounded queue: events are dropped (and counted) if it's full.
+class SentryDeduplicator
+        implements Closeable
+{
+    static final String FINGERPRINT_EXTRA = "fingerprint";
+    static final String SUPPRESSED_EXTRA = "suppressed";
+    static final String WINDOW_SECONDS_EXTRA = "window_seconds";
+
+    private static final long STOP_TIMEOUT_MSEC = 2000L;
+
+    // suppressed is closed (set to CLOSED, negative) when the window is drained, so that occurrences counted
+    // concurrently with draining are never lost: these see a negative count, and start the next window
+    static class Window
+    {
+        private static final long CLOSED = Long.MIN_VALUE;
+
+        final long startNanos;
+        final String logger;
+        final String errorClass;
+        final String message;
+        private final AtomicLong suppressed;
+
+        Window(final long startNanos, final String logger, final String errorClass, final String message)
+        {
+            this.startNanos = startNanos;
+            this.logger = logger;
+            this.errorClass = errorClass;
+            this.message = message;
+            this.suppressed = new AtomicLong(0L);
+        }
+
+        // false if the window is already closed
+        boolean suppress()
+        {
+            return suppressed.getAndIncrement() >= 0;
+        }
+
+        // the count of suppressed occurrences, which is final
+        long close()
+        {
+            return suppressed.getAndSet(CLOSED);
+        }
+    }
+
+    private final SentryClient sentry;
+    private final long windowNanos;
+    private final ConcurrentMap<Long, Window> windows;
+    private final UnaryOperator<String> scrubber;
+
+    private final BlockingQueue<EventBuilder> queue;
+    private final LongAdder dropped;
+    private final AtomicBoolean running;
+    private final Thread sender;
+
+    SentryDeduplicator(final SentryClient sentry, final long windowMillis, final int queueSize)
+    {
+        this(sentry, windowMillis, queueSize, UnaryOperator.identity());
+    }
+
+    SentryDeduplicator(final SentryClient sentry, final long windowMillis, final int queueSize, final UnaryOperator<String> scrubber)
+    {
+        if (windowMillis < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("Window and queue size of Sentry deduplication must be positive integers");
+        }
+        this.sentry = sentry;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.windows = new ConcurrentHashMap<>();
+        this.scrubber = scrubber;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.dropped = new LongAdder();
+        this.running = new AtomicBoolean(true);
+        this.sender = new Thread(this::loop, "bigdam-log-sentry-sender");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    // returns true if the exception should be sent (the first one of the fingerprint in the window)
+    boolean admit(final long fingerprint, final String logger, final Throwable e)
+    {
+        long now = Clock.now();
+        Window window = windows.get(fingerprint);
+        if (window != null && now - window.startNanos < windowNanos && window.suppress()) {
+            return false;
+        }
+        boolean[] admitted = {false};
+        Window[] expired = {null};
+        windows.compute(fingerprint, (key, current) -> {
+            // windows in the map are not closed yet: these are closed only after removed or replaced
+            if (current != null && now - current.startNanos < windowNanos && current.suppress()) {
+                return current; // another thread started the window
+            }
+            expired[0] = current;
+            admitted[0] = true;
+            return new Window(now, logger, e.getClass().getName(), scrubber.apply(e.getMessage()));
+        });
+        if (expired[0] != null) {
+            sendAggregate(fingerprint, expired[0]);
+        }
+        return admitted[0];
+    }
+
+    void send(final long fingerprint, final EventBuilder builder)
+    {
+        enqueue(builder.withFingerprint(ThrowableFingerprint.toHex(fingerprint))
+                .withExtra(FINGERPRINT_EXTRA, ThrowableFingerprint.toHex(fingerprint)));
+    }
+
+    long getDropped()
+    {
+        return dropped.sum();
+    }
+
+    // sends aggregates of windows ended before now, and forgets these windows
+    void flushExpired(final long now)
+    {
+        flush(now, false);
+    }
+
+    private void flush(final long now, final boolean all)
+    {
+        Iterator<Map.Entry<Long, Window>> it = windows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Window> pair = it.next();
+            Window window = pair.getValue();
+            if ((all || now - window.startNanos >= windowNanos) && windows.remove(pair.getKey(), window)) {
+                sendAggregate(pair.getKey(), window);
+            }
+        }
+    }
+
+    private void sendAggregate(final long fingerprint, final Window window)
+    {
+        long suppressed = window.close();
+        if (suppressed <= 0) {
+            return;
+        }
+        String hex = ThrowableFingerprint.toHex(fingerprint);
+        enqueue(new EventBuilder()
+                .withMessage(String.format("%s: %s (%d more occurrences in %d seconds)",
+                        window.errorClass, window.message, suppressed, TimeUnit.NANOSECONDS.toSeconds(windowNanos)))
+                .withLevel(Event.Level.ERROR)
+                .withLogger(window.logger)
+                .withFingerprint(hex)
+                .withExtra(FINGERPRINT_EXTRA, hex)
+                .withExtra(SUPPRESSED_EXTRA, suppressed)
+                .withExtra(WINDOW_SECONDS_EXTRA, TimeUnit.NANOSECONDS.toSeconds(windowNanos)));
+    }
+
+    private void enqueue(final EventBuilder builder)
+    {
+        if (!queue.offer(builder)) {
+            dropped.increment();
+        }
+    }
+
+    private void loop()
+    {
+        long pollNanos = Math.max(windowNanos / 2, TimeUnit.MILLISECONDS.toNanos(10));
+        long lastFlush = Clock.now();
+        while (running.get() || !queue.isEmpty()) {
+            try {
+                EventBuilder builder = queue.poll(pollNanos, TimeUnit.NANOSECONDS);
+                if (builder != null) {
+                    sentry.sendEvent(builder);
+                }
+                long now = Clock.now();
+                if (builder == null || now - lastFlush >= pollNanos) {
+                    flushExpired(now);
+                    lastFlush = now;
+                }
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            catch (RuntimeException e) {
+                // Sentry client errors must not stop the sender thread: the event is just lost
+            }
+        }
+    }
+
+    // sends aggregates of all windows, and events in the queue
+    @Override
+    public void close()
+    {
+        flush(Clock.now(), true);
+        running.set(false);
+        try {
+            sender.join(STOP_TIMEOUT_MSEC);
+            if (sender.isAlive()) {
+                sender.interrupt();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // preserve interrupted status
+        }
+    }
+}
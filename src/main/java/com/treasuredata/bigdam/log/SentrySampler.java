@@ -0,0 +1,114 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Adaptive sampling of Sentry reports per throwable fingerprint.
+// Fingerprints seen up to the target count in the last interval are kept at 100%, and more frequent ones are
+// sampled at (target / count in the last interval), so that about the target count is kept per interval.
+// All exceptions are kept in the first interval of a fingerprint, as there are no counts yet.
+// Decisions are lock-free: a sampling rate per fingerprint is recomputed by the thread winning a CAS on
+// the interval start, and others just read it. When the table of fingerprints is full, fingerprints idle for
+// an interval or more are evicted (at most once per interval), and new fingerprints over the limit share a single
+// state only while all fingerprints in the table are active.
+class SentrySampler
+{
+    static final String SAMPLE_RATE_EXTRA = "sample_rate";
+
+    static class State
+    {
+        final AtomicLong intervalStart;
+        final LongAdder count;
+        volatile double rate;
+
+        State(final long now)
+        {
+            this.intervalStart = new AtomicLong(now);
+            this.count = new LongAdder();
+            this.rate = 1.0;
+        }
+    }
+
+    private final long intervalNanos;
+    private final long target;
+    private final int maxFingerprints;
+    private final DoubleSupplier random;
+    private final ConcurrentMap<Long, State> states;
+    private final State overflow;
+    private final AtomicLong lastEviction;
+
+    SentrySampler(final long intervalMillis, final long target, final int maxFingerprints)
+    {
+        this(intervalMillis, target, maxFingerprints, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    SentrySampler(final long intervalMillis, final long target, final int maxFingerprints, final DoubleSupplier random)
+    {
+        if (intervalMillis < 1 || target < 1 || maxFingerprints < 1) {
+            throw new IllegalArgumentException("Interval, target and max fingerprints of Sentry sampling must be positive integers");
+        }
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.target = target;
+        this.maxFingerprints = maxFingerprints;
+        this.random = random;
+        this.states = new ConcurrentHashMap<>();
+        this.overflow = new State(Clock.now());
+        this.lastEviction = new AtomicLong(Clock.now());
+    }
+
+    // returns the sampling rate if the exception should be sent, or 0.0 if it should be dropped
+    double sample(final long fingerprint)
+    {
+        long now = Clock.now();
+        State state = stateOf(fingerprint, now);
+        long start = state.intervalStart.get();
+        long elapsed = now - start;
+        if (elapsed >= intervalNanos && state.intervalStart.compareAndSet(start, now)) {
+            // normalized into a count per interval, for intervals without exceptions
+            double observed = (double) state.count.sumThenReset() * intervalNanos / elapsed;
+            state.rate = observed <= target ? 1.0 : target / observed;
+        }
+        state.count.increment();
+        double rate = state.rate;
+        if (rate >= 1.0 || random.getAsDouble() < rate) {
+            return rate;
+        }
+        return 0.0;
+    }
+
+    int size()
+    {
+        return states.size();
+    }
+
+    private State stateOf(final long fingerprint, final long now)
+    {
+        State state = states.get(fingerprint);
+        if (state != null) {
+            return state;
+        }
+        if (states.size() >= maxFingerprints && (!evictIdle(now) || states.size() >= maxFingerprints)) {
+            return overflow;
+        }
+        State created = new State(now);
+        state = states.putIfAbsent(fingerprint, created);
+        return state == null ? created : state;
+    }
+
+    // Removes fingerprints without exceptions in an interval or more, by the thread winning a CAS. States
+    // roll over on the first exception after their intervals, so those started 2 intervals ago are idle.
+    private boolean evictIdle(final long now)
+    {
+        long last = lastEviction.get();
+        if (now - last < intervalNanos || !lastEviction.compareAndSet(last, now)) {
+            return false;
+        }
+        states.values().removeIf(state -> now - state.intervalStart.get() >= 2 * intervalNanos);
+        return true;
+    }
+}
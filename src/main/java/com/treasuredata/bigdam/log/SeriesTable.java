@@ -0,0 +1,300 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.Arrays;
+import java.util.Map;
+
+// Open addressing table keyed by 64bit series hashes, with per-series primitive columns.
+// This is used by MetricMonitor to keep per-series state across ticks without allocating boxed keys/values.
+// Not thread-safe: this class is expected to be used only from the monitor thread.
+class SeriesTable
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private long[] keys;
+    private long[] values;
+    private long[] times;
+    private int[] ticks;
+    private byte[] kinds;
+    private boolean[] used;
+
+    private int size;
+    private int mask;
+
+    SeriesTable()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    SeriesTable(final int expected)
+    {
+        allocate(capacityFor(expected));
+    }
+
+    private static int capacityFor(final int expected)
+    {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(final int capacity)
+    {
+        keys = new long[capacity];
+        values = new long[capacity];
+        times = new long[capacity];
+        ticks = new int[capacity];
+        kinds = new byte[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    int capacity()
+    {
+        return keys.length;
+    }
+
+    private int home(final long key)
+    {
+        return (int) (mix(key) & mask);
+    }
+
+    // returns slot index, or -1 if the key is not stored
+    int find(final long key)
+    {
+        int i = home(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    // returns slot index for an existing key, or (-slot - 1) for a newly inserted key (with zero-cleared columns)
+    int insert(final long key)
+    {
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+        }
+        int i = home(key);
+        while (used[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = 0L;
+        times[i] = 0L;
+        ticks[i] = 0;
+        kinds[i] = 0;
+        size += 1;
+        return -i - 1;
+    }
+
+    private void grow()
+    {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        long[] oldTimes = times;
+        int[] oldTicks = ticks;
+        byte[] oldKinds = kinds;
+        boolean[] oldUsed = used;
+
+        allocate(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldUsed[j]) {
+                int i = -insert(oldKeys[j]) - 1;
+                values[i] = oldValues[j];
+                times[i] = oldTimes[j];
+                ticks[i] = oldTicks[j];
+                kinds[i] = oldKinds[j];
+            }
+        }
+    }
+
+    boolean remove(final long key)
+    {
+        int i = find(key);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    // backward shift deletion, to keep probe sequences valid without tombstones
+    private void removeAt(int hole)
+    {
+        used[hole] = false;
+        size -= 1;
+        int i = (hole + 1) & mask;
+        while (used[i]) {
+            int h = home(keys[i]);
+            // move the entry at i into the hole if its home position is not in (hole, i]
+            boolean movable = (hole <= i) ? (h <= hole || h > i) : (h <= hole && h > i);
+            if (movable) {
+                used[hole] = true;
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                times[hole] = times[i];
+                ticks[hole] = ticks[i];
+                kinds[hole] = kinds[i];
+                used[i] = false;
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    // removes all entries whose tick is older than the specified one, and returns the number of removed entries
+    int expire(final int oldestTickToKeep)
+    {
+        int removed = 0;
+        int i = 0;
+        while (i < keys.length) {
+            if (used[i] && ticks[i] - oldestTickToKeep < 0) {
+                removeAt(i);
+                removed += 1;
+                // an entry may be shifted into this slot: check it again
+                continue;
+            }
+            i += 1;
+        }
+        return removed;
+    }
+
+    void clear()
+    {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    boolean isUsed(final int slot)
+    {
+        return used[slot];
+    }
+
+    long key(final int slot)
+    {
+        return keys[slot];
+    }
+
+    long value(final int slot)
+    {
+        return values[slot];
+    }
+
+    void value(final int slot, final long v)
+    {
+        values[slot] = v;
+    }
+
+    long time(final int slot)
+    {
+        return times[slot];
+    }
+
+    void time(final int slot, final long t)
+    {
+        times[slot] = t;
+    }
+
+    int tick(final int slot)
+    {
+        return ticks[slot];
+    }
+
+    void tick(final int slot, final int t)
+    {
+        ticks[slot] = t;
+    }
+
+    byte kind(final int slot)
+    {
+        return kinds[slot];
+    }
+
+    void kind(final int slot, final byte k)
+    {
+        kinds[slot] = k;
+    }
+
+    static long mix(long h)
+    {
+        // finalizer of MurmurHash3 (fmix64)
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static long hash(final String str)
+    {
+        long h = FNV_OFFSET_BASIS;
+        if (str == null) {
+            return h;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            h ^= str.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    // Hash values must be stable between processes, so Object#hashCode is not used (use toString for unknown types)
+    static long hashValue(final Object value)
+    {
+        if (value == null) {
+            return 0L;
+        }
+        if (value instanceof String) {
+            return hash((String) value);
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return mix(((Number) value).longValue());
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return mix(Double.doubleToLongBits(((Number) value).doubleValue()));
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1L : 2L;
+        }
+        return hash(value.toString());
+    }
+
+    // order independent hash of label sets: same labels in different Map implementations make the same hash
+    static long hashLabels(final Map<String, ? extends Object> labels)
+    {
+        if (labels == null) {
+            return 0L;
+        }
+        long h = 0L;
+        for (Map.Entry<String, ? extends Object> pair : labels.entrySet()) {
+            h += mix(hash(pair.getKey()) * 31 + hashValue(pair.getValue()));
+        }
+        return h;
+    }
+
+    static long hashSeries(final String prefix, final String name, final long labelsHash)
+    {
+        long h = hash(prefix);
+        h = h * 31 + hash(name);
+        return mix(h * 31 + labelsHash);
+    }
+}
@@ -0,0 +1,213 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact encoding of stack traces for Fluentd events, as lines of "class.method(file:line)".
+// - depth-limited: at most maxDepth frames per throwable (and its causes), then "... N more"
+// - frame-deduplicated: repeated frames (e.g., recursion) are written once, with "... repeated N times"
+// - framework frames (of classes with the prefixes, e.g., reflection) in a row are collapsed into "... N framework frames"
+// Causes are written as "Caused by: <class>" without messages, so that stacks are stable for grouping.
+// Encoded stacks are cached in a bounded LRU cache, not to re-stringify stack traces of a storm of identical exceptions.
+// Cache keys are fingerprints of exactly what is encoded (frames up to maxDepth and the cause chain), so that
+// throwables with the same top frames but different deeper frames or causes don't share encoded stacks.
+class StackTraceEncoder
+{
+    static final String STACK_FIELD = "stack";
+    static final String STACK_HASH_FIELD = "stackHash";
+
+    static final List<String> DEFAULT_COLLAPSED_PREFIXES = ImmutableList.of(
+            "sun.reflect.",
+            "jdk.internal.reflect.",
+            "java.lang.reflect.",
+            "java.util.concurrent.ThreadPoolExecutor",
+            "java.util.concurrent.FutureTask",
+            "org.junit.",
+            "com.google.inject.internal.",
+            "org.eclipse.jetty.",
+            "io.netty.");
+
+    private static final int MAX_CAUSES = 8;
+
+    static class Encoded
+    {
+        final String stack;
+        final String hash;
+
+        Encoded(final String stack, final String hash)
+        {
+            this.stack = stack;
+            this.hash = hash;
+        }
+    }
+
+    private final int maxDepth;
+    private final String[] collapsedPrefixes;
+    private final Cache<Long, Encoded> cache;
+
+    StackTraceEncoder(final int maxDepth, final List<String> collapsedPrefixes, final int cacheSize)
+    {
+        if (maxDepth < 1 || cacheSize < 1) {
+            throw new IllegalArgumentException("Depth and cache size of stack traces must be positive integers");
+        }
+        this.maxDepth = maxDepth;
+        this.collapsedPrefixes = collapsedPrefixes.toArray(new String[0]);
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .build();
+    }
+
+    Encoded encode(final Throwable e)
+    {
+        long fingerprint = fingerprint(e);
+        Encoded encoded = cache.getIfPresent(fingerprint);
+        if (encoded == null) {
+            String stack = encodeStack(e);
+            encoded = new Encoded(stack, ThrowableFingerprint.toHex(SeriesTable.mix(SeriesTable.hash(stack))));
+            cache.put(fingerprint, encoded);
+        }
+        return encoded;
+    }
+
+    long cacheSize()
+    {
+        return cache.size();
+    }
+
+    // hashes the same throwables and frames as encodeStack, in the same way, without building strings
+    long fingerprint(final Throwable e)
+    {
+        long h = 0L;
+        Map<Throwable, Boolean> seen = new IdentityHashMap<>();
+        Throwable current = e;
+        for (int causes = 0; current != null && seen.put(current, true) == null; causes++) {
+            if (causes == MAX_CAUSES) {
+                h = SeriesTable.mix(h * 31 + causes);
+                break;
+            }
+            h = SeriesTable.mix(h * 31 + SeriesTable.hash(current.getClass().getName()));
+            h = hashFrames(h, current.getStackTrace());
+            current = current.getCause();
+        }
+        return h;
+    }
+
+    String encodeStack(final Throwable e)
+    {
+        StringBuilder builder = new StringBuilder(64 * maxDepth);
+        Map<Throwable, Boolean> seen = new IdentityHashMap<>();
+        Throwable current = e;
+        for (int causes = 0; current != null && seen.put(current, true) == null; causes++) {
+            if (causes == MAX_CAUSES) {
+                builder.append("... more causes\n");
+                break;
+            }
+            if (causes > 0) {
+                builder.append("Caused by: ").append(current.getClass().getName()).append('\n');
+            }
+            encodeFrames(builder, current.getStackTrace());
+            current = current.getCause();
+        }
+        if (builder.length() > 0) {
+            builder.setLength(builder.length() - 1); // the last newline
+        }
+        return builder.toString();
+    }
+
+    private void encodeFrames(final StringBuilder builder, final StackTraceElement[] frames)
+    {
+        int written = 0;
+        int i = 0;
+        while (i < frames.length) {
+            if (written == maxDepth) {
+                builder.append("... ").append(frames.length - i).append(" more\n");
+                return;
+            }
+            StackTraceElement frame = frames[i];
+            int end = i + 1;
+            if (isCollapsed(frame.getClassName())) {
+                while (end < frames.length && isCollapsed(frames[end].getClassName())) {
+                    end++;
+                }
+                builder.append("... ").append(end - i).append(" framework frames\n");
+            }
+            else {
+                while (end < frames.length && frame.equals(frames[end])) {
+                    end++;
+                }
+                appendFrame(builder, frame);
+                if (end - i > 1) {
+                    builder.append("... repeated ").append(end - i).append(" times\n");
+                }
+            }
+            written++;
+            i = end;
+        }
+    }
+
+    private long hashFrames(long h, final StackTraceElement[] frames)
+    {
+        int written = 0;
+        int i = 0;
+        while (i < frames.length) {
+            if (written == maxDepth) {
+                return SeriesTable.mix(h * 31 + frames.length - i);
+            }
+            StackTraceElement frame = frames[i];
+            int end = i + 1;
+            if (isCollapsed(frame.getClassName())) {
+                while (end < frames.length && isCollapsed(frames[end].getClassName())) {
+                    end++;
+                }
+                h = SeriesTable.mix(h * 31 - (end - i)); // negative: collapsed frames
+            }
+            else {
+                while (end < frames.length && frame.equals(frames[end])) {
+                    end++;
+                }
+                h = SeriesTable.mix(h * 31 + SeriesTable.hash(frame.getClassName()));
+                h = SeriesTable.mix(h * 31 + SeriesTable.hash(frame.getMethodName()));
+                h = SeriesTable.mix(h * 31 + SeriesTable.hash(frame.getFileName()));
+                h = SeriesTable.mix(h * 31 + frame.getLineNumber());
+                h = SeriesTable.mix(h * 31 + (end - i));
+            }
+            written++;
+            i = end;
+        }
+        // end of frames, not to be confused with the next throwable
+        return SeriesTable.mix(h * 31 + 1);
+    }
+
+    private boolean isCollapsed(final String className)
+    {
+        for (String prefix : collapsedPrefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendFrame(final StringBuilder builder, final StackTraceElement frame)
+    {
+        builder.append(frame.getClassName()).append('.').append(frame.getMethodName()).append('(');
+        if (frame.isNativeMethod()) {
+            builder.append("Native Method");
+        }
+        else if (frame.getFileName() == null) {
+            builder.append("Unknown Source");
+        }
+        else {
+            builder.append(frame.getFileName());
+            if (frame.getLineNumber() >= 0) {
+                builder.append(':').append(frame.getLineNumber());
+            }
+        }
+        builder.append(")\n");
+    }
+}
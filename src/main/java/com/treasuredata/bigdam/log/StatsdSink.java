@@ -0,0 +1,360 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// MetricSink to send metrics to a StatsD compatible agent over UDP, in the line protocol with DogStatsD style tags:
+// "<tagPrefix><name>:<value>|g|#<label>:<value>,...". Values are gauges ("|g"), and counter deltas are counters ("|c").
+// Signed gauge values are relative changes in StatsD, so negative gauges are sent as "0|g" and then "-N|g".
+// Values are written in plain decimal notation (no exponents), which StatsD parses.
+// Lines are packed into datagrams up to maxPacketSize bytes, and buffers are allocated only once.
+// Datagrams which can't be sent immediately (non-blocking) are dropped, as StatsD clients usually do.
+// This class is not thread-safe, and expected to be called from the thread of MetricMonitor.
+public class StatsdSink
+        implements MetricSink, Closeable
+{
+    // safe size for typical Ethernet MTU (1500) - IP/UDP headers
+    public static final int DEFAULT_MAX_PACKET_SIZE = 1432;
+
+    private static final char GAUGE = 'g';
+    private static final char COUNTER = 'c';
+
+    private static final int MAX_FRACTION_DIGITS = 6;
+    private static final long FRACTION_SCALE = 1_000_000L;
+    // values up to this can be scaled by FRACTION_SCALE into longs
+    private static final double MAX_FIXED_POINT = (double) (Long.MAX_VALUE / FRACTION_SCALE);
+
+    private final DatagramChannel channel;
+    private final ByteBuffer packet;
+    private final ByteBuffer line;
+
+    private final LongAdder sentPackets;
+    private final LongAdder droppedPackets;
+    private final LongAdder droppedLines;
+
+    public StatsdSink(final String host, final int port)
+    {
+        this(new InetSocketAddress(host, port), DEFAULT_MAX_PACKET_SIZE);
+    }
+
+    public StatsdSink(final InetSocketAddress address, final int maxPacketSize)
+    {
+        try {
+            this.channel = DatagramChannel.open();
+            this.channel.configureBlocking(false);
+            this.channel.connect(address);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Failed to open UDP channel to " + address, e);
+        }
+        this.packet = ByteBuffer.allocateDirect(maxPacketSize);
+        this.line = ByteBuffer.allocateDirect(maxPacketSize);
+        this.sentPackets = new LongAdder();
+        this.droppedPackets = new LongAdder();
+        this.droppedLines = new LongAdder();
+    }
+
+    public long getSentPackets()
+    {
+        return sentPackets.sum();
+    }
+
+    public long getDroppedPackets()
+    {
+        return droppedPackets.sum();
+    }
+
+    // lines longer than max packet size
+    public long getDroppedLines()
+    {
+        return droppedLines.sum();
+    }
+
+    @Override
+    public void write(final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+    {
+        writeNumber(tagPrefix, name, value, GAUGE, labels);
+    }
+
+    @Override
+    public void write(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+    {
+        writeLong(tagPrefix, name, value, GAUGE, labels);
+    }
+
+    @Override
+    public void write(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+    {
+        writeDouble(tagPrefix, name, value, GAUGE, labels);
+    }
+
+    @Override
+    public void writeCounter(final String tagPrefix, final String name, final Object value, final Map<String, Object> labels)
+    {
+        writeNumber(tagPrefix, name, value, COUNTER, labels);
+    }
+
+    @Override
+    public void writeCounter(final String tagPrefix, final String name, final long value, final Map<String, Object> labels)
+    {
+        writeLong(tagPrefix, name, value, COUNTER, labels);
+    }
+
+    @Override
+    public void writeCounter(final String tagPrefix, final String name, final double value, final Map<String, Object> labels)
+    {
+        writeDouble(tagPrefix, name, value, COUNTER, labels);
+    }
+
+    private void writeNumber(final String tagPrefix, final String name, final Object value, final char type, final Map<String, Object> labels)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            writeLong(tagPrefix, name, ((Number) value).longValue(), type, labels);
+        }
+        else if (value instanceof Number) {
+            writeDouble(tagPrefix, name, ((Number) value).doubleValue(), type, labels);
+        }
+        else if (value instanceof Boolean) {
+            writeLong(tagPrefix, name, ((Boolean) value) ? 1L : 0L, type, labels);
+        }
+        // others are not numeric: ignored
+    }
+
+    private void writeLong(final String tagPrefix, final String name, final long value, final char type, final Map<String, Object> labels)
+    {
+        line.clear();
+        if (putGaugeReset(tagPrefix, name, value < 0, type, labels) && putName(tagPrefix, name) && putLong(value) && putTypeAndTags(type, labels)) {
+            append();
+        }
+        else {
+            droppedLines.increment();
+        }
+    }
+
+    private void writeDouble(final String tagPrefix, final String name, final double value, final char type, final Map<String, Object> labels)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return;
+        }
+        line.clear();
+        if (putGaugeReset(tagPrefix, name, value < 0, type, labels) && putName(tagPrefix, name) && putDouble(value) && putTypeAndTags(type, labels)) {
+            append();
+        }
+        else {
+            droppedLines.increment();
+        }
+    }
+
+    @Override
+    public void flush()
+    {
+        if (packet.position() > 0) {
+            send();
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        flush();
+        channel.close();
+    }
+
+    // append the line into the packet, or send the packet and start the next one
+    private void append()
+    {
+        line.flip();
+        int separator = packet.position() > 0 ? 1 : 0;
+        if (packet.remaining() < line.remaining() + separator) {
+            send();
+            separator = 0;
+        }
+        if (separator > 0) {
+            packet.put((byte) '\n');
+        }
+        packet.put(line);
+    }
+
+    private void send()
+    {
+        packet.flip();
+        try {
+            if (channel.write(packet) > 0) {
+                sentPackets.increment();
+            }
+            else {
+                droppedPackets.increment();
+            }
+        }
+        catch (IOException e) {
+            // e.g., ICMP port unreachable: the agent is not running now
+            droppedPackets.increment();
+        }
+        finally {
+            packet.clear();
+        }
+    }
+
+    private boolean putName(final String tagPrefix, final String name)
+    {
+        return putSanitized(tagPrefix) && putSanitized(name) && putByte(':');
+    }
+
+    // "<name>:0|g" line before negative gauges, in the same datagram (appended with the gauge line)
+    private boolean putGaugeReset(final String tagPrefix, final String name, final boolean negative, final char type, final Map<String, Object> labels)
+    {
+        if (!negative || type != GAUGE) {
+            return true;
+        }
+        return putName(tagPrefix, name) && putByte('0') && putTypeAndTags(type, labels) && putByte('\n');
+    }
+
+    private boolean putTypeAndTags(final char type, final Map<String, Object> labels)
+    {
+        if (!(putByte('|') && putByte(type))) {
+            return false;
+        }
+        if (labels == null || labels.isEmpty()) {
+            return true;
+        }
+        if (!(putByte('|') && putByte('#'))) {
+            return false;
+        }
+        boolean first = true;
+        for (Map.Entry<String, Object> pair : labels.entrySet()) {
+            if (!first && !putByte(',')) {
+                return false;
+            }
+            first = false;
+            Object v = pair.getValue();
+            if (!(putSanitized(pair.getKey()) && putByte(':') && putSanitized(v == null ? "" : v.toString()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean putByte(final char c)
+    {
+        if (!line.hasRemaining()) {
+            return false;
+        }
+        line.put((byte) c);
+        return true;
+    }
+
+    // characters used as delimiters in the protocol are replaced by "_", and others are encoded in UTF-8
+    private boolean putSanitized(final String str)
+    {
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == ':' || c == '|' || c == '@' || c == '#' || c == ',' || c == '\n' || c == ' ') {
+                c = '_';
+            }
+            if (c < 0x80) {
+                if (!putByte(c)) {
+                    return false;
+                }
+            }
+            else if (c < 0x800) {
+                if (line.remaining() < 2) {
+                    return false;
+                }
+                line.put((byte) (0xc0 | (c >> 6)));
+                line.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(i + 1));
+                i += 1;
+                if (line.remaining() < 4) {
+                    return false;
+                }
+                line.put((byte) (0xf0 | (cp >> 18)));
+                line.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                line.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                line.put((byte) (0x80 | (cp & 0x3f)));
+            }
+            else {
+                if (line.remaining() < 3) {
+                    return false;
+                }
+                line.put((byte) (0xe0 | (c >> 12)));
+                line.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                line.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        return true;
+    }
+
+    private boolean putLong(final long value)
+    {
+        if (value == Long.MIN_VALUE) {
+            return putSanitized(Long.toString(value));
+        }
+        if (value < 0) {
+            if (!putByte('-')) {
+                return false;
+            }
+            return putDigits(-value, 1);
+        }
+        return putDigits(value, 1);
+    }
+
+    // writes digits of non-negative value, padded with zeros up to minDigits
+    private boolean putDigits(final long value, final int minDigits)
+    {
+        int digits = 1;
+        long scale = 1L;
+        while (value / scale >= 10) {
+            scale *= 10;
+            digits += 1;
+        }
+        for (int i = digits; i < minDigits; i++) {
+            if (!putByte('0')) {
+                return false;
+            }
+        }
+        for (; scale > 0; scale /= 10) {
+            if (!putByte((char) ('0' + (value / scale) % 10))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // fixed-point notation with up to 6 fraction digits, without allocating Strings for usual values
+    private boolean putDouble(final double value)
+    {
+        double abs = Math.abs(value);
+        if (abs >= MAX_FIXED_POINT || (abs != 0.0 && abs < 1e-6)) {
+            // scaled values of large ones overflow longs, and tiny ones are rounded to zero, so write these in plain notation
+            return putSanitized(BigDecimal.valueOf(value).stripTrailingZeros().toPlainString());
+        }
+        long scaled = Math.round(abs * FRACTION_SCALE);
+        long integral = scaled / FRACTION_SCALE;
+        long fraction = scaled % FRACTION_SCALE;
+        if (value < 0 && scaled > 0 && !putByte('-')) {
+            return false;
+        }
+        if (!putDigits(integral, 1)) {
+            return false;
+        }
+        if (fraction == 0) {
+            return true;
+        }
+        int digits = MAX_FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits -= 1;
+        }
+        return putByte('.') && putDigits(fraction, digits);
+    }
+}
@@ -0,0 +1,52 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+// Fingerprints of throwables, by class name and top stack frames (class, method and line).
+// The same throwable is often logged more than once (e.g., at each layer rethrowing it), so fingerprints are
+// cached per throwable instance (by identity, weakly) not to walk stack traces again.
+final class ThrowableFingerprint
+{
+    static final int FRAMES = 8;
+
+    private static final Cache<Throwable, Long> CACHE = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(4096)
+            .build();
+
+    private ThrowableFingerprint()
+    {
+    }
+
+    static long of(final Throwable e)
+    {
+        Long cached = CACHE.getIfPresent(e);
+        if (cached != null) {
+            return cached;
+        }
+        long fingerprint = compute(e);
+        CACHE.put(e, fingerprint);
+        return fingerprint;
+    }
+
+    static long compute(final Throwable e)
+    {
+        long h = SeriesTable.hash(e.getClass().getName());
+        StackTraceElement[] frames = e.getStackTrace();
+        int depth = Math.min(FRAMES, frames.length);
+        for (int i = 0; i < depth; i++) {
+            StackTraceElement frame = frames[i];
+            h = SeriesTable.mix(h * 31 + SeriesTable.hash(frame.getClassName()));
+            h = SeriesTable.mix(h * 31 + SeriesTable.hash(frame.getMethodName()));
+            h = SeriesTable.mix(h * 31 + frame.getLineNumber());
+        }
+        return h;
+    }
+
+    static String toHex(final long fingerprint)
+    {
+        String hex = Long.toHexString(fingerprint);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,73 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+public class AttrsMapTest
+{
+    @Test
+    public void putGetAndRemove()
+    {
+        AttrsMap<String, Object> map = new AttrsMap<>(1);
+        assertThat(map.isEmpty(), is(true));
+        assertThat(map.put("a", 1), is(nullValue()));
+        assertThat(map.put("b", 2), is(nullValue()));
+        assertThat(map.put("c", 3), is(nullValue()));
+        assertThat(map.put("a", 10), is(1));
+        assertThat(map.size(), is(3));
+        assertThat(map.get("a"), is(10));
+        assertThat(map.containsKey("b"), is(true));
+        assertThat(map.containsKey("x"), is(false));
+
+        assertThat(map.remove("b"), is(2));
+        assertThat(map.remove("b"), is(nullValue()));
+        assertThat(map.size(), is(2));
+        assertThat(map.keyAt(0), is("a"));
+        assertThat(map.keyAt(1), is("c"));
+        assertThat(map.valueAt(1), is(3));
+
+        map.clear();
+        assertThat(map.size(), is(0));
+        assertThat(map.get("a"), is(nullValue()));
+    }
+
+    @Test
+    public void appendAndGrow()
+    {
+        AttrsMap<String, Object> map = new AttrsMap<>(2);
+        for (int i = 0; i < 100; i++) {
+            map.append("k" + i, i);
+        }
+        assertThat(map.size(), is(100));
+        assertThat(map.get("k99"), is(99));
+        assertThat(map.keyAt(50), is("k50"));
+    }
+
+    @Test
+    public void iterateAndRemoveEntries()
+    {
+        AttrsMap<String, Object> map = new AttrsMap<>(4);
+        map.put("a", 1);
+        map.put("b", 2);
+        map.put("c", 3);
+        Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Object> entry = it.next();
+            if (entry.getKey().equals("b")) {
+                it.remove();
+            }
+            else {
+                entry.setValue(((Integer) entry.getValue()) * 10);
+            }
+        }
+        assertThat(map.size(), is(2));
+        assertThat(map.get("a"), is(10));
+        assertThat(map.get("c"), is(30));
+    }
+}
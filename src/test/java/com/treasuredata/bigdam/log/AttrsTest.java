@@ -1,5 +1,8 @@
 package com.treasuredata.bigdam.log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.junit.Test;
@@ -96,4 +99,45 @@ public class AttrsTest
         assertThat(attrs.get("six"), is(6));
         assertThat(attrs.get("seven"), is(7));
     }
+
+    @Test
+    public void ofKeepsInsertionOrder()
+    {
+        Map<String, Integer> attrs = Attrs.of("c", 3, "a", 1, "b", 2);
+        assertThat(new ArrayList<>(attrs.keySet()), is(Arrays.asList("c", "a", "b")));
+        assertThat(attrs.toString(), is("{c=3, a=1, b=2}"));
+    }
+
+    @Test
+    public void ofWithDuplicatedKeys()
+    {
+        Map<String, Integer> attrs = Attrs.of("one", 1, "one", 2);
+        assertThat(attrs.size(), is(1));
+        assertThat(attrs.get("one"), is(2));
+    }
+
+    @Test
+    public void equalToOtherMaps()
+    {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("one", 1);
+        expected.put("two", null);
+        assertThat(Attrs.of("two", null, "one", 1), is(expected));
+        assertThat(expected.equals(Attrs.of("one", 1, "two", null)), is(true));
+        assertThat(Attrs.of("one", 1, "two", null).hashCode(), is(expected.hashCode()));
+    }
+
+    @Test
+    public void builder()
+    {
+        Attrs.Builder builder = Attrs.builder();
+        for (int i = 0; i < 20; i++) {
+            builder.put("k" + i, i);
+        }
+        Map<String, Object> attrs = builder.putAll(Attrs.of("k0", "zero", "extra", true)).build();
+        assertThat(attrs.size(), is(21));
+        assertThat(attrs.get("k0"), is("zero"));
+        assertThat(attrs.get("k19"), is(19));
+        assertThat(attrs.get("extra"), is(true));
+    }
 }
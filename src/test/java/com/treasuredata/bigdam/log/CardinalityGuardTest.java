@@ -0,0 +1,58 @@
+package com.treasuredata.bigdam.log;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+public class CardinalityGuardTest
+{
+    @Test
+    public void admitLabelSetsUpToLimit()
+    {
+        CardinalityGuard guard = new CardinalityGuard(2, 5);
+        assertThat(guard.admit("metric.", "name", 1L, 1), is(nullValue()));
+        assertThat(guard.admit("metric.", "name", 2L, 1), is(nullValue()));
+        assertThat(guard.admit("metric.", "name", 1L, 1), is(nullValue())); // known label set
+
+        CardinalityGuard.NameState state = guard.admit("metric.", "name", 3L, 1);
+        assertThat(state, is(notNullValue()));
+        assertThat(state.name, is("name"));
+
+        // limits are per name
+        assertThat(guard.admit("metric.", "another", 3L, 1), is(nullValue()));
+        assertThat(guard.admit("raw.", "name", 3L, 1), is(nullValue()));
+    }
+
+    @Test
+    public void foldValues()
+    {
+        CardinalityGuard.NameState state = new CardinalityGuard.NameState("metric.", "name");
+        state.fold(false, 3L, 0.0);
+        state.fold(false, 4L, 0.0);
+        assertThat(state.isDouble, is(false));
+        assertThat(state.longSum, is(7L));
+
+        state.fold(true, 0L, 0.5);
+        assertThat(state.isDouble, is(true));
+        assertThat(state.doubleSum, is(7.5));
+        assertThat(state.folded, is(3));
+
+        state.reset();
+        assertThat(state.folded, is(0));
+        assertThat(state.isDouble, is(false));
+    }
+
+    @Test
+    public void forgetLabelSetsNotSeen()
+    {
+        CardinalityGuard guard = new CardinalityGuard(1, 5);
+        assertThat(guard.admit("metric.", "name", 1L, 1), is(nullValue()));
+        assertThat(guard.admit("metric.", "name", 2L, 2), is(notNullValue()));
+
+        guard.expire(7);
+        assertThat(guard.admit("metric.", "name", 2L, 7), is(nullValue()));
+    }
+}
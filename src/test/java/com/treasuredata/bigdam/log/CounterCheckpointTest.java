@@ -0,0 +1,76 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class CounterCheckpointTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void saveAndLoad()
+            throws IOException
+    {
+        Path path = folder.getRoot().toPath().resolve("counters.checkpoint");
+        CounterCheckpoint checkpoint = new CounterCheckpoint(path);
+
+        SeriesTable counters = new SeriesTable();
+        int slot = -counters.insert(100L) - 1;
+        counters.kind(slot, (byte) 1);
+        counters.value(slot, 5000L);
+        counters.time(slot, 1_000L); // clock of the saving process
+        counters.tick(slot, 7);
+        SeriesTable lastEmitted = new SeriesTable();
+        slot = -lastEmitted.insert(200L) - 1;
+        lastEmitted.value(slot, 12345L);
+
+        checkpoint.save(counters, lastEmitted, 11_000L, 1_500_000_000_000_000_000L);
+        assertThat(Files.exists(path), is(true));
+        assertThat(Files.exists(path.resolveSibling("counters.checkpoint.tmp")), is(false));
+
+        SeriesTable loadedCounters = new SeriesTable();
+        SeriesTable loadedLastEmitted = new SeriesTable();
+        // loaded 1 second later, by a process whose clock has different origin
+        assertThat(checkpoint.load(loadedCounters, loadedLastEmitted, 500_000L, 1_500_000_001_000_000_000L, 0), is(true));
+
+        slot = loadedCounters.find(100L);
+        assertThat(loadedCounters.size(), is(1));
+        assertThat(loadedCounters.kind(slot), is((byte) 1));
+        assertThat(loadedCounters.value(slot), is(5000L));
+        // saved 10us before the save, which was 1 second before the load
+        assertThat(loadedCounters.time(slot), is(500_000L - 1_000_000_000L - 10_000L));
+        assertThat(loadedCounters.tick(slot), is(0));
+
+        slot = loadedLastEmitted.find(200L);
+        assertThat(loadedLastEmitted.size(), is(1));
+        assertThat(loadedLastEmitted.value(slot), is(12345L));
+    }
+
+    @Test
+    public void loadWithoutCheckpoint()
+            throws IOException
+    {
+        CounterCheckpoint checkpoint = new CounterCheckpoint(folder.getRoot().toPath().resolve("missing"));
+        SeriesTable counters = new SeriesTable();
+        assertThat(checkpoint.load(counters, new SeriesTable(), 0L, 0L, 0), is(false));
+        assertThat(counters.size(), is(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectBrokenCheckpoint()
+            throws IOException
+    {
+        Path path = folder.newFile("broken").toPath();
+        Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        new CounterCheckpoint(path).load(new SeriesTable(), new SeriesTable(), 0L, 0L, 0);
+    }
+}
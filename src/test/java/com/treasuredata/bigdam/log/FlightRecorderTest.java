@@ -0,0 +1,115 @@
+package com.treasuredata.bigdam.log;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.sentry.event.Breadcrumb;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+
+public class FlightRecorderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keepLatestEntries()
+    {
+        FlightRecorder recorder = new FlightRecorder(3);
+        assertThat(recorder.capacity(), is(4));
+        assertThat(recorder.snapshot().size(), is(0));
+
+        for (int i = 0; i < 6; i++) {
+            recorder.record(i % 5, "Logger", "m" + i, null);
+        }
+        List<FlightRecorder.Entry> entries = recorder.snapshot();
+        assertThat(entries.size(), is(4));
+        assertThat(entries.get(0).message, is("m2"));
+        assertThat(entries.get(3).message, is("m5"));
+        assertThat(entries.get(3).level, is(0));
+        assertThat(entries.get(3).errorClass, is(nullValue()));
+    }
+
+    @Test
+    public void breadcrumbs()
+    {
+        FlightRecorder recorder = new FlightRecorder(8);
+        recorder.record(1, "Logger", "debug message", null);
+        recorder.record(3, "Logger", "warn message", new IllegalStateException());
+
+        List<Breadcrumb> breadcrumbs = recorder.breadcrumbs();
+        assertThat(breadcrumbs.size(), is(2));
+        assertThat(breadcrumbs.get(0).getLevel(), is(Breadcrumb.Level.DEBUG));
+        assertThat(breadcrumbs.get(0).getMessage(), is("debug message"));
+        assertThat(breadcrumbs.get(0).getCategory(), is("Logger"));
+        assertThat(breadcrumbs.get(1).getLevel(), is(Breadcrumb.Level.WARNING));
+        assertThat(breadcrumbs.get(1).getData().get("errorClass"), is("java.lang.IllegalStateException"));
+    }
+
+    @Test
+    public void dump()
+            throws IOException
+    {
+        FlightRecorder recorder = new FlightRecorder(8);
+        recorder.record(2, "Logger", "info message", null);
+        recorder.record(4, "Logger", "error message", new RuntimeException());
+        Path path = folder.getRoot().toPath().resolve("dump.log");
+        recorder.dump(path);
+
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(2));
+        assertThat(lines.get(0), endsWith(" INFO Logger info message"));
+        assertThat(lines.get(1), endsWith(" ERROR Logger error message (java.lang.RuntimeException)"));
+    }
+
+    @Test
+    public void scrubMessagesLeavingRecorder()
+            throws IOException
+    {
+        FlightRecorder recorder = new FlightRecorder(8, new SecretScrubber()::scrub);
+        recorder.record(2, "Logger", "connecting with password=hunter2", null);
+        assertThat(recorder.snapshot().get(0).message, is("connecting with password=hunter2"));
+
+        assertThat(recorder.breadcrumbs().get(0).getMessage(), is("connecting with password=********"));
+        Path path = folder.getRoot().toPath().resolve("dump.log");
+        recorder.dump(path);
+        assertThat(Files.readAllLines(path, StandardCharsets.UTF_8).get(0), endsWith(" INFO Logger connecting with password=********"));
+    }
+
+    @Test
+    public void concurrentWriters()
+            throws Exception
+    {
+        FlightRecorder recorder = new FlightRecorder(64);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String name = "thread" + t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    recorder.record(2, name, name, null);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<FlightRecorder.Entry> entries = recorder.snapshot();
+        assertThat(entries.size(), is(64));
+        for (FlightRecorder.Entry entry : entries) {
+            // fields of an entry are written by the same writer
+            assertThat(entry.message, is(entry.logger));
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+import org.komamitsu.fluency.Fluency;
+import org.komamitsu.fluency.sender.SenderErrorHandler;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FluentdBalancerTest
+{
+    // accepts connections of forward protocol, and counts and discards data
+    private static class StubForwardServer
+            implements AutoCloseable
+    {
+        private final ServerSocket server;
+        private final Thread acceptor;
+        private final AtomicLong received = new AtomicLong();
+        private volatile Socket connection;
+
+        StubForwardServer()
+                throws IOException
+        {
+            this.server = new ServerSocket(0);
+            this.acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+                        connection = socket;
+                        byte[] buf = new byte[1024];
+                        int read;
+                        while ((read = in.read(buf)) >= 0) {
+                            received.addAndGet(read);
+                        }
+                    }
+                    catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            this.acceptor.setDaemon(true);
+            this.acceptor.start();
+        }
+
+        int port()
+        {
+            return server.getLocalPort();
+        }
+
+        long received()
+        {
+            return received.get();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            server.close();
+            // closes the accepted connection too, as clients keep sending over it
+            Socket socket = connection;
+            if (socket != null) {
+                socket.close();
+            }
+            try {
+                // the listening socket is released after the blocked accept returns
+                acceptor.join(1000L);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final List<StubForwardServer> servers = new ArrayList<>();
+    private final Map<Integer, Fluency> fluencies = new HashMap<>();
+
+    private List<FluentdBalancer.Endpoint> endpoints(final int... weights)
+            throws IOException
+    {
+        List<FluentdBalancer.Endpoint> endpoints = new ArrayList<>();
+        for (int weight : weights) {
+            StubForwardServer server = new StubForwardServer();
+            servers.add(server);
+            fluencies.put(server.port(), mock(Fluency.class));
+            endpoints.add(new FluentdBalancer.Endpoint("127.0.0.1", server.port(), weight));
+        }
+        return endpoints;
+    }
+
+    private Fluency fluency(final int index)
+    {
+        return fluencies.get(servers.get(index).port());
+    }
+
+    private FluentdBalancer balancer(final List<FluentdBalancer.Endpoint> endpoints, final FluentdBalancer.Strategy strategy)
+    {
+        return new FluentdBalancer(endpoints, strategy, 60000L, (host, port) -> fluencies.get(port));
+    }
+
+    // a real Fluency client, which flushes often and doesn't retry
+    private static Fluency realFluency(final String host, final int port, final SenderErrorHandler senderErrorHandler)
+    {
+        try {
+            return Fluency.defaultFluency(host, port, new Fluency.Config()
+                    .setFlushIntervalMillis(50)
+                    .setSenderMaxRetryCount(0)
+                    .setSenderErrorHandler(senderErrorHandler));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void waitFor(final BooleanSupplier condition)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out");
+            }
+            Thread.sleep(20L);
+        }
+    }
+
+    @After
+    public void teardown()
+            throws IOException
+    {
+        for (StubForwardServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void scheduleSmoothWeightedRoundRobin()
+            throws IOException
+    {
+        int[] schedule = FluentdBalancer.schedule(ImmutableList.of(
+                new FluentdBalancer.Endpoint("a", 1, 5), new FluentdBalancer.Endpoint("b", 1, 1), new FluentdBalancer.Endpoint("c", 1, 1)));
+        assertArrayEquals(new int[] {0, 0, 1, 0, 2, 0, 0}, schedule);
+    }
+
+    @Test
+    public void balanceByWeightsAndFailOverClosedEndpoints()
+            throws IOException
+    {
+        try (FluentdBalancer balancer = balancer(endpoints(2, 1, 1), FluentdBalancer.Strategy.WEIGHTED_ROUND_ROBIN)) {
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            for (int i = 0; i < 8; i++) {
+                balancer.emit("tag", 1L, event);
+            }
+            verify(fluency(0), times(4)).emit("tag", 1L, event);
+            verify(fluency(1), times(2)).emit("tag", 1L, event);
+            verify(fluency(2), times(2)).emit("tag", 1L, event);
+
+            servers.get(0).close();
+            balancer.checkHealth();
+            assertThat(balancer.getHealthyEndpoints(), is(2));
+            for (int i = 0; i < 8; i++) {
+                balancer.emit("tag", 1L, event);
+            }
+            verify(fluency(0), times(4)).emit("tag", 1L, event);
+            verify(fluency(1), times(6)).emit("tag", 1L, event);
+            verify(fluency(2), times(6)).emit("tag", 1L, event);
+        }
+    }
+
+    @Test
+    public void preferLeastOutstandingEndpoints()
+            throws IOException
+    {
+        try (FluentdBalancer balancer = balancer(endpoints(1, 1, 1), FluentdBalancer.Strategy.LEAST_OUTSTANDING)) {
+            // the first endpoint is slow, and its buffer grows
+            when(fluency(0).getBufferedDataSize()).thenReturn(1000000L);
+            when(fluency(1).getBufferedDataSize()).thenReturn(100L);
+            when(fluency(2).getBufferedDataSize()).thenReturn(200L);
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            for (int i = 0; i < 4; i++) {
+                balancer.emit("tag", 1L, event);
+            }
+            verify(fluency(0), never()).emit("tag", 1L, event);
+            verify(fluency(1), times(4)).emit("tag", 1L, event);
+            verify(fluency(2), never()).emit("tag", 1L, event);
+        }
+    }
+
+    @Test
+    public void failOverOnEmitErrors()
+            throws IOException
+    {
+        try (FluentdBalancer balancer = balancer(endpoints(1, 1), FluentdBalancer.Strategy.WEIGHTED_ROUND_ROBIN)) {
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            doThrow(new IOException("failure")).when(fluency(0)).emit("tag", 1L, event);
+
+            balancer.emit("tag", 1L, event);
+            verify(fluency(1), times(1)).emit("tag", 1L, event);
+            assertThat(balancer.getFailovers(), is(1L));
+            assertThat(balancer.getHealthyEndpoints(), is(1));
+
+            balancer.emit("tag", 1L, event);
+            balancer.emit("tag", 1L, event);
+            verify(fluency(0), times(1)).emit("tag", 1L, event);
+            verify(fluency(1), times(3)).emit("tag", 1L, event);
+
+            // recovered by the health check
+            balancer.checkHealth();
+            assertThat(balancer.getHealthyEndpoints(), is(2));
+
+            doThrow(new IOException("failure")).when(fluency(1)).emit("tag", 1L, event);
+            try {
+                balancer.emit("tag", 1L, event);
+                fail();
+            }
+            catch (IOException e) {
+                assertThat(e.getSuppressed().length, is(1));
+            }
+        }
+        verify(fluency(0)).close();
+        verify(fluency(1)).close();
+    }
+
+    @Test
+    public void markEndpointsUnhealthyOnSenderErrors()
+            throws IOException, InterruptedException
+    {
+        // the health check doesn't run in the test, and emits don't fail as these only buffer events
+        try (FluentdBalancer balancer = new FluentdBalancer(endpoints(1, 1), FluentdBalancer.Strategy.WEIGHTED_ROUND_ROBIN, 60000L, FluentdBalancerTest::realFluency)) {
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            balancer.emit("tag", 1L, event);
+            balancer.emit("tag", 1L, event);
+            waitFor(() -> servers.get(0).received() > 0 && servers.get(1).received() > 0);
+
+            // the first write to the closed connection may succeed, and following ones fail
+            servers.get(0).close();
+            waitFor(() -> {
+                try {
+                    balancer.emit("tag", 1L, event);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return balancer.getHealthyEndpoints() == 1;
+            });
+            assertThat(balancer.getNodes()[0].healthy, is(false));
+            assertThat(balancer.getFailovers(), is(0L));
+
+            // following events are sent only to the open endpoint
+            long received = servers.get(1).received();
+            for (int i = 0; i < 4; i++) {
+                balancer.emit("tag", 1L, event);
+            }
+            waitFor(() -> servers.get(1).received() > received);
+            long buffered = balancer.getNodes()[0].fluency.getBufferedDataSize();
+            for (int i = 0; i < 4; i++) {
+                balancer.emit("tag", 1L, event);
+            }
+            assertThat(balancer.getNodes()[0].fluency.getBufferedDataSize() <= buffered, is(true));
+        }
+    }
+}
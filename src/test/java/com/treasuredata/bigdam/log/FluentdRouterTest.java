@@ -0,0 +1,138 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.komamitsu.fluency.Fluency;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FluentdRouterTest
+{
+    private final FluentdEmitter logs = mock(FluentdEmitter.class);
+    private final FluentdEmitter metrics = mock(FluentdEmitter.class);
+    private final Map<String, FluentdEmitter> sinks = ImmutableMap.of("logs", logs, "metrics", metrics);
+
+    @Test
+    public void matchGlobs()
+    {
+        assertTrue(new FluentdRouter.Glob(0, "a.*").matches("a.b"));
+        assertFalse(new FluentdRouter.Glob(0, "a.*").matches("a"));
+        assertFalse(new FluentdRouter.Glob(0, "a.*").matches("a.b.c"));
+        assertTrue(new FluentdRouter.Glob(0, "a.**").matches("a"));
+        assertTrue(new FluentdRouter.Glob(0, "a.**").matches("a.b.c"));
+        assertFalse(new FluentdRouter.Glob(0, "a.**").matches("ab"));
+        assertTrue(new FluentdRouter.Glob(0, "a.**.z").matches("a.z"));
+        assertTrue(new FluentdRouter.Glob(0, "a.**.z").matches("a.b.c.z"));
+        assertFalse(new FluentdRouter.Glob(0, "a.**.z").matches("a.b.c"));
+        assertTrue(new FluentdRouter.Glob(0, "**").matches("anything.at.all"));
+        assertTrue(new FluentdRouter.Glob(0, "a.metric_*.x").matches("a.metric_cpu.x"));
+        assertTrue(new FluentdRouter.Glob(0, "a.metric_*.x").matches("a.metric_.x"));
+        assertFalse(new FluentdRouter.Glob(0, "a.metric_*.x").matches("a.metrics.x"));
+        assertTrue(new FluentdRouter.Glob(0, "*.*_count").matches("a.b_c_count"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectPartialAnyParts()
+    {
+        new FluentdRouter.Glob(0, "a.b**");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownSinks()
+    {
+        new FluentdRouter(sinks, ImmutableList.of(new FluentdRouter.Route("a.**", "unknown")), 16);
+    }
+
+    @Test
+    public void resolveFirstMatchingRoute()
+    {
+        FluentdRouter router = new FluentdRouter(sinks, ImmutableList.of(
+                new FluentdRouter.Route("bigdam.metric.**", "metrics"),
+                new FluentdRouter.Route("bigdam.log.error", "logs", "metrics"),
+                FluentdRouter.Route.drop("bigdam.log.debug"),
+                new FluentdRouter.Route("bigdam.metric.cpu", "logs"), // shadowed by the first route
+                new FluentdRouter.Route("bigdam.log.*", "logs")), 16);
+
+        assertThat(router.resolve("bigdam.metric.cpu"), arrayContaining(metrics));
+        assertThat(router.resolve("bigdam.log.error"), arrayContaining(logs, metrics));
+        assertThat(router.resolve("bigdam.log.info"), arrayContaining(logs));
+        assertThat(router.resolve("bigdam.log.debug"), is(emptyArray()));
+        assertThat(router.resolve("other"), is(emptyArray()));
+
+        // cached routes are returned as-is
+        assertThat(router.resolve("bigdam.log.info"), sameInstance(router.resolve("bigdam.log.info")));
+        assertThat(router.cachedTags(), is(5));
+    }
+
+    @Test
+    public void limitCachedTags()
+    {
+        FluentdRouter router = new FluentdRouter(sinks, ImmutableList.of(new FluentdRouter.Route("**", "logs")), 2);
+        for (int i = 0; i < 10; i++) {
+            assertThat(router.resolve("tag" + i), arrayContaining(logs));
+        }
+        assertThat(router.cachedTags(), is(2));
+    }
+
+    @Test
+    public void emitToRoutedSinks()
+            throws IOException
+    {
+        FluentdRouter router = new FluentdRouter(sinks, ImmutableList.of(
+                new FluentdRouter.Route("dup", "logs", "metrics"),
+                FluentdRouter.Route.drop("drop"),
+                new FluentdRouter.Route("**", "logs")), 16);
+        Map<String, Object> event = ImmutableMap.of("k", "v");
+        doThrow(new IOException("failed")).when(logs).emit("dup", 1L, event);
+
+        try {
+            router.emit("dup", 1L, event);
+            fail();
+        }
+        catch (IOException e) {
+            assertThat(e.getMessage(), is("failed"));
+        }
+        verify(metrics).emit("dup", 1L, event); // duplicated even if others fail
+
+        router.emit("drop", 1L, event);
+        router.emit("x", 1L, event);
+        verify(logs).emit("x", 1L, event);
+        verify(logs, never()).emit(eq("drop"), anyLong(), any());
+        verify(metrics, never()).emit(eq("drop"), anyLong(), any());
+
+        Map<String, Object> produced = new HashMap<>();
+        router.addMetrics(produced);
+        assertThat(produced.get("fluentd.routes.dropped"), is(1L));
+    }
+
+    @Test
+    public void openSinksOfEndpoints()
+            throws IOException
+    {
+        Fluency fluency1 = mock(Fluency.class);
+        Fluency fluency2 = mock(Fluency.class);
+        try (FluentdRouter router = new FluentdRouter(
+                ImmutableMap.of("logs", new FluentdBalancer.Endpoint("localhost", 24224), "metrics", new FluentdBalancer.Endpoint("localhost", 24225)),
+                ImmutableList.of(new FluentdRouter.Route("**", "logs", "metrics")),
+                (host, port) -> port == 24224 ? fluency1 : fluency2)) {
+            assertThat(router.getFluencies(), is(ImmutableList.of(fluency1, fluency2)));
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            router.emit("tag", 1L, event);
+            verify(fluency1).emit("tag", 1L, event);
+            verify(fluency2).emit("tag", 1L, event);
+        }
+        verify(fluency1).close();
+        verify(fluency2).close();
+    }
+}
@@ -0,0 +1,88 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.komamitsu.fluency.Fluency;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FluentdShardsTest
+{
+    private final List<Fluency> fluencies = new ArrayList<>();
+
+    private Fluency newFluency()
+    {
+        Fluency fluency = mock(Fluency.class);
+        fluencies.add(fluency);
+        return fluency;
+    }
+
+    @Test
+    public void shardByThreads()
+            throws Exception
+    {
+        try (FluentdShards shards = new FluentdShards("localhost", 24224, 4, FluentdShards.Key.THREAD, ImmutableList.of("ordered"), (h, p) -> newFluency())) {
+            assertThat(shards.getFluencies().size(), is(4));
+
+            Set<Integer> used = new HashSet<>();
+            int[] orderedShards = new int[4];
+            for (int i = 0; i < 4; i++) {
+                int[] result = new int[3];
+                Thread thread = new Thread(() -> {
+                    result[0] = shards.shardOf("a");
+                    result[1] = shards.shardOf("ordered");
+                    result[2] = shards.shardOf("b");
+                });
+                thread.start();
+                thread.join();
+                assertThat(result[2], is(result[0])); // fixed per thread
+                used.add(result[0]);
+                orderedShards[i] = result[1];
+            }
+            assertThat(used.size(), is(4)); // assigned in round-robin
+            for (int i = 1; i < 4; i++) {
+                assertThat(orderedShards[i], is(orderedShards[0]));
+            }
+        }
+        for (Fluency fluency : fluencies) {
+            verify(fluency).close();
+        }
+    }
+
+    @Test
+    public void shardByTags()
+            throws IOException
+    {
+        try (FluentdShards shards = new FluentdShards("localhost", 24224, 8, FluentdShards.Key.TAG, (h, p) -> newFluency())) {
+            Map<String, Object> event = ImmutableMap.of("k", "v");
+            Set<Integer> used = new HashSet<>();
+            for (int i = 0; i < 32; i++) {
+                String tag = "tag" + i;
+                int shard = shards.shardOf(tag);
+                assertThat(shards.shardOf(tag), is(shard));
+                used.add(shard);
+
+                shards.emit(tag, 1L, event);
+                verify(fluencies.get(shard)).emit(tag, 1L, event);
+            }
+            assertThat(used.size(), is(not(1)));
+
+            Map<String, Object> metrics = new HashMap<>();
+            shards.addMetrics(metrics);
+            assertThat(metrics.get("fluentd.shards"), is(8L));
+        }
+    }
+}
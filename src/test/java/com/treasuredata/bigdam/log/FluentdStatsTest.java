@@ -0,0 +1,52 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.Map;
+
+import org.komamitsu.fluency.Fluency;
+import org.komamitsu.fluency.buffer.Buffer;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class FluentdStatsTest
+{
+    @Test
+    public void produceStats()
+    {
+        Fluency fluency = mock(Fluency.class);
+        Buffer buffer = mock(Buffer.class);
+        when(fluency.getBufferedDataSize()).thenReturn(1024L);
+        when(fluency.getAllocatedBufferSize()).thenReturn(4096L);
+        when(fluency.getBuffer()).thenReturn(buffer);
+        when(buffer.getBufferUsage()).thenReturn(0.5f);
+
+        FluentdStats stats = new FluentdStats();
+        stats.emitted(true, 1_000L);
+        stats.emitted(true, 5_000L);
+        stats.emitted(false, 3_000L);
+        stats.senderError();
+
+        Map<String, Object> metrics = stats.produce(fluency);
+        assertThat(metrics.get("fluentd.buffer.buffered_bytes"), is(1024L));
+        assertThat(metrics.get("fluentd.buffer.allocated_bytes"), is(4096L));
+        assertThat(metrics.get("fluentd.buffer.usage"), is(0.5));
+        assertThat(metrics.get("fluentd.emit.success"), is(2L));
+        assertThat(metrics.get("fluentd.emit.failure"), is(1L));
+        assertThat(metrics.get("fluentd.sender.errors"), is(1L));
+        assertThat(metrics.get("fluentd.emit.latency_sum_us"), is(9L));
+
+        // producing doesn't reset anything, so consumers don't steal windows of others
+        metrics = stats.produce(null);
+        assertThat(metrics.containsKey("fluentd.buffer.buffered_bytes"), is(false));
+        assertThat(metrics.get("fluentd.emit.success"), is(2L));
+        assertThat(metrics.get("fluentd.emit.latency_sum_us"), is(9L));
+
+        stats.emitted(true, 2_000L);
+        metrics = stats.produce(null);
+        assertThat(metrics.get("fluentd.emit.success"), is(3L));
+        assertThat(metrics.get("fluentd.emit.latency_sum_us"), is(11L));
+    }
+}
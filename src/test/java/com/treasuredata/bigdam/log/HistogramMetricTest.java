@@ -0,0 +1,76 @@
+package com.treasuredata.bigdam.log;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class HistogramMetricTest
+{
+    @Test
+    public void buckets()
+    {
+        assertThat(HistogramMetric.bucketOf(-1L), is(0));
+        assertThat(HistogramMetric.bucketOf(0L), is(0));
+        assertThat(HistogramMetric.bucketOf(1L), is(1));
+        assertThat(HistogramMetric.bucketOf(2L), is(2));
+        assertThat(HistogramMetric.bucketOf(3L), is(2));
+        assertThat(HistogramMetric.bucketOf(1024L), is(11));
+        assertThat(HistogramMetric.bucketOf(Long.MAX_VALUE), is(63));
+
+        assertThat(HistogramMetric.upperBoundOf(0), is(0L));
+        assertThat(HistogramMetric.upperBoundOf(2), is(3L));
+        assertThat(HistogramMetric.upperBoundOf(11), is(2047L));
+        assertThat(HistogramMetric.upperBoundOf(63), is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void drainAndPercentiles()
+    {
+        HistogramMetric histogram = new HistogramMetric("latency", Labels.of("api", "get"));
+        for (long v = 1; v <= 100; v++) {
+            histogram.record(v);
+        }
+        histogram.record(5000L);
+
+        HistogramMetric.Snapshot snapshot = new HistogramMetric.Snapshot();
+        histogram.drainTo(snapshot);
+        assertThat(snapshot.count, is(101L));
+        assertThat(snapshot.sum, is(5050L + 5000L));
+        assertThat(snapshot.max, is(5000L));
+        assertThat(snapshot.percentile(0.50), is(63L)); // 51st value (51) is in [32, 63]
+        assertThat(snapshot.percentile(0.90), is(127L));
+        assertThat(snapshot.percentile(1.0), is(5000L)); // capped by max
+
+        // drained: nothing in the next snapshot
+        HistogramMetric.Snapshot next = new HistogramMetric.Snapshot();
+        histogram.drainTo(next);
+        assertThat(next.count, is(0L));
+        assertThat(next.sum, is(0L));
+        assertThat(next.max, is(0L));
+        assertThat(next.percentile(0.99), is(0L));
+    }
+
+    @Test
+    public void mergeSnapshots()
+    {
+        HistogramMetric histogram = new HistogramMetric("latency");
+        HistogramMetric.Snapshot merged = new HistogramMetric.Snapshot();
+        HistogramMetric.Snapshot snapshot = new HistogramMetric.Snapshot();
+
+        histogram.record(10L);
+        histogram.drainTo(snapshot);
+        merged.merge(snapshot);
+
+        snapshot.clear();
+        histogram.record(1000L);
+        histogram.drainTo(snapshot);
+        merged.merge(snapshot);
+
+        assertThat(merged.count, is(2L));
+        assertThat(merged.sum, is(1010L));
+        assertThat(merged.max, is(1000L));
+        assertThat(merged.percentile(0.50), is(15L));
+        assertThat(merged.percentile(0.99), is(1000L));
+    }
+}
@@ -0,0 +1,91 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class JvmMetricsTest
+{
+    private List<String> names(List<ComplexMetric> metrics)
+    {
+        return metrics.stream().map(ComplexMetric::getName).collect(Collectors.toList());
+    }
+
+    private ComplexMetric find(List<ComplexMetric> metrics, String name, String labelName, Object labelValue)
+    {
+        for (ComplexMetric m : metrics) {
+            Map<String, Object> labels = m.getAdditional();
+            if (m.getName().equals(name) && (labelName == null || labelValue.equals(labels.get(labelName)))) {
+                return m;
+            }
+        }
+        throw new AssertionError("metric not found: " + name);
+    }
+
+    @Test
+    public void produceMemoryMetrics()
+    {
+        List<ComplexMetric> metrics = JvmMetrics.memory().produce();
+        assertThat(names(metrics), hasItem("jvm.memory.used"));
+        assertThat((Long) find(metrics, "jvm.memory.used", "area", "heap").getValue(), is(greaterThan(0L)));
+        assertThat(names(JvmMetrics.memoryPools().produce()), hasItem("jvm.memory.pool.used"));
+    }
+
+    @Test
+    public void produceThreadMetrics()
+    {
+        List<ComplexMetric> metrics = JvmMetrics.threads().produce();
+        assertThat((Long) find(metrics, "jvm.threads.count", null, null).getValue(), is(greaterThan(0L)));
+        assertThat((Long) find(metrics, "jvm.threads.state", "state", "runnable").getValue(), is(greaterThan(0L)));
+    }
+
+    @Test
+    public void produceGcAndClassMetrics()
+    {
+        assertThat(names(JvmMetrics.gc().produce()), hasItem("jvm.gc.count"));
+        assertThat((Long) find(JvmMetrics.classLoading().produce(), "jvm.classes.loaded", null, null).getValue(), is(greaterThan(0L)));
+        assertThat(names(JvmMetrics.classLoadingTotal().produce()), hasItem("jvm.classes.total_loaded"));
+        assertThat(names(JvmMetrics.bufferPools().produce()), hasItem("jvm.buffer.used"));
+    }
+
+    @Test
+    public void threadAllocationIsMonotonic()
+            throws Exception
+    {
+        MetricMonitor.ComplexMetricProducer producer = JvmMetrics.threadAllocation();
+        List<ComplexMetric> first = producer.produce();
+        if (first.isEmpty()) {
+            return; // not supported in this JVM
+        }
+        long before = (Long) first.get(0).getValue();
+
+        Thread t = new Thread(() -> {
+            byte[][] garbage = new byte[100][];
+            for (int i = 0; i < garbage.length; i++) {
+                garbage[i] = new byte[1024];
+            }
+        });
+        t.start();
+        t.join();
+
+        long after = (Long) producer.produce().get(0).getValue();
+        assertThat(after >= before, is(true));
+    }
+
+    @Test
+    public void registerProducers()
+    {
+        MetricMonitor monitor = mock(MetricMonitor.class);
+        JvmMetrics.register(monitor);
+        verify(monitor, times(4)).addCounterProducer(any(MetricMonitor.ComplexMetricProducer.class));
+        verify(monitor, times(5)).addMetricProducer(any(MetricMonitor.ComplexMetricProducer.class));
+    }
+}
@@ -0,0 +1,65 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class LogCaptureTest
+{
+    @Test
+    public void discardUnlessFailed()
+    {
+        Log log = mock(Log.class);
+        Instant now = Instant.now();
+        try (LogCapture capture = LogCapture.open(log, 4)) {
+            assertThat(LogCapture.current(), is(capture));
+            capture.record("debug", now, "m1", null, null, LogContext.EMPTY);
+            assertThat(capture.getCaptured(), is(1));
+        }
+        assertThat(LogCapture.current(), is(nullValue()));
+        verify(log, never()).emitCaptured(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void sendLatestEventsOnFailure()
+    {
+        Log log = mock(Log.class);
+        Instant now = Instant.now();
+        LogCapture capture = LogCapture.open(log, 2);
+        RuntimeException e = new RuntimeException("failure");
+        Map<String, Object> attrs = ImmutableMap.of("k", "v");
+        capture.record("debug", now, "m1", null, null, LogContext.EMPTY);
+        capture.record("trace", now, "m2", e, null, LogContext.EMPTY);
+        capture.record("debug", now, "m3", null, attrs, LogContext.EMPTY);
+        assertThat(capture.getCaptured(), is(2));
+        assertThat(capture.getDropped(), is(1L));
+        LogCapture.failCurrent();
+        assertThat(capture.isFailed(), is(true));
+        capture.close();
+
+        verify(log, times(1)).emitCaptured("trace", now, "m2", e, null, LogContext.EMPTY);
+        verify(log, times(1)).emitCaptured("debug", now, "m3", null, attrs, LogContext.EMPTY);
+        verify(log, times(2)).emitCaptured(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void failOuterScopesTogether()
+    {
+        Log log = mock(Log.class);
+        try (LogCapture outer = LogCapture.open(log, 4)) {
+            try (LogCapture inner = LogCapture.open(log, 4)) {
+                inner.fail();
+            }
+            assertThat(LogCapture.current(), is(outer));
+            assertThat(outer.isFailed(), is(true));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class LogContextTest
+{
+    @Test
+    public void pushAndPopScopes()
+    {
+        assertThat(LogContext.attributes(), is(ImmutableMap.of()));
+        LogContext.Scope outer = LogContext.put("request_id", "r1");
+        try {
+            assertThat(LogContext.attributes(), is(ImmutableMap.of("request_id", "r1")));
+            LogContext.Scope inner = LogContext.putAll(ImmutableMap.of("request_id", "r2", "job", 1));
+            try {
+                // nearer attributes override farther ones
+                assertThat(LogContext.attributes(), is(ImmutableMap.of("request_id", "r2", "job", 1)));
+            }
+            finally {
+                inner.close();
+            }
+            assertThat(LogContext.attributes(), is(ImmutableMap.of("request_id", "r1")));
+        }
+        finally {
+            outer.close();
+        }
+        assertThat(LogContext.current().isEmpty(), is(true));
+    }
+
+    @Test
+    public void propagateToOtherThreads()
+            throws Exception
+    {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Executor executor = LogContext.wrapExecutor(pool);
+            CompletableFuture<Map<String, Object>> fromExecutor;
+            CompletableFuture<Map<String, Object>> fromSupplier;
+            LogContext.Scope scope = LogContext.put("request_id", "r1");
+            try {
+                CompletableFuture<Map<String, Object>> f = new CompletableFuture<>();
+                executor.execute(() -> f.complete(LogContext.attributes()));
+                fromExecutor = f;
+                fromSupplier = CompletableFuture.supplyAsync(LogContext.wrapSupplier(LogContext::attributes), pool);
+            }
+            finally {
+                scope.close();
+            }
+            assertThat(fromExecutor.get(), is(ImmutableMap.of("request_id", "r1")));
+            assertThat(fromSupplier.get(), is(ImmutableMap.of("request_id", "r1")));
+            assertThat(LogContext.wrapCallable(LogContext::attributes).call(), is(ImmutableMap.of()));
+
+            // the context of the pooled thread is restored after tasks
+            assertThat(pool.submit(LogContext::attributes).get(), is(ImmutableMap.of()));
+        }
+        finally {
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        }
+    }
+}
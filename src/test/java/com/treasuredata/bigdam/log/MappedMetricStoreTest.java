@@ -0,0 +1,189 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class MappedMetricStoreTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Visited
+    {
+        final String name;
+        final Map<String, String> labels;
+        final int kind;
+        final long value;
+
+        Visited(String name, Map<String, String> labels, int kind, long value)
+        {
+            this.name = name;
+            this.labels = labels;
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+
+    private static List<Visited> read(MappedMetricStore.Reader reader)
+    {
+        List<Visited> visited = new ArrayList<>();
+        reader.read((name, labels, kind, value) -> visited.add(new Visited(name, labels, kind, value)));
+        return visited;
+    }
+
+    @Test
+    public void updateAndReadFromAnotherMapping()
+            throws IOException
+    {
+        Path path = folder.getRoot().toPath().resolve("metrics.bin");
+        try (MappedMetricStore store = MappedMetricStore.create(path, 16, 1024)) {
+            MappedMetricStore.MappedLongMetric requests = store.counter("requests", Labels.of("api", "get"));
+            MappedMetricStore.MappedLongMetric queued = store.gauge("queued", Labels.EMPTY);
+            MappedMetricStore.MappedDoubleMetric load = store.doubleGauge("load", Labels.of("cpu", 1));
+
+            requests.increment();
+            assertThat(requests.add(10L), is(11L));
+            queued.set(5L);
+            load.set(0.5);
+            assertThat(load.add(0.25), is(0.75));
+
+            // same name and labels: same cell
+            assertThat(store.counter("requests", Labels.of("api", "get")) == requests, is(true));
+
+            try (MappedMetricStore.Reader reader = new MappedMetricStore.Reader(path)) {
+                List<Visited> visited = read(reader);
+                assertThat(visited.size(), is(3));
+
+                assertThat(visited.get(0).name, is("requests"));
+                assertThat(visited.get(0).labels, is(ImmutableMap.of("api", "get")));
+                assertThat(visited.get(0).kind, is(MappedMetricStore.KIND_COUNTER));
+                assertThat(visited.get(0).value, is(11L));
+
+                assertThat(visited.get(1).name, is("queued"));
+                assertThat(visited.get(1).labels, is(ImmutableMap.of()));
+                assertThat(visited.get(1).kind, is(MappedMetricStore.KIND_GAUGE));
+                assertThat(visited.get(1).value, is(5L));
+
+                assertThat(visited.get(2).name, is("load"));
+                assertThat(visited.get(2).labels, is(ImmutableMap.of("cpu", "1")));
+                assertThat(visited.get(2).kind, is(MappedMetricStore.KIND_DOUBLE_GAUGE));
+                assertThat(Double.longBitsToDouble(visited.get(2).value), is(0.75));
+
+                // updates and metrics added later are visible to the open reader
+                requests.increment();
+                store.gauge("added", Labels.EMPTY).set(3L);
+                visited = read(reader);
+                assertThat(visited.size(), is(4));
+                assertThat(visited.get(0).value, is(12L));
+                assertThat(visited.get(3).name, is("added"));
+                assertThat(visited.get(3).value, is(3L));
+            }
+        }
+    }
+
+    @Test
+    public void concurrentIncrements()
+            throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("metrics.bin");
+        try (MappedMetricStore store = MappedMetricStore.create(path, 4, 256)) {
+            MappedMetricStore.MappedLongMetric counter = store.counter("count", Labels.EMPTY);
+            MappedMetricStore.MappedDoubleMetric sum = store.doubleGauge("sum", Labels.EMPTY);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                        sum.add(1.0);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertThat(counter.get(), is(40000L));
+            assertThat(sum.get(), is(40000.0));
+        }
+    }
+
+    @Test
+    public void keepValuesOnHeapWithoutMappedMemory()
+            throws Exception
+    {
+        Path path = folder.getRoot().toPath().resolve("metrics.bin");
+        try (MappedMetricStore store = MappedMetricStore.create(path, 4, 256, false)) {
+            assertThat(store.isDirect(), is(false));
+            MappedMetricStore.MappedLongMetric counter = store.counter("count", Labels.EMPTY);
+            MappedMetricStore.MappedDoubleMetric sum = store.doubleGauge("sum", Labels.EMPTY);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread t = new Thread(() -> {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.increment();
+                        sum.add(1.0);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            assertThat(counter.get(), is(40000L));
+            assertThat(sum.get(), is(40000.0));
+
+            // values are copied into the file
+            try (MappedMetricStore.Reader reader = new MappedMetricStore.Reader(path)) {
+                List<Visited> visited = read(reader);
+                assertThat(visited.size(), is(2));
+                assertThat(visited.get(0).value, is(40000L));
+                assertThat(Double.longBitsToDouble(visited.get(1).value), is(40000.0));
+            }
+        }
+    }
+
+    @Test
+    public void rejectMetricsOverCapacity()
+            throws IOException
+    {
+        Path path = folder.getRoot().toPath().resolve("metrics.bin");
+        try (MappedMetricStore store = MappedMetricStore.create(path, 1, 256)) {
+            store.counter("first", Labels.EMPTY);
+            try {
+                store.counter("second", Labels.EMPTY);
+                fail("store must be full");
+            }
+            catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rejectNonStoreFiles()
+            throws IOException
+    {
+        Path path = folder.newFile("empty.bin").toPath();
+        try {
+            new MappedMetricStore.Reader(path).close();
+            fail("empty file must be rejected");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+}
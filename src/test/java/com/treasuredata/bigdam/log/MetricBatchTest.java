@@ -0,0 +1,37 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class MetricBatchTest
+{
+    @Test
+    public void buildColumnarRecord()
+    {
+        MetricBatch batch = new MetricBatch();
+        assertThat(batch.isEmpty(), is(true));
+
+        batch.add("name1", 1, Double.NaN, ImmutableMap.of());
+        batch.add("name2", 2.5, 0.5, ImmutableMap.of("k", "v"));
+        assertThat(batch.size(), is(2));
+
+        Map<String, Object> record = batch.toRecord();
+        batch.clear();
+        assertThat(batch.isEmpty(), is(true));
+
+        // record is not modified by clear()
+        assertThat(record.get("names"), is(ImmutableList.of("name1", "name2")));
+        assertThat(record.get("values"), is(ImmutableList.of(1, 2.5)));
+        // only counters have rates
+        assertThat(record.get("rates"), is(Arrays.asList(null, 0.5)));
+        assertThat(record.get("labels"), is(ImmutableList.of(ImmutableMap.of(), ImmutableMap.of("k", "v"))));
+    }
+}
@@ -3,8 +3,13 @@ package com.treasuredata.bigdam.log;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.After;
 import org.junit.Test;
@@ -151,4 +156,505 @@ public class MetricMonitorTest
 
         monitor.stop();
     }
+
+    @Test
+    public void emitDeltasAndRatesOfCounters()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        AtomicLong bytes = new AtomicLong(1000L);
+        monitor.addCounterProducer(() -> ImmutableMap.of("bytes", bytes.get()));
+        monitor.addCounterProducer(() -> ImmutableList.of(new ComplexMetric("seconds", 1.5 * bytes.get(), "k", "v")));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        // first values are baselines
+        verify(logger, never()).sendEvent(any(String.class), any(Instant.class), any());
+
+        bytes.set(7000L);
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.bytes"), any(Instant.class), eq(ImmutableMap.of("v", 6000L, "rate", 100.0)));
+        verify(logger, times(1)).sendEvent(eq("metric.seconds"), any(Instant.class), eq(ImmutableMap.of("v", 9000.0, "rate", 150.0, "k", "v")));
+
+        // counter reset: the current value is the delta
+        bytes.set(600L);
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.bytes"), any(Instant.class), eq(ImmutableMap.of("v", 600L, "rate", 10.0)));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitCompactRecords()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.enableCompactMode("batch");
+        monitor.addMetricProducer(() -> ImmutableMap.of("name1", 100));
+        monitor.addMetricProducer(() -> ImmutableList.of(new ComplexMetric("name2", 2, "label", "tagomoris")));
+        monitor.addRawMetricProducer(() -> ImmutableMap.of("name3", 3L));
+        // rates of counters have their own column, not in labels
+        LongMetric processed = new LongMetric("processed", Labels.of("k", "v"));
+        monitor.addCounterMetric(processed);
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendColumns(eq("metric.batch"), any(Instant.class), eq(ImmutableMap.of(
+                "names", ImmutableList.of("name1", "name2"),
+                "values", ImmutableList.of(100, 2),
+                "rates", Arrays.asList(null, null),
+                "labels", ImmutableList.of(ImmutableMap.of(), ImmutableMap.of("label", "tagomoris")))));
+        verify(logger, times(1)).sendColumns(eq("raw.batch"), any(Instant.class), eq(ImmutableMap.of(
+                "names", ImmutableList.of("name3"),
+                "values", ImmutableList.of(3L),
+                "rates", Collections.singletonList(null),
+                "labels", ImmutableList.of(ImmutableMap.of()))));
+        verify(logger, times(2)).sendColumns(any(String.class), any(Instant.class), any());
+        verify(logger, never()).sendEvent(any(String.class), any(Instant.class), any());
+
+        // the first value of the counter is the baseline
+        processed.add(600L);
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendColumns(eq("metric.batch"), any(Instant.class), eq(ImmutableMap.of(
+                "names", ImmutableList.of("name1", "name2", "processed"),
+                "values", ImmutableList.of(100, 2, 600L),
+                "rates", Arrays.asList(null, null, 10.0),
+                "labels", ImmutableList.of(ImmutableMap.of(), ImmutableMap.of("label", "tagomoris"), ImmutableMap.of("k", "v")))));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitOnlyChangedMetricsWithHeartbeat()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.enableChangeOnlyMode(3);
+        AtomicLong changing = new AtomicLong(0L);
+        monitor.addMetricProducer(() -> ImmutableMap.of("constant", 10, "changing", changing.incrementAndGet()));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 100_000_000L;
+        for (int i = 0; i < 4; i++) {
+            now += 60_000_000_000L;
+            Clock.set(now);
+            sleep(500L);
+        }
+
+        // tick 1 (new series), tick 3 (heartbeat)
+        verify(logger, times(2)).sendEvent(eq("metric.constant"), any(Instant.class), eq(ImmutableMap.of("v", 10)));
+        verify(logger, times(4)).sendEvent(eq("metric.changing"), any(Instant.class), any());
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitConstantCounterDeltasWithHeartbeat()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.enableChangeOnlyMode(5);
+        AtomicLong constant = new AtomicLong(0L);
+        AtomicLong idle = new AtomicLong(0L);
+        monitor.addCounterProducer(() -> ImmutableMap.of("constant", constant.addAndGet(600L), "idle", idle.get()));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 100_000_000L;
+        for (int i = 0; i < 4; i++) {
+            now += 60_000_000_000L;
+            Clock.set(now);
+            sleep(500L);
+        }
+
+        // tick 1 is the baseline, and the same non-zero deltas are emitted in ticks 2-4
+        verify(logger, times(3)).sendEvent(eq("metric.constant"), any(Instant.class), eq(ImmutableMap.of("v", 600L, "rate", 10.0)));
+        // zero deltas are emitted only as a new series (tick 2)
+        verify(logger, times(1)).sendEvent(eq("metric.idle"), any(Instant.class), any());
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitPrimitiveMetrics()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        LongMetric queued = new LongMetric("queued", Labels.of("queue", "q1"));
+        DoubleMetric load = new DoubleMetric("load");
+        LongMetric processed = new LongMetric("processed");
+        monitor.addMetric(queued);
+        monitor.addRawMetric(load);
+        monitor.addCounterMetric(processed);
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        queued.set(3L);
+        load.set(0.5);
+        processed.add(100L);
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.queued"), any(Instant.class), eq(ImmutableMap.of("v", 3L, "queue", "q1")));
+        verify(logger, times(1)).sendEvent(eq("raw.load"), any(Instant.class), eq(ImmutableMap.of("v", 0.5)));
+        verify(logger, never()).sendEvent(eq("metric.processed"), any(Instant.class), any());
+
+        processed.add(600L);
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.processed"), any(Instant.class), eq(ImmutableMap.of("v", 600L, "rate", 10.0)));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void rejectLabelsNamedAsReservedFields()
+    {
+        MetricMonitor monitor = new MetricMonitor(mock(Log.class), "metric.", "raw.", "v", 60);
+        for (String key : ImmutableList.of("rate", "v")) {
+            try {
+                monitor.addCounterMetric(new LongMetric("processed", Labels.of(key, "x")));
+                fail();
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            monitor.addHistogram(new HistogramMetric("latency", Labels.of("v", "x")));
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+        // only records of counters have rates
+        monitor.addMetric(new LongMetric("queued", Labels.of("rate", "x")));
+        monitor.addHistogram(new HistogramMetric("latency", Labels.of("rate", "x")));
+    }
+
+    @Test
+    public void renameDynamicLabelsNamedAsReservedFields()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.addMetricProducer(() -> ImmutableList.of(new ComplexMetric("name1", 1, ImmutableMap.of("v", "x", "rate", "y", "k", "z"))));
+        monitor.addCounterProducer(() -> ImmutableList.of(new ComplexMetric("name2", 100L, "rate", "y")));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.name1"), any(Instant.class), eq(ImmutableMap.of("v", 1, "label_v", "x", "rate", "y", "k", "z")));
+
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.name2"), any(Instant.class), eq(ImmutableMap.of("v", 0L, "rate", 0.0, "label_rate", "y")));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void writeCounterDeltasToSinks()
+    {
+        Log logger = mock(Log.class);
+        MetricSink sink = mock(MetricSink.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.addSink(sink);
+        LongMetric processed = new LongMetric("processed");
+        monitor.addCounterMetric(processed);
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        processed.add(100L);
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        processed.add(600L);
+        now = now + 60_000_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(sink, times(1)).writeCounter("metric.", "processed", 600L, ImmutableMap.of());
+        verify(sink, never()).write(eq("metric."), eq("processed"), anyLong(), any());
+
+        monitor.stop();
+    }
+
+    @Test
+    public void writeMetricsToSinks()
+    {
+        Log logger = mock(Log.class);
+        MetricSink sink = mock(MetricSink.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.addSink(sink);
+        monitor.addMetricProducer(() -> ImmutableMap.of("name1", 100));
+        monitor.addRawMetric(new LongMetric("queued", Labels.of("queue", "q1")));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(sink, times(1)).begin(any(Instant.class));
+        verify(sink, times(1)).write("metric.", "name1", (Object) 100, ImmutableMap.of());
+        verify(sink, times(1)).write("raw.", "queued", 0L, ImmutableMap.of("queue", "q1"));
+        verify(sink, times(1)).flush();
+        verify(logger, times(1)).sendEvent(eq("metric.name1"), any(Instant.class), eq(ImmutableMap.of("v", 100)));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void foldLabelSetsOverCardinalityLimit()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.enableCardinalityLimit(2, 10);
+        monitor.addMetricProducer(() -> ImmutableList.of(
+                new ComplexMetric("requests", 1, "id", "r1"),
+                new ComplexMetric("requests", 2, "id", "r2"),
+                new ComplexMetric("requests", 3, "id", "r3"),
+                new ComplexMetric("requests", 4, "id", "r4")
+        ));
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        long now = start + 60_100_000_000L;
+        Clock.set(now);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.requests"), any(Instant.class), eq(ImmutableMap.of("v", 1, "id", "r1")));
+        verify(logger, times(1)).sendEvent(eq("metric.requests"), any(Instant.class), eq(ImmutableMap.of("v", 2, "id", "r2")));
+        verify(logger, times(1)).sendEvent(eq("metric.requests"), any(Instant.class), eq(ImmutableMap.of("v", 7L, "__overflow__", "true")));
+        verify(logger, times(1)).sendEvent(eq("metric.cardinality_overflow"), any(Instant.class), eq(ImmutableMap.of("v", 2L, "metric", "metric.requests")));
+        verify(logger, times(4)).sendEvent(any(String.class), any(Instant.class), any());
+        verify(logger, times(1)).warn(any(String.class));
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitRollupsAndHistograms()
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        monitor.addRollup("rollup.2m.", 2);
+        LongMetric queued = new LongMetric("queued");
+        monitor.addMetric(queued);
+        HistogramMetric latency = new HistogramMetric("latency");
+        monitor.addHistogram(latency);
+
+        long start = System.nanoTime();
+
+        Clock.set(start);
+        monitor.setSleepInterval(100L);
+
+        monitor.start();
+
+        sleep(500L);
+
+        queued.set(10L);
+        latency.record(100L);
+        Clock.set(start + 60_100_000_000L);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("metric.queued"), any(Instant.class), eq(ImmutableMap.of("v", 10L)));
+        verify(logger, times(1)).sendEvent(eq("metric.latency.count"), any(Instant.class), eq(ImmutableMap.of("v", 1L)));
+        verify(logger, times(1)).sendEvent(eq("metric.latency.p99"), any(Instant.class), eq(ImmutableMap.of("v", 100L)));
+        verify(logger, never()).sendEvent(eq("rollup.2m.queued"), any(Instant.class), any());
+
+        queued.set(4L);
+        latency.record(1000L);
+        Clock.set(start + 120_100_000_000L);
+        sleep(500L);
+
+        verify(logger, times(1)).sendEvent(eq("rollup.2m.queued"), any(Instant.class),
+                eq(ImmutableMap.of("sum", 14.0, "min", 4.0, "max", 10.0, "last", 4.0, "count", 2L)));
+        verify(logger, times(1)).sendEvent(eq("rollup.2m.latency"), any(Instant.class), eq(ImmutableMap.<String, Object>builder()
+                .put("count", 2L).put("sum", 1100L).put("max", 1000L).put("p50", 127L).put("p90", 1000L).put("p99", 1000L).build()));
+        // derived series of histograms are not rolled up
+        verify(logger, never()).sendEvent(eq("rollup.2m.latency.p99"), any(Instant.class), any());
+
+        monitor.stop();
+    }
+
+    @Test
+    public void emitMetricsInMetricStore()
+            throws Exception
+    {
+        Log logger = mock(Log.class);
+        MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+        Path path = Files.createTempFile("metric-store", ".bin");
+        try (MappedMetricStore store = MappedMetricStore.create(path, 8, 256)) {
+            MappedMetricStore.MappedLongMetric requests = store.counter("requests", Labels.EMPTY);
+            store.gauge("queued", Labels.of("queue", "q1")).set(3L);
+            monitor.addMetricStore(store);
+
+            long start = System.nanoTime();
+
+            Clock.set(start);
+            monitor.setSleepInterval(100L);
+
+            monitor.start();
+
+            sleep(500L);
+
+            requests.add(100L);
+            Clock.set(start + 60_100_000_000L);
+            sleep(500L);
+
+            requests.add(60L);
+            Clock.set(start + 120_100_000_000L);
+            sleep(500L);
+
+            monitor.stop();
+
+            verify(logger, times(2)).sendEvent(eq("metric.queued"), any(Instant.class), eq(ImmutableMap.of("v", 3L, "queue", "q1")));
+            // the first tick is the baseline of the counter
+            verify(logger, times(1)).sendEvent(eq("metric.requests"), any(Instant.class), eq(ImmutableMap.of("v", 60L, "rate", 1.0)));
+            verify(logger, times(3)).sendEvent(any(String.class), any(Instant.class), any());
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    public void continueCountersFromCheckpoint()
+            throws Exception
+    {
+        Path path = Files.createTempFile("counters", ".checkpoint");
+        Files.delete(path);
+        try {
+            AtomicLong bytes = new AtomicLong(1000L);
+            long start = System.nanoTime();
+            Clock.set(start);
+
+            Log logger = mock(Log.class);
+            MetricMonitor monitor = new MetricMonitor(logger, "metric.", "raw.", "v", 60);
+            monitor.enableCounterCheckpoint(path);
+            monitor.addCounterProducer(() -> ImmutableMap.of("bytes", bytes.get()));
+            monitor.setSleepInterval(100L);
+            monitor.start();
+            sleep(500L);
+            Clock.set(start + 60_100_000_000L);
+            sleep(500L);
+            monitor.stop();
+
+            // baseline only, but saved
+            verify(logger, never()).sendEvent(any(String.class), any(Instant.class), any());
+            assertThat(Files.exists(path), is(true));
+
+            // restarted process: the source counter also restarted from zero
+            bytes.set(300L);
+            Clock.set(start);
+            Log restartedLogger = mock(Log.class);
+            MetricMonitor restarted = new MetricMonitor(restartedLogger, "metric.", "raw.", "v", 60);
+            restarted.enableCounterCheckpoint(path);
+            restarted.addCounterProducer(() -> ImmutableMap.of("bytes", bytes.get()));
+            restarted.setSleepInterval(100L);
+            restarted.start();
+            sleep(500L);
+            Clock.set(start + 60_100_000_000L);
+            sleep(500L);
+            restarted.stop();
+
+            // the first tick after restart emits the delta from the checkpointed baseline
+            verify(restartedLogger, times(1)).sendEvent(eq("metric.bytes"), any(Instant.class), argThat(record -> Long.valueOf(300L).equals(record.get("v"))));
+            verify(restartedLogger, never()).warn(any(String.class));
+        }
+        finally {
+            Files.deleteIfExists(path);
+        }
+    }
 }
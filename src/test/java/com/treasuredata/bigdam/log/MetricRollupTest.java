@@ -0,0 +1,98 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class MetricRollupTest
+{
+    @Test
+    public void emitValuesOfWindow()
+    {
+        Log logger = mock(Log.class);
+        Instant now = Instant.now();
+        Map<String, Object> labels = ImmutableMap.of("queue", "q1");
+        long labelsHash = SeriesTable.hashLabels(labels);
+
+        MetricRollup rollup = new MetricRollup("rollup.1m.", 3);
+        assertThat(rollup.isDue(2), is(false));
+        assertThat(rollup.isDue(3), is(true));
+
+        rollup.add("queued", labels, labelsHash, 5.0, 1);
+        rollup.add("queued", labels, labelsHash, 2.0, 2);
+        rollup.add("queued", labels, labelsHash, 4.0, 3);
+        rollup.emit(logger, now, 3);
+        verify(logger, times(1)).sendEvent("rollup.1m.queued", now,
+                ImmutableMap.<String, Object>builder()
+                        .put("sum", 11.0).put("min", 2.0).put("max", 5.0).put("last", 4.0).put("count", 3L).put("queue", "q1").build());
+
+        // ring slots of the previous window are not counted
+        rollup.add("queued", labels, labelsHash, 1.0, 5);
+        rollup.emit(logger, now, 6);
+        verify(logger, times(1)).sendEvent("rollup.1m.queued", now,
+                ImmutableMap.<String, Object>builder()
+                        .put("sum", 1.0).put("min", 1.0).put("max", 1.0).put("last", 1.0).put("count", 1L).put("queue", "q1").build());
+
+        // not sampled in the window: forgotten
+        rollup.emit(logger, now, 9);
+        verify(logger, times(2)).sendEvent(any(String.class), any(Instant.class), any());
+    }
+
+    @Test
+    public void emitMergedHistograms()
+    {
+        Log logger = mock(Log.class);
+        Instant now = Instant.now();
+        MetricRollup rollup = new MetricRollup("rollup.1m.", 2);
+
+        HistogramMetric histogram = new HistogramMetric("latency");
+        HistogramMetric.Snapshot snapshot = new HistogramMetric.Snapshot();
+        histogram.record(10L);
+        histogram.drainTo(snapshot);
+        rollup.addHistogram("latency", ImmutableMap.of(), 0L, snapshot, 1);
+
+        snapshot.clear();
+        histogram.record(1000L);
+        histogram.drainTo(snapshot);
+        rollup.addHistogram("latency", ImmutableMap.of(), 0L, snapshot, 2);
+
+        rollup.emit(logger, now, 2);
+        verify(logger, times(1)).sendEvent("rollup.1m.latency", now, ImmutableMap.<String, Object>builder()
+                .put("count", 2L).put("sum", 1010L).put("max", 1000L).put("p50", 15L).put("p90", 1000L).put("p99", 1000L).build());
+
+        // merged histogram is cleared after emitted
+        rollup.addHistogram("latency", ImmutableMap.of(), 0L, new HistogramMetric.Snapshot(), 3);
+        rollup.emit(logger, now, 4);
+        verify(logger, times(1)).sendEvent("rollup.1m.latency", now, ImmutableMap.<String, Object>builder()
+                .put("count", 0L).put("sum", 0L).put("max", 0L).put("p50", 0L).put("p90", 0L).put("p99", 0L).build());
+    }
+
+    @Test
+    public void renameLabelsNamedAsFields()
+    {
+        Log logger = mock(Log.class);
+        Instant now = Instant.now();
+        MetricRollup rollup = new MetricRollup("rollup.1m.", 1);
+        Map<String, Object> labels = ImmutableMap.of("min", "x", "p50", "y");
+        long labelsHash = SeriesTable.hashLabels(labels);
+
+        rollup.add("queued", labels, labelsHash, 5.0, 1);
+        rollup.addHistogram("latency", labels, labelsHash, new HistogramMetric.Snapshot(), 1);
+        rollup.emit(logger, now, 1);
+
+        // "p50" is a field only of histograms
+        verify(logger, times(1)).sendEvent("rollup.1m.queued", now, ImmutableMap.<String, Object>builder()
+                .put("sum", 5.0).put("min", 5.0).put("max", 5.0).put("last", 5.0).put("count", 1L)
+                .put("label_min", "x").put("p50", "y").build());
+        verify(logger, times(1)).sendEvent("rollup.1m.latency", now, ImmutableMap.<String, Object>builder()
+                .put("count", 0L).put("sum", 0L).put("max", 0L).put("p50", 0L).put("p90", 0L).put("p99", 0L)
+                .put("min", "x").put("label_p50", "y").build());
+    }
+}
@@ -0,0 +1,76 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.*;
+
+public class PrimitiveMetricTest
+{
+    @Test
+    public void updateLongMetric()
+    {
+        LongMetric m = new LongMetric("requests", Labels.of("method", "GET"));
+        assertThat(m.getName(), is("requests"));
+        assertThat(m.getLabels().asMap(), is(ImmutableMap.of("method", "GET")));
+        assertThat(m.isDouble(), is(false));
+        assertThat(m.get(), is(0L));
+        assertThat(m.increment(), is(1L));
+        assertThat(m.add(10L), is(11L));
+        m.set(5L);
+        assertThat(m.get(), is(5L));
+        assertThat(m.bits(), is(5L));
+    }
+
+    @Test
+    public void updateDoubleMetric()
+    {
+        DoubleMetric m = new DoubleMetric("load");
+        assertThat(m.getLabels(), is(sameInstance(Labels.EMPTY)));
+        assertThat(m.isDouble(), is(true));
+        assertThat(m.get(), is(0.0));
+        assertThat(m.add(1.5), is(1.5));
+        m.set(0.25);
+        assertThat(m.get(), is(0.25));
+        assertThat(Double.longBitsToDouble(m.bits()), is(0.25));
+    }
+
+    @Test
+    public void labelsAreInterned()
+    {
+        Labels l1 = Labels.of("k1", "v1", "k2", 2);
+        Labels l2 = Labels.of(ImmutableMap.of("k1", "v1", "k2", 2));
+        assertThat(l1, is(sameInstance(l2)));
+        assertThat(l1.hash(), is(SeriesTable.hashLabels(ImmutableMap.of("k2", 2, "k1", "v1"))));
+    }
+
+    @Test
+    public void releaseUnusedLabels()
+            throws InterruptedException
+    {
+        WeakReference<Labels> ref = new WeakReference<>(Labels.of("request", "r-" + System.nanoTime()));
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10L);
+        }
+        assertThat(ref.get(), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectInvalidLabelValues()
+    {
+        Labels.of("k", new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmptyMetricName()
+    {
+        new LongMetric("");
+    }
+}
@@ -0,0 +1,178 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CharStreams;
+
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class PrometheusExporterTest
+{
+    private MetricMonitor createMonitor()
+    {
+        MetricMonitor monitor = new MetricMonitor(mock(Log.class), "metric.", "raw.", "v", 60);
+        monitor.addMetricProducer(() -> ImmutableMap.of("name1", 100, "name2", 0.5, "text", "not exported"));
+        monitor.addMetricProducer(() -> ImmutableList.of(
+                new ComplexMetric("name3", 3, ImmutableMap.of("label", "tago\"moris", "k-2", "v2"))
+        ));
+        monitor.addRawMetric(new LongMetric("queued", Labels.of("queue", "q1")));
+        monitor.addCounterProducer(() -> ImmutableMap.of("1bytes", 123456789012L));
+        return monitor;
+    }
+
+    @Test
+    public void renderTextFormat()
+            throws Exception
+    {
+        PrometheusExporter exporter = new PrometheusExporter(createMonitor(), 0);
+        StringWriter writer = new StringWriter();
+        exporter.render(writer);
+        String text = writer.toString();
+
+        assertThat(text, containsString("metric_name1 100\n"));
+        assertThat(text, containsString("metric_name2 0.5\n"));
+        assertThat(text, containsString("metric_name3{label=\"tago\\\"moris\",k_2=\"v2\"} 3\n"));
+        assertThat(text, containsString("raw_queued{queue=\"q1\"} 0\n"));
+        assertThat(text, containsString("metric_1bytes 123456789012\n"));
+        assertThat(text, not(containsString("text")));
+    }
+
+    @Test
+    public void writeTypesOfMetrics()
+            throws Exception
+    {
+        MetricMonitor monitor = createMonitor();
+        LongMetric requests = new LongMetric("requests", Labels.of("method", "GET"));
+        requests.add(5L);
+        monitor.addCounterMetric(requests);
+        PrometheusExporter exporter = new PrometheusExporter(monitor, 0);
+        StringWriter writer = new StringWriter();
+        exporter.render(writer);
+        String text = writer.toString();
+
+        assertThat(text, containsString("# TYPE metric_name1 gauge\nmetric_name1 100\n"));
+        assertThat(text, containsString("# TYPE raw_queued gauge\n"));
+        assertThat(text, containsString("# TYPE metric_1bytes counter\nmetric_1bytes 123456789012\n"));
+        assertThat(text, containsString("# TYPE metric_requests counter\nmetric_requests{method=\"GET\"} 5\n"));
+    }
+
+    @Test
+    public void writeHistograms()
+            throws Exception
+    {
+        MetricMonitor monitor = new MetricMonitor(mock(Log.class), "metric.", "raw.", "v", 60);
+        HistogramMetric latency = new HistogramMetric("latency", Labels.of("api", "get"));
+        monitor.addHistogram(latency);
+        latency.record(0L);
+        latency.record(1L);
+        latency.record(3L);
+        latency.record(100L);
+
+        PrometheusExporter exporter = new PrometheusExporter(monitor, 0);
+        StringWriter writer = new StringWriter();
+        exporter.render(writer);
+        String text = writer.toString();
+
+        assertThat(text, containsString("# TYPE metric_latency histogram\n"
+                + "metric_latency_bucket{api=\"get\",le=\"0\"} 1\n"
+                + "metric_latency_bucket{api=\"get\",le=\"1\"} 2\n"
+                + "metric_latency_bucket{api=\"get\",le=\"3\"} 3\n"
+                + "metric_latency_bucket{api=\"get\",le=\"7\"} 3\n"));
+        assertThat(text, containsString("metric_latency_bucket{api=\"get\",le=\"127\"} 4\n"
+                + "metric_latency_bucket{api=\"get\",le=\"+Inf\"} 4\n"
+                + "metric_latency_sum{api=\"get\"} 104\n"
+                + "metric_latency_count{api=\"get\"} 4\n"));
+        assertThat(text, not(containsString("le=\"255\"")));
+
+        // scrapes don't drain histograms for ticks, and vice versa
+        HistogramMetric.Snapshot snapshot = new HistogramMetric.Snapshot();
+        latency.drainTo(snapshot);
+        assertThat(snapshot.count, is(4L));
+        writer = new StringWriter();
+        exporter.render(writer);
+        assertThat(writer.toString(), containsString("metric_latency_count{api=\"get\"} 4\n"));
+    }
+
+    @Test
+    public void groupSamplesByNames()
+            throws Exception
+    {
+        MetricMonitor monitor = new MetricMonitor(mock(Log.class), "metric.", "raw.", "v", 60);
+        monitor.addMetricProducer(() -> ImmutableList.of(
+                new ComplexMetric("queued", 1, "queue", "q1"),
+                new ComplexMetric("load", 2, ImmutableMap.of()),
+                new ComplexMetric("queued", 3, "queue", "q2")));
+        PrometheusExporter exporter = new PrometheusExporter(monitor, 0);
+        StringWriter writer = new StringWriter();
+        exporter.render(writer);
+
+        assertThat(writer.toString(), is("# TYPE metric_queued gauge\n"
+                + "metric_queued{queue=\"q1\"} 1\n"
+                + "metric_queued{queue=\"q2\"} 3\n"
+                + "# TYPE metric_load gauge\n"
+                + "metric_load 2\n"));
+    }
+
+    @Test
+    public void writeOnlySamplesOfEachScrape()
+            throws Exception
+    {
+        MetricMonitor monitor = new MetricMonitor(mock(Log.class), "metric.", "raw.", "v", 60);
+        AtomicInteger scrapes = new AtomicInteger(0);
+        monitor.addMetricProducer(() -> scrapes.incrementAndGet() == 1
+                ? ImmutableList.of(new ComplexMetric("queued", 1, "queue", "q1"), new ComplexMetric("load", 2, ImmutableMap.of()))
+                : ImmutableList.of(new ComplexMetric("load", 0.5, ImmutableMap.of()), new ComplexMetric("queued", 3, "queue", "q2")));
+        PrometheusExporter exporter = new PrometheusExporter(monitor, 0);
+        exporter.render(new StringWriter());
+        StringWriter writer = new StringWriter();
+        exporter.render(writer);
+
+        // families are known from the previous scrape, but ordered and filled by this one
+        assertThat(writer.toString(), is("# TYPE metric_load gauge\n"
+                + "metric_load 0.5\n"
+                + "# TYPE metric_queued gauge\n"
+                + "metric_queued{queue=\"q2\"} 3\n"));
+    }
+
+    @Test
+    public void sanitizeNames()
+    {
+        PrometheusExporter exporter = new PrometheusExporter(createMonitor(), 0);
+        assertThat(exporter.metricName("metric.", "jvm.gc.count"), is("metric_jvm_gc_count"));
+        assertThat(exporter.metricName("", "1st:name"), is("_1st:name"));
+        assertThat(exporter.labelName("a:b"), is("a_b"));
+    }
+
+    @Test
+    public void scrapeViaHttp()
+            throws Exception
+    {
+        PrometheusExporter exporter = new PrometheusExporter(createMonitor(), new InetSocketAddress("127.0.0.1", 0), "/metrics");
+        exporter.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + exporter.getPort() + "/metrics");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            assertThat(conn.getResponseCode(), is(200));
+            assertThat(conn.getContentType(), containsString("text/plain"));
+            String body = CharStreams.toString(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8));
+            assertThat(body, containsString("metric_name1 100\n"));
+        }
+        finally {
+            exporter.stop();
+        }
+    }
+}
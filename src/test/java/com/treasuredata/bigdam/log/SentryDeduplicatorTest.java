@@ -0,0 +1,193 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.sentry.SentryClient;
+import io.sentry.event.Event;
+import io.sentry.event.EventBuilder;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.mockito.ArgumentCaptor;
+
+public class SentryDeduplicatorTest
+{
+    @After
+    public void teardown()
+    {
+        Clock.clear();
+    }
+
+    @Test
+    public void aggregateSuppressedExceptions()
+    {
+        SentryClient sentry = mock(SentryClient.class);
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Clock.set(start);
+
+        try (SentryDeduplicator deduplicator = new SentryDeduplicator(sentry, 60000L, 16)) {
+            RuntimeException e = new RuntimeException("failure");
+            long fingerprint = ThrowableFingerprint.of(e);
+            assertTrue(deduplicator.admit(fingerprint, "Logger", e));
+            deduplicator.send(fingerprint, new EventBuilder().withMessage("failure"));
+            assertFalse(deduplicator.admit(fingerprint, "Logger", e));
+            assertFalse(deduplicator.admit(fingerprint, "Logger", e));
+            assertTrue(deduplicator.admit(fingerprint + 1, "Logger", e));
+
+            Clock.set(start + TimeUnit.SECONDS.toNanos(59));
+            assertFalse(deduplicator.admit(fingerprint, "Logger", e));
+            deduplicator.flushExpired(Clock.now());
+            verify(sentry, timeout(2000).times(1)).sendEvent(any(EventBuilder.class));
+
+            Clock.set(start + TimeUnit.SECONDS.toNanos(60));
+            deduplicator.flushExpired(Clock.now());
+
+            ArgumentCaptor<EventBuilder> builders = ArgumentCaptor.forClass(EventBuilder.class);
+            verify(sentry, timeout(2000).times(2)).sendEvent(builders.capture());
+            List<EventBuilder> sent = builders.getAllValues();
+
+            Event first = sent.get(0).build();
+            assertThat(first.getMessage(), is("failure"));
+            assertThat(first.getFingerprint().get(0), is(ThrowableFingerprint.toHex(fingerprint)));
+            assertThat(first.getExtra().get(SentryDeduplicator.FINGERPRINT_EXTRA), is(ThrowableFingerprint.toHex(fingerprint)));
+
+            Event aggregate = sent.get(1).build();
+            assertThat(aggregate.getMessage(), is("java.lang.RuntimeException: failure (3 more occurrences in 60 seconds)"));
+            assertThat(aggregate.getLogger(), is("Logger"));
+            assertThat(aggregate.getFingerprint().get(0), is(ThrowableFingerprint.toHex(fingerprint)));
+            assertThat(aggregate.getExtra().get(SentryDeduplicator.SUPPRESSED_EXTRA), is(3L));
+            assertThat(aggregate.getExtra().get(SentryDeduplicator.WINDOW_SECONDS_EXTRA), is(60L));
+
+            // a new window starts after the expiration
+            assertTrue(deduplicator.admit(fingerprint, "Logger", e));
+        }
+    }
+
+    @Test
+    public void sendAggregatesOnClose()
+    {
+        SentryClient sentry = mock(SentryClient.class);
+        Clock.set(TimeUnit.SECONDS.toNanos(100));
+
+        SentryDeduplicator deduplicator = new SentryDeduplicator(sentry, 60000L, 16);
+        RuntimeException e = new RuntimeException("failure");
+        long fingerprint = ThrowableFingerprint.of(e);
+        assertTrue(deduplicator.admit(fingerprint, "Logger", e));
+        assertFalse(deduplicator.admit(fingerprint, "Logger", e));
+        deduplicator.close();
+
+        ArgumentCaptor<EventBuilder> builder = ArgumentCaptor.forClass(EventBuilder.class);
+        verify(sentry, times(1)).sendEvent(builder.capture());
+        assertThat(builder.getValue().build().getMessage(), startsWith("java.lang.RuntimeException: failure (1 more occurrences"));
+    }
+
+    @Test
+    public void scrubAggregateMessages()
+    {
+        SentryClient sentry = mock(SentryClient.class);
+        Clock.set(TimeUnit.SECONDS.toNanos(100));
+
+        SentryDeduplicator deduplicator = new SentryDeduplicator(sentry, 60000L, 16, new SecretScrubber()::scrub);
+        RuntimeException e = new RuntimeException("login failed: password=hunter2");
+        long fingerprint = ThrowableFingerprint.of(e);
+        assertTrue(deduplicator.admit(fingerprint, "Logger", e));
+        assertFalse(deduplicator.admit(fingerprint, "Logger", e));
+        deduplicator.close();
+
+        ArgumentCaptor<EventBuilder> builder = ArgumentCaptor.forClass(EventBuilder.class);
+        verify(sentry, times(1)).sendEvent(builder.capture());
+        assertThat(builder.getValue().build().getMessage(), startsWith("java.lang.RuntimeException: login failed: password=******** (1 more occurrences"));
+    }
+
+    @Test
+    public void dropEventsIfQueueIsFull()
+            throws Exception
+    {
+        SentryClient sentry = mock(SentryClient.class);
+        Object lock = new Object();
+        doAnswer(invocation -> {
+            synchronized (lock) {
+                return null;
+            }
+        }).when(sentry).sendEvent(any(EventBuilder.class));
+
+        try (SentryDeduplicator deduplicator = new SentryDeduplicator(sentry, 60000L, 1)) {
+            synchronized (lock) {
+                deduplicator.send(1L, new EventBuilder().withMessage("m1"));
+                verify(sentry, timeout(2000).times(1)).sendEvent(any(EventBuilder.class)); // blocked in the sender thread
+                deduplicator.send(2L, new EventBuilder().withMessage("m2"));
+                deduplicator.send(3L, new EventBuilder().withMessage("m3"));
+                assertThat(deduplicator.getDropped(), is(1L));
+            }
+        }
+        verify(sentry, times(2)).sendEvent(any(EventBuilder.class));
+    }
+
+    @Test
+    public void rejectOccurrencesInClosedWindows()
+    {
+        SentryDeduplicator.Window window = new SentryDeduplicator.Window(0L, "Logger", "java.lang.RuntimeException", "failure");
+        assertTrue(window.suppress());
+        assertTrue(window.suppress());
+        assertThat(window.close(), is(2L));
+        // occurrences counted after the window is drained must start the next window
+        assertFalse(window.suppress());
+        assertThat(window.close() < 0, is(true));
+    }
+
+    @Test
+    public void countAllOccurrencesWhileFlushing()
+            throws Exception
+    {
+        SentryClient sentry = mock(SentryClient.class);
+        AtomicLong aggregated = new AtomicLong(0L);
+        doAnswer(invocation -> {
+            Object suppressed = invocation.<EventBuilder>getArgument(0).build().getExtra().get(SentryDeduplicator.SUPPRESSED_EXTRA);
+            aggregated.addAndGet((Long) suppressed);
+            return null;
+        }).when(sentry).sendEvent(any(EventBuilder.class));
+
+        int threads = 4;
+        int occurrences = 5000;
+        AtomicLong admitted = new AtomicLong(0L);
+        RuntimeException e = new RuntimeException("failure");
+        long fingerprint = ThrowableFingerprint.of(e);
+        // windows of 1ms end while other threads count occurrences, and these are flushed by the sender thread too
+        SentryDeduplicator deduplicator = new SentryDeduplicator(sentry, 1L, 100000);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < occurrences; j++) {
+                    if (deduplicator.admit(fingerprint, "Logger", e)) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        futures.add(executor.submit(() -> {
+            for (int j = 0; j < occurrences; j++) {
+                deduplicator.flushExpired(Clock.now());
+            }
+        }));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        deduplicator.close();
+
+        assertThat(deduplicator.getDropped(), is(0L));
+        assertThat(admitted.get() + aggregated.get(), is((long) threads * occurrences));
+    }
+}
@@ -0,0 +1,101 @@
+package com.treasuredata.bigdam.log;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class SentrySamplerTest
+{
+    @After
+    public void teardown()
+    {
+        Clock.clear();
+    }
+
+    @Test
+    public void sampleFrequentFingerprints()
+    {
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Clock.set(start);
+        double[] random = {0.0};
+        SentrySampler sampler = new SentrySampler(1000L, 10L, 16, () -> random[0]);
+
+        // all kept in the first interval
+        for (int i = 0; i < 100; i++) {
+            assertThat(sampler.sample(1L), is(1.0));
+        }
+        assertThat(sampler.sample(2L), is(1.0));
+
+        Clock.set(start + TimeUnit.SECONDS.toNanos(1));
+        assertThat(sampler.sample(1L), is(closeTo(0.1, 0.0001)));
+        assertThat(sampler.sample(2L), is(1.0)); // rare one
+
+        random[0] = 0.5;
+        assertThat(sampler.sample(1L), is(0.0));
+        assertThat(sampler.sample(2L), is(1.0));
+
+        // 2 in the last interval, and nothing in the next one
+        Clock.set(start + TimeUnit.SECONDS.toNanos(3));
+        assertThat(sampler.sample(1L), is(1.0));
+    }
+
+    @Test
+    public void normalizeCountsByElapsedTime()
+    {
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Clock.set(start);
+        SentrySampler sampler = new SentrySampler(1000L, 10L, 16, () -> 0.0);
+        for (int i = 0; i < 40; i++) {
+            sampler.sample(1L);
+        }
+        Clock.set(start + TimeUnit.SECONDS.toNanos(2));
+        assertThat(sampler.sample(1L), is(closeTo(0.5, 0.0001)));
+    }
+
+    @Test
+    public void shareStateOverMaxFingerprints()
+    {
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Clock.set(start);
+        SentrySampler sampler = new SentrySampler(1000L, 1L, 2, () -> 0.5);
+        sampler.sample(1L);
+        sampler.sample(2L);
+        sampler.sample(3L);
+        sampler.sample(4L);
+        assertThat(sampler.size(), is(2));
+
+        Clock.set(start + TimeUnit.SECONDS.toNanos(1));
+        assertThat(sampler.sample(1L), is(1.0));
+        assertThat(sampler.sample(5L), is(0.0)); // 2 in the overflow state
+    }
+
+    @Test
+    public void evictIdleFingerprints()
+    {
+        long start = TimeUnit.SECONDS.toNanos(100);
+        Clock.set(start);
+        SentrySampler sampler = new SentrySampler(1000L, 1L, 2, () -> 0.5);
+        sampler.sample(1L);
+        sampler.sample(2L);
+        for (int i = 0; i < 10; i++) {
+            sampler.sample(3L); // into the overflow state
+        }
+        assertThat(sampler.size(), is(2));
+
+        // 1 is active in the last interval, and 2 is idle
+        Clock.set(start + TimeUnit.SECONDS.toNanos(1));
+        sampler.sample(1L);
+        Clock.set(start + TimeUnit.SECONDS.toNanos(2));
+        // a new fingerprint after the table filled up is kept at 100%, not sampled with the overflow state
+        assertThat(sampler.sample(4L), is(1.0));
+        assertThat(sampler.size(), is(2));
+        // into the overflow state again, as 1 and 4 are active
+        assertThat(sampler.sample(5L), is(0.0));
+        assertThat(sampler.size(), is(2));
+    }
+}
@@ -0,0 +1,86 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+public class SeriesTableTest
+{
+    @Test
+    public void insertAndFind()
+    {
+        SeriesTable table = new SeriesTable();
+        int slot = table.insert(100L);
+        assertThat(slot < 0, is(true));
+        slot = -slot - 1;
+        table.value(slot, 5L);
+        table.tick(slot, 1);
+
+        assertThat(table.insert(100L), is(slot));
+        assertThat(table.find(100L), is(slot));
+        assertThat(table.value(slot), is(5L));
+        assertThat(table.find(200L), is(-1));
+        assertThat(table.size(), is(1));
+    }
+
+    @Test
+    public void growKeepsValues()
+    {
+        SeriesTable table = new SeriesTable(4);
+        for (long k = 1; k <= 1000; k++) {
+            int slot = -table.insert(k) - 1;
+            table.value(slot, k * 10);
+        }
+        assertThat(table.size(), is(1000));
+        for (long k = 1; k <= 1000; k++) {
+            assertThat(table.value(table.find(k)), is(k * 10));
+        }
+    }
+
+    @Test
+    public void removeAndExpire()
+    {
+        SeriesTable table = new SeriesTable(4);
+        for (long k = 1; k <= 100; k++) {
+            int slot = -table.insert(k) - 1;
+            table.value(slot, k);
+            table.tick(slot, (int) (k % 2));
+        }
+        assertThat(table.remove(2L), is(true));
+        assertThat(table.remove(2L), is(false));
+        assertThat(table.size(), is(99));
+
+        // removes all entries with tick 0 (even keys)
+        assertThat(table.expire(1), is(49));
+        assertThat(table.size(), is(50));
+        for (long k = 1; k <= 100; k++) {
+            if (k % 2 == 0) {
+                assertThat(table.find(k), is(-1));
+            }
+            else {
+                assertThat(table.value(table.find(k)), is(k));
+            }
+        }
+    }
+
+    @Test
+    public void hashLabelsIsOrderIndependent()
+    {
+        Map<String, Object> labels1 = new LinkedHashMap<>();
+        labels1.put("k1", "v1");
+        labels1.put("k2", 2);
+        Map<String, Object> labels2 = ImmutableMap.of("k2", 2, "k1", "v1");
+        assertThat(SeriesTable.hashLabels(labels1), is(SeriesTable.hashLabels(labels2)));
+        assertThat(SeriesTable.hashLabels(labels1), is(not(SeriesTable.hashLabels(ImmutableMap.of("k1", "v1", "k2", 3)))));
+
+        long h = SeriesTable.hashLabels(labels1);
+        assertThat(SeriesTable.hashSeries("metric.", "name", h), is(not(SeriesTable.hashSeries("raw.", "name", h))));
+    }
+}
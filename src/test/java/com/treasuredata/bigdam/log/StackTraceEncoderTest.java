@@ -0,0 +1,106 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.*;
+
+public class StackTraceEncoderTest
+{
+    private static StackTraceElement frame(final String className, final String method, final int line)
+    {
+        return new StackTraceElement(className, method, className.substring(className.lastIndexOf('.') + 1) + ".java", line);
+    }
+
+    private static RuntimeException exception(final StackTraceElement... frames)
+    {
+        RuntimeException e = new RuntimeException("failure");
+        e.setStackTrace(frames);
+        return e;
+    }
+
+    @Test
+    public void encodeFrames()
+    {
+        StackTraceEncoder encoder = new StackTraceEncoder(8, ImmutableList.of("sun.reflect.", "java.lang.reflect."), 16);
+        RuntimeException e = exception(
+                frame("com.example.Tree", "walk", 10),
+                frame("com.example.Tree", "walk", 10),
+                frame("com.example.Tree", "walk", 10),
+                frame("com.example.Main", "run", 20),
+                frame("sun.reflect.NativeMethodAccessorImpl", "invoke", 62),
+                frame("java.lang.reflect.Method", "invoke", 498),
+                new StackTraceElement("com.example.Main", "main", null, -1));
+        assertThat(encoder.encodeStack(e), is(
+                "com.example.Tree.walk(Tree.java:10)\n"
+                        + "... repeated 3 times\n"
+                        + "com.example.Main.run(Main.java:20)\n"
+                        + "... 2 framework frames\n"
+                        + "com.example.Main.main(Unknown Source)"));
+    }
+
+    @Test
+    public void limitDepth()
+    {
+        StackTraceEncoder encoder = new StackTraceEncoder(2, ImmutableList.of(), 16);
+        RuntimeException cause = exception(frame("com.example.Db", "query", 1));
+        RuntimeException e = exception(
+                frame("com.example.A", "a", 1),
+                frame("com.example.B", "b", 2),
+                frame("com.example.C", "c", 3),
+                frame("com.example.D", "d", 4));
+        e.initCause(cause);
+        assertThat(encoder.encodeStack(e), is(
+                "com.example.A.a(A.java:1)\n"
+                        + "com.example.B.b(B.java:2)\n"
+                        + "... 2 more\n"
+                        + "Caused by: java.lang.RuntimeException\n"
+                        + "com.example.Db.query(Db.java:1)"));
+    }
+
+    @Test
+    public void cacheByFingerprints()
+    {
+        StackTraceEncoder encoder = new StackTraceEncoder(8, StackTraceEncoder.DEFAULT_COLLAPSED_PREFIXES, 16);
+        StackTraceEncoder.Encoded first = encoder.encode(exception(frame("com.example.A", "a", 1)));
+        StackTraceEncoder.Encoded second = encoder.encode(exception(frame("com.example.A", "a", 1)));
+        assertThat(second, is(sameInstance(first)));
+        assertThat(first.hash.length(), is(16));
+        assertThat(encoder.cacheSize(), is(1L));
+
+        StackTraceEncoder.Encoded other = encoder.encode(exception(frame("com.example.A", "a", 2)));
+        assertThat(other.hash, is(not(first.hash)));
+        assertThat(encoder.cacheSize(), is(2L));
+    }
+
+    @Test
+    public void cacheByEncodedFramesAndCauses()
+    {
+        StackTraceEncoder encoder = new StackTraceEncoder(10, ImmutableList.of(), 16);
+        StackTraceElement[] top = new StackTraceElement[ThrowableFingerprint.FRAMES + 1];
+        for (int i = 0; i < ThrowableFingerprint.FRAMES; i++) {
+            top[i] = frame("com.example.A", "a", i);
+        }
+        top[ThrowableFingerprint.FRAMES] = frame("com.example.B", "b", 1);
+        RuntimeException first = exception(top);
+        top[ThrowableFingerprint.FRAMES] = frame("com.example.B", "b", 2);
+        RuntimeException deeper = exception(top);
+        RuntimeException caused = exception(top);
+        caused.initCause(exception(frame("com.example.Db", "query", 1)));
+
+        // same top frames, but different frames within maxDepth or different causes
+        assertThat(ThrowableFingerprint.of(deeper), is(ThrowableFingerprint.of(first)));
+        assertThat(encoder.encode(deeper).stack, is(encoder.encodeStack(deeper)));
+        assertThat(encoder.encode(first).stack, is(encoder.encodeStack(first)));
+        assertThat(encoder.encode(caused).stack, is(encoder.encodeStack(caused)));
+        assertThat(encoder.cacheSize(), is(3L));
+
+        // frames beyond maxDepth are not encoded, except the count
+        StackTraceEncoder shallow = new StackTraceEncoder(1, ImmutableList.of(), 16);
+        assertThat(shallow.fingerprint(deeper), is(shallow.fingerprint(first)));
+    }
+}
@@ -0,0 +1,134 @@
+package com.treasuredata.bigdam.log;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.*;
+
+public class StatsdSinkTest
+{
+    private DatagramSocket server;
+
+    @Before
+    public void setup()
+            throws Exception
+    {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(2000);
+    }
+
+    @After
+    public void teardown()
+    {
+        server.close();
+    }
+
+    private String receive()
+            throws Exception
+    {
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        server.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private StatsdSink sink(int maxPacketSize)
+    {
+        return new StatsdSink(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), maxPacketSize);
+    }
+
+    @Test
+    public void sendLinesInAPacket()
+            throws Exception
+    {
+        try (StatsdSink sink = sink(StatsdSink.DEFAULT_MAX_PACKET_SIZE)) {
+            sink.begin(Instant.now());
+            sink.write("metric.", "name1", 100L, ImmutableMap.of());
+            sink.write("metric.", "name2", 0.25, ImmutableMap.of("k1", "v1", "k2", 2));
+            sink.write("metric.", "name3", (Object) (-3), ImmutableMap.of("with:colon", "a|b"));
+            sink.write("metric.", "name4", -1.5, ImmutableMap.of());
+            sink.write("metric.", "text", "not numeric", ImmutableMap.of());
+            sink.flush();
+
+            assertThat(receive(), is("metric.name1:100|g\n"
+                    + "metric.name2:0.25|g|#k1:v1,k2:2\n"
+                    + "metric.name3:0|g|#with_colon:a_b\n"
+                    + "metric.name3:-3|g|#with_colon:a_b\n"
+                    + "metric.name4:0|g\n"
+                    + "metric.name4:-1.5|g"));
+            assertThat(sink.getSentPackets(), is(1L));
+        }
+    }
+
+    @Test
+    public void sendCounterDeltasAsCounters()
+            throws Exception
+    {
+        try (StatsdSink sink = sink(StatsdSink.DEFAULT_MAX_PACKET_SIZE)) {
+            sink.writeCounter("metric.", "requests", 10L, ImmutableMap.of("method", "GET"));
+            sink.writeCounter("metric.", "bytes", 0.5, ImmutableMap.of());
+            sink.writeCounter("metric.", "errors", (Object) 2, ImmutableMap.of());
+            sink.flush();
+
+            assertThat(receive(), is("metric.requests:10|c|#method:GET\n"
+                    + "metric.bytes:0.5|c\n"
+                    + "metric.errors:2|c"));
+        }
+    }
+
+    @Test
+    public void writePlainDecimalsOfExtremeMagnitudes()
+            throws Exception
+    {
+        try (StatsdSink sink = sink(StatsdSink.DEFAULT_MAX_PACKET_SIZE)) {
+            sink.write("metric.", "huge", 1.0e15, ImmutableMap.of());
+            sink.write("metric.", "huger", 1.25e20, ImmutableMap.of());
+            // scaled by 10^6, these overflow longs
+            sink.write("metric.", "big", 1.0e13, ImmutableMap.of());
+            sink.write("metric.", "bigger", 9.5e12 + 0.25, ImmutableMap.of());
+            sink.write("metric.", "tiny", 1.5e-9, ImmutableMap.of());
+            sink.write("metric.", "negative", -2.5e16, ImmutableMap.of());
+            sink.write("metric.", "min", Long.MIN_VALUE, ImmutableMap.of());
+            sink.flush();
+
+            assertThat(receive(), is("metric.huge:1000000000000000|g\n"
+                    + "metric.huger:125000000000000000000|g\n"
+                    + "metric.big:10000000000000|g\n"
+                    + "metric.bigger:9500000000000.25|g\n"
+                    + "metric.tiny:0.0000000015|g\n"
+                    + "metric.negative:0|g\n"
+                    + "metric.negative:-25000000000000000|g\n"
+                    + "metric.min:0|g\n"
+                    + "metric.min:-9223372036854775808|g"));
+        }
+    }
+
+    @Test
+    public void splitPacketsByMaxSize()
+            throws Exception
+    {
+        try (StatsdSink sink = sink(40)) {
+            sink.write("metric.", "name1", 1L, ImmutableMap.of()); // 16 bytes
+            sink.write("metric.", "name2", 2L, ImmutableMap.of()); // 16 bytes + separator
+            sink.write("metric.", "name3", 3L, ImmutableMap.of()); // next packet
+            sink.write("metric.", "too_long_name_to_be_sent_in_a_packet", 4L, ImmutableMap.of());
+            sink.flush();
+
+            assertThat(receive(), is("metric.name1:1|g\nmetric.name2:2|g"));
+            assertThat(receive(), is("metric.name3:3|g"));
+            assertThat(sink.getSentPackets(), is(2L));
+            assertThat(sink.getDroppedLines(), is(1L));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.treasuredata.bigdam.log;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.*;
+
+public class ThrowableFingerprintTest
+{
+    private static RuntimeException newException(final String message)
+    {
+        return new RuntimeException(message);
+    }
+
+    @Test
+    public void sameFingerprintsOfSameCallSites()
+    {
+        RuntimeException[] errors = new RuntimeException[2];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = newException("failure " + i);
+        }
+        assertThat(ThrowableFingerprint.of(errors[0]), is(ThrowableFingerprint.of(errors[1])));
+        assertThat(ThrowableFingerprint.of(errors[0]), is(ThrowableFingerprint.compute(errors[0])));
+
+        RuntimeException other = newException("failure 0");
+        assertThat(ThrowableFingerprint.of(other), is(not(ThrowableFingerprint.of(errors[0]))));
+        assertThat(ThrowableFingerprint.of(new IllegalStateException("failure")), is(not(ThrowableFingerprint.of(new RuntimeException("failure")))));
+    }
+
+    @Test
+    public void fingerprintsWithoutStackTraces()
+    {
+        RuntimeException e = new RuntimeException("failure");
+        e.setStackTrace(new StackTraceElement[0]);
+        assertThat(ThrowableFingerprint.compute(e), is(SeriesTable.hash(RuntimeException.class.getName())));
+    }
+
+    @Test
+    public void toHex()
+    {
+        assertThat(ThrowableFingerprint.toHex(0L), is("0000000000000000"));
+        assertThat(ThrowableFingerprint.toHex(0xabcL), is("0000000000000abc"));
+        assertThat(ThrowableFingerprint.toHex(-1L), is("ffffffffffffffff"));
+    }
+}